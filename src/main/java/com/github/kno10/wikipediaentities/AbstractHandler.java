@@ -7,7 +7,7 @@ package com.github.kno10.wikipediaentities;
  */
 public abstract class AbstractHandler implements Handler {
 	@Override
-	public void rawArticle(String prefix, String title, String text) {
+	public void rawArticle(String prefix, String title, long revision, String text) {
 		// Ignore
 	}
 
@@ -17,7 +17,12 @@ public abstract class AbstractHandler implements Handler {
 	}
 
 	@Override
-	public void linkDetected(String prefix, String title, String label, String target) {
+	public void linkDetected(String prefix, String title, String label, String tokens, String target) {
+		// Ignore
+	}
+
+	@Override
+	public void checkpoint() {
 		// Ignore
 	}
 
@@ -1,146 +1,271 @@
 package com.github.kno10.wikipediaentities;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.TimeUnit;
 
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.PhraseQuery;
-import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.SimpleCollector;
 import org.apache.lucene.store.FSDirectory;
 
+import com.github.kno10.wikipediaentities.util.ChainResolver;
 import com.github.kno10.wikipediaentities.util.CounterSet;
 import com.github.kno10.wikipediaentities.util.CounterSet.Entry;
 import com.github.kno10.wikipediaentities.util.Progress;
-import com.github.kno10.wikipediaentities.util.Unique;
-import com.github.kno10.wikipediaentities.util.Util;
-
-import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
-import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import com.github.kno10.wikipediaentities.util.RecordReader;
+import com.github.kno10.wikipediaentities.util.ReorderBuffer;
+import com.github.kno10.wikipediaentities.util.ResumableOutput;
+import com.github.kno10.wikipediaentities.util.TitleDictionary;
+
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.Object2LongOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ObjectIterator;
-import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
-import it.unimi.dsi.fastutil.objects.Reference2ReferenceOpenHashMap;
 
 public class AnalyzeLinks {
   private static final int MINIMUM_MENTIONS = 20;
 
-  /** Collect unique strings. */
-  Unique<String> unique = new Unique<>();
-
   Progress prog = new Progress("Computing support");
 
   BlockingQueue<Candidate> proqueue = new ArrayBlockingQueue<>(1000);
 
-  BlockingQueue<Candidate> outqueue = new ArrayBlockingQueue<>(1000 + 1);
-
-  boolean shutdown = false;
+  /** Completed candidates, for output */
+  ReorderBuffer<Candidate> outqueue;
 
   /** Lucene index searcher */
   IndexSearcher searcher;
 
-  private void run() throws IOException {
+  /** Candidate queries, case folded */
+  TitleDictionary queries;
+
+  /** Resolved links of each document */
+  ResolvedLinkCache cache;
+
+  /** Checkpoint every this many candidates (0: never) */
+  int checkpointInterval;
+
+  /** Checkpoint file name */
+  String checkpointFile;
+
+  /** Number of candidates already processed, when resuming */
+  long resumeCandidates = 0;
+
+  /** Output offset to resume from */
+  long resumeOffset = 0;
+
+  private void run(boolean resume) throws IOException, InterruptedException {
     //最多允许的线程数量
     int par = Math.min(Integer.valueOf(Config.get("parallelism")), Runtime.getRuntime().availableProcessors());
     if(par < 1) {
       throw new Error("At least 1 consumer must be allowed!");
     }
-
-    // String unification, for performance.
-    Unique<String> unique = new Unique<>(50_000_000);
-    // Load Wikidata information:
-    Map<String, String> datamap = loadWikidata(unique, Config.get("wikidata.output"));
-    //Map<String, String> datamap = loadWikidata(unique, "wiki-2021/wikidata1.tsv.gz");
-    System.out.format("Read %d wikidata maps.\n", datamap.size());
-    // Load redirects
-    Reference2ReferenceOpenHashMap<String, String> redmap = loadRedirects(unique, Config.get("redirects.output"));
-    System.out.format("Read %d redirects.\n", redmap.size());
-
-    computeClosure(datamap, redmap);
-    System.out.format("computed redirect clouse of %d wikidata maps.\n", datamap.size());
-    redmap = null; // Free.
-
     String nam = Config.get("linktext.output");
     String dir = Config.get("indexer.dir");
     String out = Config.get("entities.output");
+    boolean ordered = !"false".equals(Config.get("analyze.ordered").trim());
+    checkpointInterval = Integer.parseInt(Config.get("analyze.checkpoint.interval").trim());
+    if(checkpointInterval > 0 && !ordered) {
+      System.err.println("Checkpoints require ordered output, and are disabled.");
+      checkpointInterval = 0;
+    }
+    checkpointFile = out + ".checkpoint";
+    String closureFile = out + ".closure";
+    if(resume) {
+      readCheckpoint();
+      System.err.format("Resuming after %d candidates, at output offset %d.\n", resumeCandidates, resumeOffset);
+    }
+
+    // Title ids, as assigned by the parser:
+    TitleDictionary titles = TitleDictionary.open(Config.get("titles.output"));
+    ArrayList<String> entities = new ArrayList<>();
+    int[] datamap;
+    if(resume && new File(closureFile).exists()) {
+      datamap = loadClosure(closureFile, entities);
+    }
+    else {
+      // Load Wikidata information:
+      datamap = loadWikidata(titles, entities, Config.get("wikidata.output"));
+      System.out.format("Read %d wikidata maps.\n", entities.size());
+      // Load redirects
+      Int2IntOpenHashMap redmap = loadRedirects(titles, Config.get("redirects.output"));
+      System.out.format("Read %d redirects.\n", redmap.size());
+
+      computeClosure(titles, entities, datamap, redmap, par);
+      System.out.format("computed redirect clouse of %d wikidata maps.\n", entities.size());
+      redmap = null; // Free.
+      if(checkpointInterval > 0)
+        saveClosure(closureFile, datamap, entities);
+    }
+
     FSDirectory ldir = FSDirectory.open(FileSystems.getDefault().getPath(dir));
     IndexReader reader = DirectoryReader.open(ldir);
     searcher = new IndexSearcher(reader);
+    // Resolve the links of all documents once:
+    queries = loadQueries(nam);
+    cache = new ResolvedLinkCache(reader, datamap, queries);
+    datamap = null; // Free.
     //添加一个输出线程，若干个工作线程
     ArrayList<Thread> threads = new ArrayList<>();
+    outqueue = new ReorderBuffer<>(Integer.parseInt(Config.get("analyze.reorder.capacity").trim()), ordered);
     threads.add(new OutputThread(out));
     for(int i = 0; i < par; i++)
-      threads.add(new WorkerThread("Worker-" + i, datamap));
+      threads.add(new WorkerThread("Worker-" + i, entities.toArray(new String[entities.size()])));
 
     // Start all:
     for(Thread th : threads)
       th.start();
-    readall(nam);
+    readall(nam, par);
     // Wait for all:
     for(Thread th : threads) {
       try {
         th.join();
-        // Help the writer thread to shutdown...
-        synchronized(monitor) {
-          monitor.notify();
-        }
       }
       catch(InterruptedException e) {
         e.printStackTrace();
       }
     }
+    System.err.println(outqueue.stats());
+  }
+
+  /**
+   * Read the last checkpoint.
+   *
+   * @throws IOException on errors, or if there is no checkpoint
+   */
+  private void readCheckpoint() throws IOException {
+    try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(checkpointFile), "UTF-8"))) {
+      String[] cols = r.readLine().split("\t");
+      resumeCandidates = Long.parseLong(cols[0]);
+      resumeOffset = Long.parseLong(cols[1]);
+    }
+  }
+
+  /**
+   * Write a checkpoint, atomically replacing the previous one.
+   *
+   * @param candidates Number of candidates processed
+   * @param offset Output offset
+   * @throws IOException on errors
+   */
+  private void writeCheckpoint(long candidates, long offset) throws IOException {
+    Path tmp = Paths.get(checkpointFile + ".tmp");
+    try (PrintStream w = new PrintStream(new FileOutputStream(tmp.toFile()), false, "UTF-8")) {
+      w.append(Long.toString(candidates)).append('\t').append(Long.toString(offset)).append('\n');
+    }
+    Files.move(tmp, Paths.get(checkpointFile), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Save the wikidata map after the redirect closure, for resuming.
+   *
+   * @param fnam File name
+   * @param datamap Map title id to entity index
+   * @param entities Entity names
+   * @throws IOException on errors
+   */
+  private void saveClosure(String fnam, int[] datamap, List<String> entities) throws IOException {
+    try (DataOutputStream w = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fnam), 1 << 16))) {
+      w.writeInt(datamap.length);
+      for(int v : datamap)
+        w.writeInt(v);
+      w.writeInt(entities.size());
+      for(String e : entities)
+        w.writeUTF(e);
+    }
+  }
+
+  /**
+   * Load the wikidata map after the redirect closure.
+   *
+   * @param fnam File name
+   * @param entities Output list of entity names
+   * @return Map title id to entity index
+   * @throws IOException on errors
+   */
+  private int[] loadClosure(String fnam, List<String> entities) throws IOException {
+    try (DataInputStream r = new DataInputStream(new BufferedInputStream(new FileInputStream(fnam), 1 << 16))) {
+      int[] datamap = new int[r.readInt()];
+      for(int i = 0; i < datamap.length; i++)
+        datamap[i] = r.readInt();
+      for(int i = 0, n = r.readInt(); i < n; i++)
+        entities.add(r.readUTF());
+      System.out.format("Read redirect closure of %d wikidata maps.\n", entities.size());
+      return datamap;
+    }
   }
 
   /**
    * Load wikidata information, i.e. a map WikiDataID to language versions, and
    * return a map language version to WikiDataID.
    *
-   * @param unique String unifier
+   * Titles not in the dictionary cannot occur as link targets, and are
+   * skipped.
+   *
+   * @param titles Title dictionary
+   * @param entities Output list of entity names
    * @param fnam File name
-   * @return Map language version to wiki data id.
+   * @return Map title id to entity index, -1 if none.
    * @throws IOException
    */
-  private Map<String, String> loadWikidata(Unique<String> unique, String fnam) throws IOException {
-    Map<String, String> m = new Object2ObjectOpenHashMap<>(30_000_000);
-    try (BufferedReader r = new BufferedReader(//
-    new InputStreamReader(Util.openInput(fnam)))) {
-      String line = r.readLine();
-      String[] header = line.split("\t");
+  private int[] loadWikidata(TitleDictionary titles, List<String> entities, String fnam) throws IOException {
+    int[] m = new int[titles.size()];
+    Arrays.fill(m, -1);
+    try (RecordReader r = RecordReader.open(fnam)) {
+      if(!r.next())
+        return m;
+      String[] header = new String[r.size()];
+      for(int i = 0; i < header.length; i++)
+        header[i] = r.get(i);
       StringBuilder buf = new StringBuilder();
-      while((line = r.readLine()) != null) {
-        String[] cols = line.split("\t");
-        assert (cols.length == header.length);
-        for(int i = 1; i < cols.length; i++) {
-          final String title = cols[i];
-          if(title == null || title.length() == 0)
-            continue;
-        }
+      while(r.next()) {
+        assert (r.size() == header.length);
         String nam = null;
-        for(int i = 1; i < cols.length; i++) {
-          if(cols[i] == null || cols[i].length() == 0) {
+        int idx = -1;
+        for(int i = 1; i < r.size(); i++) {
+          if(r.length(i) == 0) {
             continue;
           }
+          final String col = r.get(i);
           if(nam == null) {
             buf.setLength(0);
-            nam = unique.addOrGet(buf.append(cols[0]).append(':').append(cols[i].replace(':', ' ')).toString());
+            nam = buf.append(r.get(0)).append(':').append(col.replace(':', ' ')).toString();
           }
           buf.setLength(0);
-          buf.append(header[i]).append(':').append(cols[i]);
-          String prev = m.put(unique.addOrGet(buf.toString()), nam);
-          assert (prev == null);
+          buf.append(header[i]).append(':').append(col);
+          final int id = titles.get(buf.toString());
+          if(id < 0) {
+            continue;
+          }
+          if(idx < 0) {
+            idx = entities.size();
+            entities.add(nam);
+          }
+          assert (m[id] < 0);
+          m[id] = idx;
         }
       }
     }
@@ -148,23 +273,46 @@ public class AnalyzeLinks {
   }
 
   /**
-   * Load the redirects data. Note: we perform string unification, and use a
-   * Reference-based HashMap for performance reasons.
+   * Load the candidate queries, for matching link labels.
    *
-   * @param unique String unification
+   * @param fnam File name
+   * @return Dictionary of the queries
+   * @throws IOException
+   */
+  private TitleDictionary loadQueries(String fnam) throws IOException {
+    TitleDictionary m = new TitleDictionary(1 << 20);
+    try (RecordReader r = RecordReader.open(fnam)) {
+      while(r.next()) {
+        final String line = r.get(0);
+        if(!line.startsWith("category ")) {
+          m.add(line);
+        }
+      }
+    }
+    System.out.format("Read %d candidate queries.\n", m.size());
+    return m;
+  }
+
+  /**
+   * Load the redirects data, as title ids.
+   *
+   * @param titles Title dictionary
    * @param fnam File name
    * @return Hash map of redirects
    * @throws IOException
    */
-  private Reference2ReferenceOpenHashMap<String, String> loadRedirects(Unique<String> unique, String fnam) throws IOException {
-    Reference2ReferenceOpenHashMap<String, String> m = new Reference2ReferenceOpenHashMap<>(15_000_000);
-    try (BufferedReader r = new BufferedReader(//
-    new InputStreamReader(Util.openInput(fnam)))) {
-      String line = null;
-      while((line = r.readLine()) != null) {
-        String[] cols = line.split("\t");
-        assert (cols.length == 2);
-        m.put(unique.addOrGet(cols[0]), unique.addOrGet(cols[1]));
+  private Int2IntOpenHashMap loadRedirects(TitleDictionary titles, String fnam) throws IOException {
+    Int2IntOpenHashMap m = new Int2IntOpenHashMap(1_000_000);
+    m.defaultReturnValue(-1);
+    try (RecordReader r = RecordReader.open(fnam)) {
+      while(r.next()) {
+        byte[] b = r.data();
+        final int src = titles.get(b, r.offset(0), r.length(0)), dst = titles.get(b, r.offset(1), r.length(1));
+        if(src < 0 || dst < 0) {
+          System.err.format("Redirect not in title dictionary: %s > %s\n", r.get(0), r.get(1));
+          continue;
+        }
+        m.put(src, dst);
       }
     }
     return m;
@@ -174,62 +322,76 @@ public class AnalyzeLinks {
    * Compute the transitive closure of redirects, to be able to quickly follow a
    * redirect chain to the final WikiData entry.
    *
+   * Redirects that have a WikiData entry themselves pass it on along their
+   * chain; these are rare, and applied first, in order. All other redirects
+   * then take the entry of the first title along their chain that has one,
+   * resolved in parallel by pointer jumping.
+   *
+   * @param titles Title dictionary, for messages
+   * @param entities Entity names, for messages
    * @param datamap Wikidata map (will be modified)
    * @param redmap Redirection map (read-only)
+   * @param par Number of threads
+   * @throws InterruptedException when interrupted
    */
-  private void computeClosure(Map<String, String> datamap, Reference2ReferenceOpenHashMap<String, String> redmap) {
+  void computeClosure(TitleDictionary titles, List<String> entities, int[] datamap, Int2IntOpenHashMap redmap, int par) throws InterruptedException {
     System.err.println("Computing transitive closure of redirects.");
-    ObjectOpenHashSet<String> seen = new ObjectOpenHashSet<>();
-    // Iterate using a copy to avoid concurrent modification
-    int i = 0;
-    int total_size = redmap.size();
-    for(ObjectIterator<Reference2ReferenceOpenHashMap.Entry<String, String>> it = redmap.reference2ReferenceEntrySet().fastIterator(); it.hasNext();) {
-      if(++i % 1000 == 0) {
-        System.out.format("Computing closure progress: %d/%d\n", i, total_size);
-      }
-      Reference2ReferenceOpenHashMap.Entry<String, String> ent = it.next();
-      //key -> targ
-      String key = ent.getKey(), targ = ent.getValue();
-      assert (targ != null);
+    final long start = System.currentTimeMillis();
+    int[] next = new int[datamap.length], nodes = new int[redmap.size()];
+    Arrays.fill(next, -1);
+    int n = 0;
+    for(ObjectIterator<Int2IntMap.Entry> it = redmap.int2IntEntrySet().fastIterator(); it.hasNext();) {
+      Int2IntMap.Entry ent = it.next();
+      next[nodes[n++] = ent.getIntKey()] = ent.getIntValue();
+    }
+    for(int i = 0; i < n; i++) {
       //key对应的真实词条，让targ->词条
-      String next = datamap.get(key);
-      if(next != null) {
-        //在数据中存在该映射，链式插入短语
-        do {
-          //旧值；如果给定键不存在任何值，则返回null。
-          String oldVal = datamap.put(targ, next);
-            if (oldVal == null)
-            {
-              System.err.format("Warning: WikiData references a redirect: %s > %s > %s\n", next, key, targ);
-            }
-            //TODO:值相同，跳出
-            else if (oldVal.equals(next))
-            {
-              break;
-            }
-        }while((targ = redmap.get(targ)) != null);
+      final int key = nodes[i], val = datamap[key];
+      if(val < 0)
         continue;
-      }
-      seen.clear();
-      seen.add(key);
-      seen.add(targ);
-      while(true) {
-        next = datamap.get(targ);
-        if(next != null) {
-          datamap.put(key, next);
-          break;
-        }
-        next = redmap.get(targ);
-        if(next == null) {
-          break;
+      //在数据中存在该映射，链式插入短语
+      for(int targ = next[key]; targ >= 0; targ = next[targ]) {
+        //旧值；如果给定键不存在任何值，则为-1
+        int oldVal = datamap[targ];
+        datamap[targ] = val;
+        if(oldVal < 0) {
+          System.err.format("Warning: WikiData references a redirect: %s > %s > %s\n", entities.get(val), titles.key(key), titles.key(targ));
         }
-        if(!seen.add(next)) {
-          System.err.format("Redirect cycle detected involving %s > %s > %s\n", key, targ, next);
+        //值相同，跳出
+        else if(oldVal == val) {
           break;
         }
-        targ = next;
       }
     }
+    ChainResolver resolver = new ChainResolver(next, datamap, nodes);
+    resolver.run(par);
+    for(int v : nodes)
+      datamap[v] = resolver.value(v);
+    // Report each cycle once: walk from every unresolved redirect, marking the
+    // titles with the walk number. Only a walk that reaches its own marks has
+    // found a new cycle.
+    IntArrayList unresolved = resolver.unresolved();
+    Int2IntOpenHashMap walk = new Int2IntOpenHashMap();
+    StringBuilder buf = new StringBuilder();
+    for(int i = 0; i < unresolved.size(); i++) {
+      int v = unresolved.getInt(i);
+      while(walk.get(v) == 0) {
+        walk.put(v, i + 1);
+        v = next[v];
+      }
+      if(walk.get(v) != i + 1)
+        continue; // Reached an earlier walk
+      buf.setLength(0);
+      int c = v;
+      do {
+        buf.append(titles.key(c)).append(" > ");
+        c = next[c];
+      }
+      while(c != v);
+      System.err.format("Redirect cycle detected: %s%s\n", buf, titles.key(v));
+    }
+    System.err.format("Resolved %d redirects in %d ms (%d rounds), %d lead into cycles.\n", //
+        n, System.currentTimeMillis() - start, resolver.rounds(), unresolved.size());
   }
 
   /**
@@ -239,11 +401,18 @@ public class AnalyzeLinks {
    * this to the output thread.
    */
   static class Candidate {
+    /** End of input marker for the workers */
+    static final Candidate END = new Candidate(null, -1);
+
     String query, matches;
 
-    public Candidate(String query) {
+    /** Sequence number, in input order */
+    final long seq;
+
+    public Candidate(String query, long seq) {
       this.query = query;
       this.matches = null;
+      this.seq = seq;
     }
 
     @Override
@@ -252,43 +421,39 @@ public class AnalyzeLinks {
     }
   }
 
-  /** Used for awaking the output thread */
-  Object monitor = new Object();
-
   private class WorkerThread extends Thread {
-    Object2IntOpenHashMap<String> counters = new Object2IntOpenHashMap<>();
+    Object2LongOpenHashMap<String> counters = new Object2LongOpenHashMap<>();
 
     StringBuilder buf = new StringBuilder();
 
-    Map<String, String> datamap;
-
-    ObjectOpenHashSet<String> dups = new ObjectOpenHashSet<>(),
-        dupsExact = new ObjectOpenHashSet<>();
+    /** Wikidata entries */
+    String[] entities;
 
-    static final int EXACT = 0x1_0000;
+    /** Collector counting the links of the matching documents */
+    LinkCounter collector = new LinkCounter();
 
-    public WorkerThread(String name, Map<String, String> datamap) {
+    public WorkerThread(String name, String[] entities) {
       super(name);
-      this.datamap = datamap;
+      this.entities = entities;
     }
 
     @Override
     public void run() {
-      while(!proqueue.isEmpty() || !shutdown) {
-        try {
-          Candidate a = proqueue.poll(100, TimeUnit.MILLISECONDS);
-          if(a == null)
-            continue;
-          analyze(a);
+      try {
+        for(Candidate a; (a = proqueue.take()) != Candidate.END;) {
+          try {
+            analyze(a);
+          }
+          catch(IOException e) {
+            e.printStackTrace();
+            a.query = null; // Flag as dead.
+          }
+          outqueue.put(a.seq, a);
           prog.incrementAndLog();
         }
-        catch(InterruptedException e) {
-          break;
-        }
-        catch(IOException e) {
-          e.printStackTrace();
-          break;
-        }
+      }
+      catch(InterruptedException e) {
+        // Exit.
       }
     }
 
@@ -300,53 +465,23 @@ public class AnalyzeLinks {
         pq.add(new Term(LuceneWikipediaIndexer.LUCENE_FIELD_TEXT, t));
       //每次查询前都清空原先的数据
       counters.clear();
-      // Careful: max count must be less than 64k, because we use short counts!
-      //通过字查询文档
-      TopDocs res = searcher.search(pq.build(), 0xFFFF);
-      ScoreDoc[] docs = res.scoreDocs;
-      if(docs.length < MINIMUM_MENTIONS) {
+      //通过字查询文档，并直接统计文档中的link
+      collector.reset(queries.get(cand.query));
+      searcher.search(pq.build(), collector);
+      final int hits = collector.hits;
+      if(hits < MINIMUM_MENTIONS) {
         cand.query = null; // Flag as dead.
         return; // Too rare.
       }
-      int minsupp = Math.max(MINIMUM_MENTIONS, docs.length / 10);
+      int minsupp = Math.max(MINIMUM_MENTIONS, hits / 10);
       //计算这些文档中的link短语，若有一个短语有对应的datamap，则增加1（每个文档增加1）
-      int weight = 0;
-      //遍历所有文档 以及对应的所有link
-      for(int i = 0; i < docs.length; ++i) {
-        Document d = searcher.doc(docs[i].doc);
-        //获取游文档对应的自由链接词语
-        String[] lis = d.get(LuceneWikipediaIndexer.LUCENE_FIELD_LINKS).split("\t");
-        if(lis.length == 0) {
-          // String dtitle = d.get(LuceneWikipediaIndexer.LUCENE_FIELD_TITLE);
-          // System.err.format("No links for %s.\n", dtitle);
-          continue;
-        }
-        dups.clear();
-        dupsExact.clear();
-        // Even positions are link targets:
-        // Beware: Java "split" loses trailing separators!
-        boolean used = false;
-        for(int j = 0; j < lis.length; j += 2) {
-          final String targ = datamap.get(lis[j]);
-          if(targ != null) {
-            if(dups.add(targ)) {
-              counters.addTo(targ, 1);
-              used = true;
-            }
-            //还有短语 并且这个短语等于查询 并且未曾添加到dupsExact，则为它添加权重65536
-            if(j + 1 < lis.length && lis[j + 1].equalsIgnoreCase(cand.query) && dupsExact.add(targ))
-              counters.addTo(targ, EXACT);
-          }//end if
-        }//end for 遍历文档中的link短语
-        if(used)
-          weight++;
-      }//end for 遍历文档
+      int weight = collector.weight;
       boolean output = false;
       if(counters.size() > 0) {
         buf.setLength(0); // clear
         //查询语句 总文档数 weight：在wikidata中的不重复关键字数
         buf.append(cand.query);
-        buf.append('\t').append(res.totalHits);
+        buf.append('\t').append(hits);
         buf.append('\t').append(weight);
         List<Entry<String>> sorted = CounterSet.descending(counters);
         int max = weight;
@@ -376,36 +511,107 @@ public class AnalyzeLinks {
       }
       else
         cand.query = null; // Flag as dead.
-      // Wake up writer thread, if waiting.
-      synchronized(monitor) {
-        monitor.notifyAll();
+    }
+
+    /**
+     * Collector visiting the matching documents of each segment in order,
+     * without scoring, and counting the Wikidata targets of their links.
+     */
+    private class LinkCounter extends SimpleCollector {
+      /** Document id offset of the current segment */
+      int docBase;
+
+      /** Id of the current query */
+      int query;
+
+      /** Number of matching documents */
+      int hits;
+
+      /** Number of documents with at least one resolved link */
+      int weight;
+
+      /**
+       * Prepare for the next query.
+       *
+       * @param query Query id
+       */
+      void reset(int query) {
+        this.query = query;
+        hits = 0;
+        weight = 0;
+      }
+
+      @Override
+      protected void doSetNextReader(LeafReaderContext context) throws IOException {
+        docBase = context.docBase;
+      }
+
+      @Override
+      public void collect(int doc) throws IOException {
+        ++hits;
+        //文档中的link，已按实体排序并去重
+        final long end = cache.end(docBase + doc);
+        long p = cache.start(docBase + doc);
+        if(p == end)
+          return; // No resolved links
+        for(int last = -1; p < end; p += 2) {
+          final int ent = cache.get(p);
+          final String targ = entities[ent];
+          if(ent != last) {
+            counters.addTo(targ, 1);
+            last = ent;
+          }
+          //短语等于查询，则为它添加权重
+          if(query >= 0 && cache.get(p + 1) == query)
+            counters.addTo(targ, CounterSet.EXACT);
+        }//end for 遍历文档中的link
+        weight++;
+      }
+
+      @Override
+      public boolean needsScores() {
+        return false;
       }
     }
   }//end for WorkerThread
-  public void readall(String nam) {
+  /**
+   * Read all candidates, and pass them to the workers.
+   *
+   * @param nam File name
+   * @param workers Number of workers, to send end markers to
+   */
+  public void readall(String nam, int workers) {
+    long seq = 0, skip = resumeCandidates;
     //open linktext.gz
-    try (InputStream in = Util.openInput(nam);
-        BufferedReader r = new BufferedReader(new InputStreamReader(in))) {
-      String line;
-      while((line = r.readLine()) != null) {
+    try (RecordReader r = RecordReader.open(nam)) {
+      while(r.next()) {
+        final String line = r.get(0);
         if(line.startsWith("category ")) {
           continue; // Artifact.
         }
-        try {
-          Candidate cand = new Candidate(line);
-          proqueue.put(cand);
-          outqueue.put(cand);
-        }
-        catch(InterruptedException e) {
-          break;
+        if(skip > 0) {
+          --skip; // Processed before resuming.
+          continue;
         }
+        proqueue.put(new Candidate(line, seq++));
       }
     }
     catch(IOException e) {
       e.printStackTrace();
     }
-    shutdown = true; // Don't wait for more input to arrive.
+    catch(InterruptedException e) {
+      System.err.println("Reading candidates interrupted.");
+    }
+    outqueue.close(seq);
+    try {
+      for(int i = 0; i < workers; i++)
+        proqueue.put(Candidate.END);
+    }
+    catch(InterruptedException e) {
+      e.printStackTrace();
+    }
   }
+
   //实体输出线程处理类
   private class OutputThread extends Thread {
     private String nam;
@@ -417,33 +623,23 @@ public class AnalyzeLinks {
 
     @Override
     public void run() {
-      //定时查询队列，如果获取到，则判断有没有匹配到的数据，有则输出到文件
-      try (PrintStream out = Util.openOutput(nam)) {
-        while(!outqueue.isEmpty() || !shutdown) {
-          try {
-            //一定时间从队列取数据，若未取到，返回null
-            //检索并除去此队列的头，如果有必要使元素可用，则等待指定的等待时间。
-            Candidate a = outqueue.poll(100, TimeUnit.MILLISECONDS);
-            if(a == null)
-              continue;
-            //拿到一个 candidate，若还没查询，则一直等待处理后，才被唤醒
-            while(true) {
-              if(a.query == null)
-                break; // Query failed to yield good results.
-              if(a.matches != null) { // Success
-                out.append(a.matches);
-                out.append('\n');
-                break;
-              }
-              synchronized(monitor) {
-                monitor.wait(); // Wait for wakeup signal
-              }
-            }//end while
-          }
-          catch(InterruptedException e) {
-            break;
+      //按输入顺序取出已完成的candidate，有匹配的数据则输出到文件
+      try (ResumableOutput ro = new ResumableOutput(nam, resumeOffset)) {
+        long done = resumeCandidates;
+        for(Candidate a; (a = outqueue.take()) != null;) {
+          if(a.query != null) { // Else: query failed to yield good results.
+            PrintStream out = ro.out();
+            out.append(a.matches);
+            out.append('\n');
           }
+          if(checkpointInterval > 0 && ++done % checkpointInterval == 0)
+            writeCheckpoint(done, ro.checkpoint());
         }
+        if(checkpointInterval > 0)
+          writeCheckpoint(done, ro.checkpoint());
+      }
+      catch(InterruptedException e) {
+        System.err.println("Output thread interrupted.");
       }
       catch(IOException e) {
         e.printStackTrace();
@@ -454,10 +650,13 @@ public class AnalyzeLinks {
 
   public static void main(String[] args) {
     try {
-      (new AnalyzeLinks()).run();
+      (new AnalyzeLinks()).run(args.length > 0 && "--resume".equals(args[0]));
     }
     catch(IOException e) {
       e.printStackTrace();
     }
+    catch(InterruptedException e) {
+      System.err.println("Processing interrupted.");
+    }
   }
 }
@@ -9,6 +9,9 @@ public class Article {
   /** Original content */
   String prefix, title, redirect, rawtext;
 
+  /** Revision id, 0 if unknown */
+  long revision;
+
   /**
    * Constructor.
    *
@@ -18,10 +21,24 @@ public class Article {
    * @param rawtext Rawtext
    */
   public Article(String prefix, String title, String redirect, String rawtext) {
+    this(prefix, title, redirect, rawtext, 0L);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param prefix Prefix
+   * @param title Title
+   * @param redirect Redirect
+   * @param rawtext Rawtext
+   * @param revision Revision id
+   */
+  public Article(String prefix, String title, String redirect, String rawtext, long revision) {
     super();
     this.prefix = prefix;
     this.title = title;
     this.redirect = redirect;
     this.rawtext = rawtext;
+    this.revision = revision;
   }
 }
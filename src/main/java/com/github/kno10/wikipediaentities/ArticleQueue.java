@@ -0,0 +1,172 @@
+package com.github.kno10.wikipediaentities;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Queue to hand batches of articles from the readers to the parsers.
+ *
+ * The capacity is bounded by the size of the raw text in flight, not by the
+ * number of articles. Once the last reader has finished, an end marker is
+ * published, which every parser passes on to the next.
+ */
+public class ArticleQueue {
+  /** Maximum number of articles per batch */
+  static final int BATCH_SIZE = 256;
+
+  /** Maximum raw text size per batch, in bytes */
+  static final int BATCH_BYTES = 4 << 20;
+
+  /** End of stream marker */
+  private static final Article[] END = new Article[0];
+
+  /** Batches */
+  private BlockingQueue<Article[]> queue = new LinkedBlockingQueue<>();
+
+  /** Remaining capacity, in kilobytes */
+  private Semaphore capacity;
+
+  /** Total capacity, in kilobytes */
+  private int maxkb;
+
+  /** Number of active producers */
+  private AtomicInteger producers = new AtomicInteger();
+
+  /**
+   * Constructor.
+   *
+   * @param bytes Capacity, in bytes of raw text
+   */
+  public ArticleQueue(long bytes) {
+    this.maxkb = (int) Math.min(Math.max(bytes >> 10, 1), Integer.MAX_VALUE);
+    this.capacity = new Semaphore(maxkb);
+  }
+
+  /**
+   * Register a new producer; must be called before any producer finishes.
+   *
+   * @return Publisher for the producer
+   */
+  public Publisher addProducer() {
+    producers.incrementAndGet();
+    return new Publisher();
+  }
+
+  /**
+   * Take the next batch of articles.
+   *
+   * @return Batch, or {@code null} when all producers have finished.
+   * @throws InterruptedException when interrupted
+   */
+  public Article[] take() throws InterruptedException {
+    Article[] batch = queue.take();
+    if(batch == END) {
+      queue.put(END); // For the other consumers
+      return null;
+    }
+    return batch;
+  }
+
+  /**
+   * Release the capacity used by a batch, after processing.
+   *
+   * @param batch Batch
+   */
+  public void release(Article[] batch) {
+    capacity.release(cost(batch));
+  }
+
+  /**
+   * Wait until all published batches have been processed and released. The
+   * producers must be paused while waiting.
+   *
+   * @throws InterruptedException when interrupted
+   */
+  public void awaitIdle() throws InterruptedException {
+    capacity.acquire(maxkb);
+    capacity.release(maxkb);
+  }
+
+  /**
+   * @return Number of producers that have not yet finished
+   */
+  public int producers() {
+    return producers.get();
+  }
+
+  /**
+   * Capacity used by a batch.
+   *
+   * @param batch Batch
+   * @return Cost in kilobytes
+   */
+  private int cost(Article[] batch) {
+    long bytes = 0;
+    for(Article a : batch)
+      bytes += a.rawtext.length() << 1;
+    return (int) Math.min((bytes >> 10) + 1, maxkb);
+  }
+
+  /**
+   * Batching publisher, for use by a single producer thread.
+   */
+  public class Publisher {
+    /** Current batch */
+    private Article[] buf = new Article[BATCH_SIZE];
+
+    /** Number of articles in the current batch */
+    private int n = 0;
+
+    /** Raw text size of the current batch */
+    private long bytes = 0;
+
+    /**
+     * Add an article; may block when the queue is full.
+     *
+     * @param a Article
+     * @throws InterruptedException when interrupted
+     */
+    public void add(Article a) throws InterruptedException {
+      buf[n++] = a;
+      bytes += a.rawtext.length() << 1;
+      if(n == buf.length || bytes >= BATCH_BYTES)
+        flush();
+    }
+
+    /**
+     * Publish the current batch.
+     *
+     * @throws InterruptedException when interrupted
+     */
+    public void flush() throws InterruptedException {
+      if(n == 0)
+        return;
+      Article[] batch = new Article[n];
+      System.arraycopy(buf, 0, batch, 0, n);
+      for(int i = 0; i < n; i++)
+        buf[i] = null;
+      n = 0;
+      bytes = 0;
+      capacity.acquire(cost(batch));
+      queue.put(batch);
+    }
+
+    /**
+     * Publish the remaining articles, and signal the end of this producer.
+     */
+    public void close() {
+      try {
+        flush();
+      }
+      catch(InterruptedException e) {
+        System.err.println("Processing interrupted.");
+      }
+      finally {
+        if(producers.decrementAndGet() == 0)
+          queue.add(END);
+      }
+    }
+  }
+}
@@ -4,6 +4,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.Properties;
 
+import com.github.kno10.wikipediaentities.util.Util;
+
 /**
  * Load the configuration file
  * 
@@ -24,6 +26,18 @@ public class Config {
 			e.printStackTrace();
 			System.exit(1);
 		}
+		String bz2 = get("bzip2.threads");
+		if (bz2 != null)
+			Util.setBZip2Threads(Integer.valueOf(bz2.trim()));
+		String gz = get("gzip.threads");
+		if (gz != null)
+			Util.setGZip(Integer.valueOf(gz.trim()),
+					Integer.valueOf(get("gzip.level").trim()),
+					Integer.valueOf(get("gzip.block.kb").trim()) << 10);
+		String zstd = get("zstd.level");
+		if (zstd != null)
+			Util.setZstd(Integer.valueOf(zstd.trim()),
+					Integer.valueOf(get("zstd.threads").trim()));
 	}
 
 	/**
@@ -27,10 +27,12 @@ public interface Handler {
    *            Wiki prefix
 	 * @param title
 	 *            Article title
+	 * @param revision
+	 *            Revision id, 0 if unknown
 	 * @param text
 	 *            Article text
 	 */
-	void rawArticle(String prefix, String title, String text);
+	void rawArticle(String prefix, String title, long revision, String text);
 
 	/**
 	 * A new link was detected in an article
@@ -41,10 +43,18 @@ public interface Handler {
 	 *            Article title
 	 * @param label
 	 *            Link label
+	 * @param tokens
+	 *            Normalized tokens of the label, see {@link LabelAnalyzer}
 	 * @param target
 	 *            Link target
 	 */
-	void linkDetected(String prefix, String title, String label, String target);
+	void linkDetected(String prefix, String title, String label, String tokens, String target);
+
+	/**
+	 * Flush all pending state to the parent collectors, for a checkpoint. Only
+	 * called while the thread owning this handler is idle.
+	 */
+	void checkpoint();
 
 	/**
 	 * Processing has finished. Cleanup and close.
@@ -19,15 +19,21 @@ public class HandlerList implements Handler {
 	}
 
 	@Override
-	public void rawArticle(String prefix, String title, String text) {
+	public void rawArticle(String prefix, String title, long revision, String text) {
 		for (Handler h : handlers)
-			h.rawArticle(prefix, title, text);
+			h.rawArticle(prefix, title, revision, text);
 	}
 
 	@Override
-	public void linkDetected(String prefix, String title, String label, String target) {
+	public void linkDetected(String prefix, String title, String label, String tokens, String target) {
 		for (Handler h : handlers)
-			h.linkDetected(prefix, title, label, target);
+			h.linkDetected(prefix, title, label, tokens, target);
+	}
+
+	@Override
+	public void checkpoint() {
+		for (Handler h : handlers)
+			h.checkpoint();
 	}
 
 	@Override
@@ -0,0 +1,230 @@
+package com.github.kno10.wikipediaentities;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import com.github.kno10.wikipediaentities.util.LinkList;
+import com.github.kno10.wikipediaentities.util.RecordReader;
+import com.github.kno10.wikipediaentities.util.RecordWriter;
+import com.github.kno10.wikipediaentities.util.TitleDictionary;
+
+/**
+ * Changes of a new dump relative to the previous index, for delta updates.
+ *
+ * The index contains the title and revision id of every article. Articles of
+ * the new dump with an unchanged revision are skipped; all others are indexed
+ * again, replacing the previous version. Articles of the previous index that
+ * are not in the new dump are deleted at the end. The links output is patched,
+ * and the link text counts are corrected by removing the links of the replaced
+ * and deleted articles, which are read from the previous index.
+ */
+public class IndexDelta {
+  /** Markers for articles seen in the new dump */
+  private static final long UNCHANGED = -1, CHANGED = -2;
+
+  /** Reader of the previous index */
+  private DirectoryReader previous;
+
+  /** Title dictionary */
+  private TitleDictionary titles;
+
+  /**
+   * Previous revision of each title id, or a marker once seen; 0 if not in the
+   * previous index
+   */
+  private long[] revisions;
+
+  /** Title id of each document of the previous index, -1 if deleted */
+  private int[] docTitles;
+
+  /** Number of articles in the previous index */
+  private int size = 0;
+
+  /** Number of new articles */
+  private AtomicInteger added = new AtomicInteger();
+
+  /**
+   * Constructor.
+   *
+   * @param previous Reader of the previous index
+   * @param titles Title dictionary of the previous run, titles will be added
+   * @throws IOException on index read errors
+   */
+  public IndexDelta(DirectoryReader previous, TitleDictionary titles) throws IOException {
+    this.previous = previous;
+    this.titles = titles;
+    docTitles = new int[previous.maxDoc()];
+    Arrays.fill(docTitles, -1);
+    for(LeafReaderContext ctx : previous.leaves()) {
+      LeafReader leaf = ctx.reader();
+      Terms terms = leaf.terms(LuceneWikipediaIndexer.LUCENE_FIELD_TITLE);
+      if(terms == null)
+        continue;
+      Bits live = leaf.getLiveDocs();
+      TermsEnum te = terms.iterator();
+      PostingsEnum pe = null;
+      for(BytesRef term; (term = te.next()) != null;) {
+        final int id = titles.add(term.bytes, term.offset, term.length);
+        pe = te.postings(pe, PostingsEnum.NONE);
+        for(int d; (d = pe.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS;) {
+          if(live == null || live.get(d)) {
+            docTitles[ctx.docBase + d] = id;
+            ++size;
+          }
+        }
+      }
+    }
+    if(size == 0 && previous.numDocs() > 0)
+      throw new IOException("The previous index has no title keys, and needs to be rebuilt once.");
+    revisions = new long[titles.size()];
+    for(LeafReaderContext ctx : previous.leaves()) {
+      NumericDocValues values = ctx.reader().getNumericDocValues(LuceneWikipediaIndexer.LUCENE_FIELD_REVISION);
+      for(int d = 0, max = ctx.reader().maxDoc(); d < max; d++) {
+        final int id = docTitles[ctx.docBase + d];
+        if(id < 0)
+          continue;
+        // Without a known revision, the article is always indexed again.
+        final long rev = values != null && values.advanceExact(d) ? values.longValue() : 0;
+        revisions[id] = rev > 0 ? rev : Long.MAX_VALUE;
+      }
+    }
+    System.err.format("Previous index contains %d articles.\n", size);
+  }
+
+  /**
+   * Check whether an article needs to be indexed, and record it as seen.
+   *
+   * @param key Title, including the wiki prefix
+   * @param revision Revision id
+   * @return {@code true} if new or changed
+   */
+  public boolean changed(String key, long revision) {
+    final int id = titles.add(key); // Thread safe, unlike lookups.
+    if(id >= revisions.length || revisions[id] == 0) {
+      added.incrementAndGet();
+      return true;
+    }
+    if(revision > 0 && revisions[id] == revision) {
+      revisions[id] = UNCHANGED;
+      return false;
+    }
+    revisions[id] = CHANGED;
+    return true;
+  }
+
+  /**
+   * Check if an article of the previous index was replaced or deleted. Only
+   * valid after all articles have been seen.
+   *
+   * @param id Title id
+   * @return {@code true} when replaced or deleted
+   */
+  private boolean touched(int id) {
+    final long r = revisions[id];
+    return r != UNCHANGED && r != 0;
+  }
+
+  /**
+   * Delete the articles not seen in the new dump from the index, and remove
+   * the links of all replaced and deleted articles from the link text counts.
+   *
+   * @param indexer Lucene index
+   * @param remover Handler to remove link texts
+   * @throws IOException on index errors
+   */
+  public void finish(LuceneWikipediaIndexer indexer, Handler remover) throws IOException {
+    int unchanged = 0, changed = 0, deleted = 0;
+    for(int id = 0; id < revisions.length; id++) {
+      final long r = revisions[id];
+      if(r == UNCHANGED)
+        ++unchanged;
+      else if(r == CHANGED)
+        ++changed;
+      else if(r > 0) {
+        indexer.delete(titles.key(id));
+        ++deleted;
+      }
+    }
+    LinkList.Reader lis = new LinkList.Reader();
+    for(LeafReaderContext ctx : previous.leaves()) {
+      BinaryDocValues values = ctx.reader().getBinaryDocValues(LuceneWikipediaIndexer.LUCENE_FIELD_LINKS);
+      for(int d = 0, max = ctx.reader().maxDoc(); d < max; d++) {
+        final int id = docTitles[ctx.docBase + d];
+        if(id < 0 || !touched(id) || values == null || !values.advanceExact(d))
+          continue;
+        final String title = titles.key(id);
+        lis.reset(values.binaryValue());
+        while(lis.next()) {
+          final String tokens = lis.label(); // Stored normalized already
+          remover.linkDetected("", title, tokens, tokens, titles.key(lis.target()));
+        }
+      }
+    }
+    remover.close();
+    System.err.format("Delta: %d unchanged, %d changed, %d new, %d deleted articles.\n", unchanged, changed, added.get(), deleted);
+  }
+
+  /**
+   * Patch the links output: keep the records of unchanged articles, and append
+   * the records of the articles indexed in this run. The result is a single
+   * file, even if the previous output was kept as shards.
+   *
+   * @param out Links output of the previous run, will be replaced
+   * @param delta Links of the articles indexed in this run, as shards of this
+   *        name; will be removed
+   * @throws IOException on errors
+   */
+  public void patchLinks(String out, String delta) throws IOException {
+    System.err.format("Patching %s.\n", out);
+    final boolean sharded = !new File(out).exists();
+    final String in = sharded ? LinkCollector.shards(out) : out;
+    String tmp = sibling(out, "new");
+    try (RecordWriter writer = RecordWriter.open(tmp)) {
+      try (RecordReader r = RecordReader.open(in)) {
+        while(r.next()) {
+          final int id = titles.get(r.data(), r.offset(0), r.length(0));
+          if(id < 0 || id >= revisions.length || !touched(id))
+            r.copyTo(writer);
+        }
+      }
+      try (RecordReader r = RecordReader.open(LinkCollector.shards(delta))) {
+        while(r.next())
+          r.copyTo(writer);
+      }
+    }
+    for(File f : RecordReader.files(LinkCollector.shards(delta)))
+      f.delete();
+    if(sharded)
+      for(File f : RecordReader.files(in))
+        f.delete();
+    if(!new File(tmp).renameTo(new File(out)))
+      throw new IOException("Could not replace " + out);
+  }
+
+  /**
+   * Name of a file next to the given file, keeping the record format and codec
+   * suffix.
+   *
+   * @param fname File name
+   * @param tag Tag to insert
+   * @return File name
+   */
+  public static String sibling(String fname, String tag) {
+    final String suffix = RecordWriter.suffix(fname);
+    return fname.substring(0, fname.length() - suffix.length()) + "." + tag + suffix;
+  }
+}
@@ -0,0 +1,114 @@
+package com.github.kno10.wikipediaentities;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.LowerCaseFilter;
+import org.apache.lucene.analysis.standard.ClassicFilter;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.wikipedia.WikipediaTokenizer;
+
+import com.github.kno10.wikipediaentities.util.FastStringReader;
+
+/**
+ * Normalize link labels into their token sequence, for a single thread.
+ *
+ * The tokens are those of the Wikipedia tokenizer, with the classic and lower
+ * case filters, joined by single spaces; this is the form of the link texts and
+ * of the candidate queries. Labels repeat a lot, so the results are cached in a
+ * small LRU map.
+ */
+public class LabelAnalyzer {
+  /** Lucene Wikipedia tokenizer */
+  private WikipediaTokenizer tokenizer;
+
+  /** Filtered token stream */
+  private TokenStream stream;
+
+  /** Lucene character term attribute */
+  private CharTermAttribute termAtt;
+
+  /** Buffer for tokenization */
+  private StringBuilder buf = new StringBuilder();
+
+  /** String reader */
+  private FastStringReader reader = new FastStringReader("");
+
+  /** Recently analyzed labels */
+  private LinkedHashMap<String, String> cache;
+
+  /** Cache statistics */
+  private long hits = 0, misses = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param cacheSize Number of labels to cache
+   */
+  public LabelAnalyzer(final int cacheSize) {
+    tokenizer = new WikipediaTokenizer();
+    stream = tokenizer;
+    // stream = new PorterStemFilter(stream);
+    stream = new ClassicFilter(stream);
+    stream = new LowerCaseFilter(stream);
+    termAtt = stream.addAttribute(CharTermAttribute.class);
+    cache = new LinkedHashMap<String, String>(Math.min(cacheSize, 1 << 16), .75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+        return size() > cacheSize;
+      }
+    };
+  }
+
+  /**
+   * Normalize a label.
+   *
+   * @param label Link label
+   * @return Tokens, separated by spaces; empty if there are none
+   */
+  public String analyze(String label) {
+    String tokens = cache.get(label);
+    if(tokens != null) {
+      ++hits;
+      return tokens;
+    }
+    ++misses;
+    try {
+      buf.delete(0, buf.length());
+      tokenizer.reset();
+      tokenizer.setReader(reader.reset(label));
+      stream.reset();
+      while(stream.incrementToken()) {
+        if(termAtt.length() <= 0)
+          continue;
+        if(buf.length() > 0)
+          buf.append(' ');
+        buf.append(termAtt.buffer(), 0, termAtt.length());
+      }
+    }
+    catch(IOException e) { // Should never happen in FastStringReader
+      throw new RuntimeException(e);
+    }
+    tokens = buf.toString();
+    cache.put(label, tokens);
+    return tokens;
+  }
+
+  /**
+   * @return Number of labels found in the cache
+   */
+  public long hits() {
+    return hits;
+  }
+
+  /**
+   * @return Number of labels analyzed
+   */
+  public long misses() {
+    return misses;
+  }
+}
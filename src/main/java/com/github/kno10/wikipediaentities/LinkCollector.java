@@ -1,37 +1,130 @@
 package com.github.kno10.wikipediaentities;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 
-import com.github.kno10.wikipediaentities.util.Util;
+import com.github.kno10.wikipediaentities.util.ExternalSorter;
+import com.github.kno10.wikipediaentities.util.RecordReader;
+import com.github.kno10.wikipediaentities.util.RecordWriter;
+import com.github.kno10.wikipediaentities.util.ResumableOutput;
 
 /**
  * Collect all outgoing internal links from each Wikipedia article.
  *
+ * Each article is one record: the title, followed by label and target of each
+ * link. The record format is chosen by the file name, see {@link RecordWriter}.
+ *
+ * Every handler writes its own shard, named like the output with a shard
+ * number, e.g. links-00.rec.gz, so the parser threads do not share a lock or a
+ * compressor. Optionally, the shards are merged into a single output sorted by
+ * title when closing; otherwise they can be read with the pattern of
+ * {@link #shards}.
+ *
  * @author Erich Schubert
  */
 public class LinkCollector {
-  /** Output writer */
-  PrintStream writer;
+  /** Output file name */
+  String out;
+
+  /** Shard outputs */
+  ResumableOutput[] shards;
+
+  /** Number of shards in use by handlers */
+  int used = 0;
+
+  /** Binary record format */
+  boolean binary;
+
+  /** Buffer size for merging the shards, 0 to keep the shards */
+  int mergeBuffer;
 
   /**
    * Constructor
    *
-   * @param out Output stream
+   * @param out Output file name
+   * @param shards Number of shards, i.e., of handlers
+   * @param mergeBuffer Buffer size for merging the shards on close, 0 to keep
+   *        the shards
    * @throws IOException When output file cannot be created
    */
-  public LinkCollector(String out) throws IOException {
-    writer = Util.openOutput(out);
+  public LinkCollector(String out, int shards, int mergeBuffer) throws IOException {
+    this(out, shards, null, mergeBuffer);
+  }
+
+  /**
+   * Constructor, resuming from a checkpoint.
+   *
+   * @param out Output file name
+   * @param shards Number of shards, i.e., of handlers
+   * @param offsets Shard offsets of the checkpoint, {@code null} to start anew
+   * @param mergeBuffer Buffer size for merging the shards on close, 0 to keep
+   *        the shards
+   * @throws IOException When output file cannot be opened
+   */
+  public LinkCollector(String out, int shards, long[] offsets, int mergeBuffer) throws IOException {
+    this.out = out;
+    this.binary = RecordWriter.isBinary(out);
+    this.mergeBuffer = mergeBuffer;
+    if(offsets == null) { // Remove the shards of an earlier run
+      for(File f : RecordReader.files(shards(out)))
+        f.delete();
+      offsets = new long[0];
+    }
+    // Shards of the checkpoint are kept, even if not written anymore.
+    this.shards = new ResumableOutput[Math.max(shards, offsets.length)];
+    for(int i = 0; i < this.shards.length; i++)
+      this.shards[i] = new ResumableOutput(shard(out, i), i < offsets.length ? offsets[i] : 0);
+  }
+
+  /**
+   * File name of a shard.
+   *
+   * @param out Output file name
+   * @param i Shard number
+   * @return Shard file name
+   */
+  public static String shard(String out, int i) {
+    final String suffix = RecordWriter.suffix(out);
+    return String.format("%s-%02d%s", out.substring(0, out.length() - suffix.length()), i, suffix);
+  }
+
+  /**
+   * Pattern matching all shards, for {@link RecordReader#open}.
+   *
+   * @param out Output file name
+   * @return Shard file name pattern
+   */
+  public static String shards(String out) {
+    final String suffix = RecordWriter.suffix(out);
+    return out.substring(0, out.length() - suffix.length()) + "-[0-9][0-9]*" + suffix;
+  }
+
+  /**
+   * Write all pending output, for a checkpoint. The handlers must have been
+   * checkpointed, and must not write until the checkpoint is complete.
+   *
+   * @return Shard offsets to resume from
+   * @throws IOException on errors
+   */
+  public long[] checkpoint() throws IOException {
+    long[] offsets = new long[shards.length];
+    for(int i = 0; i < shards.length; i++)
+      offsets[i] = shards[i].checkpoint();
+    return offsets;
   }
 
   /**
    * Make handler for a single thread.
    *
-   * @return Threadsafe handler.
+   * @return Handler writing to its own shard.
    */
-  public Handler makeThreadHandler() {
-    return new LinkHandler();
+  public synchronized Handler makeThreadHandler() {
+    if(used == shards.length)
+      throw new IllegalStateException("All " + shards.length + " link output shards are in use.");
+    return new LinkHandler(shards[used++]);
   }
 
   class LinkHandler extends AbstractHandler {
@@ -41,12 +134,31 @@ public class LinkCollector {
     /** Observed link targets in current page */
     ArrayList<String> targets = new ArrayList<>();
 
+    /** Output shard of this handler */
+    ResumableOutput output;
+
+    /** Record writer */
+    RecordWriter writer;
+
+    /** Stream of the record writer */
+    PrintStream writerOut;
+
+    /**
+     * Constructor.
+     *
+     * @param output Output shard
+     */
+    LinkHandler(ResumableOutput output) {
+      this.output = output;
+    }
+
     @Override
-    public void linkDetected(String prefix, String title, String label, String target) {
+    public void linkDetected(String prefix, String title, String label, String tokens, String target) {
       if(!prefix.equals(curp) || !title.equals(cur))
         nextEntry(prefix, title);
-      targets.add(label.replace('\t', ' '));
-      targets.add(target.replace('\t', ' '));
+      // Records must remain valid lines, for merging the shards.
+      targets.add(label.replace('\t', ' ').replace('\n', ' '));
+      targets.add(target.replace('\t', ' ').replace('\n', ' '));
     }
 
     /**
@@ -56,14 +168,17 @@ public class LinkCollector {
      * @param next Next entry name
      */
     private void nextEntry(String prefix, String next) {
-      synchronized(writer) {
-        // Write and close previous entry
-        if(cur != null) {
-          writer.append(curp);
-          writer.append(cur);
+      // Write and close previous entry
+      if(cur != null) {
+        try {
+          RecordWriter writer = out();
+          writer.field(curp + cur);
           for(String s : targets)
-            writer.append('\t').append(s);
-          writer.append('\n');
+            writer.field(s);
+          writer.end();
+        }
+        catch(IOException e) {
+          throw new RuntimeException(e);
         }
       }
       curp = prefix;
@@ -71,6 +186,26 @@ public class LinkCollector {
       targets.clear();
     }
 
+    /**
+     * Get the record writer of the shard.
+     *
+     * @return Record writer, valid until the next checkpoint
+     * @throws IOException on errors
+     */
+    private RecordWriter out() throws IOException {
+      PrintStream out = output.out();
+      if(out != writerOut) {
+        writer = new RecordWriter(out, binary);
+        writerOut = out;
+      }
+      return writer;
+    }
+
+    @Override
+    public void checkpoint() {
+      nextEntry(null, null);
+    }
+
     @Override
     public void close() {
       nextEntry(null, null);
@@ -78,9 +213,47 @@ public class LinkCollector {
     }
   }
 
-  public void close() {
+  public void close() throws IOException {
     System.err.format("Closing %s output.\n", getClass().getSimpleName());
-    if(writer != System.out)
-      writer.close();
+    for(ResumableOutput shard : shards)
+      shard.close();
+    if(mergeBuffer > 0)
+      merge();
+  }
+
+  /**
+   * Merge the shards into the output, sorted by title, and remove them.
+   *
+   * @throws IOException on errors
+   */
+  private void merge() throws IOException {
+    final long start = System.currentTimeMillis();
+    long n = 0;
+    try (ExternalSorter sorter = new ExternalSorter(new File(out).getAbsoluteFile().getParentFile(), "links", '\t', mergeBuffer, false)) {
+      ExternalSorter.Buffer buffer = sorter.newBuffer();
+      byte[] line = new byte[1 << 12];
+      try (RecordReader r = RecordReader.open(shards(out))) {
+        while(r.next()) {
+          int len = 0;
+          for(int i = 0; i < r.size(); i++) {
+            final int l = r.length(i);
+            if(len + l + 1 > line.length)
+              line = Arrays.copyOf(line, Math.max(line.length << 1, len + l + 1));
+            if(i > 0)
+              line[len++] = '\t';
+            System.arraycopy(r.data(), r.offset(i), line, len, l);
+            len += l;
+          }
+          buffer.add(line, 0, len);
+        }
+      }
+      buffer.spill();
+      try (RecordWriter w = RecordWriter.open(out)) {
+        n = sorter.merge(w);
+      }
+    }
+    for(File f : RecordReader.files(shards(out)))
+      f.delete();
+    System.err.format("Merged %d link records into %s in %d ms.\n", n, out, System.currentTimeMillis() - start);
   }
 }
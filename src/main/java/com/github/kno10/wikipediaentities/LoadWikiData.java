@@ -2,14 +2,20 @@ package com.github.kno10.wikipediaentities;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintStream;
-import java.util.Iterator;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.kno10.wikipediaentities.util.RecordWriter;
 import com.github.kno10.wikipediaentities.util.Util;
 
 /**
@@ -18,100 +24,345 @@ import com.github.kno10.wikipediaentities.util.Util;
  * @author Erich Schubert
  */
 public class LoadWikiData {
-  private PrintStream writer;
+  /** Size of the input blocks processed in parallel */
+  private static final int BLOCK_SIZE = 1 << 20;
+
+  /** Output, the format is chosen by the file name */
+  private RecordWriter writer;
+
+  /** Number of worker threads */
+  private int par;
 
   public LoadWikiData() throws IOException
   {
     //写入到文件
     String filename = Config.get("wikidata.output");
-    writer = Util.openOutput(filename);
+    writer = RecordWriter.open(filename);
+    par = Math.min(Integer.valueOf(Config.get("parallelism")), Runtime.getRuntime().availableProcessors());
   }
 
+  /**
+   * Load the dump.
+   *
+   * @param fname Dump file name
+   * @param wikis Wikis to extract
+   * @throws IOException on errors
+   */
   public void load(String fname, String... wikis) throws IOException {
-
+    if(par > 1) {
+      loadParallel(fname, wikis);
+      return;
+    }
     JsonFactory jackf = new JsonFactory();
     jackf.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
     try (InputStream in = Util.openInput(fname);
         JsonParser parser = jackf.createParser(in)) {
-      parser.setCodec(new ObjectMapper());
       parser.nextToken();
       assert (parser.getCurrentToken() == JsonToken.START_ARRAY);
-      parser.nextToken();
 
       StringBuilder buf = new StringBuilder();
-      buf.append("WikiDataID");
-      for(int i = 0; i < wikis.length; i++) {
-        buf.append('\t').append(wikis[i]);
-      }
-      //output
-      buf.append('\n');
-      String text = buf.toString();
-      System.out.print(text);
-      writer.append(text);
-      //limit maximum
-      //int total_lines = 0;
-
-      lines: while(parser.getCurrentToken() != JsonToken.END_ARRAY) {
-        assert (parser.getCurrentToken() == JsonToken.START_OBJECT);
-        JsonNode tree = parser.readValueAsTree();
-        JsonNode idn = tree.path("id");
-        if(!idn.isTextual()) {
+      write(header(wikis));
+
+      EntityExtractor ex = new EntityExtractor(wikis);
+      while(parser.nextToken() == JsonToken.START_OBJECT) {
+        if(!ex.read(parser)) {
           System.err.println("Skipping entry without ID. " + parser.getCurrentLocation().toString());
           continue;
         }
-        // Check for instance-of for list and category pages:
-        JsonNode claims = tree.path("claims");
-        JsonNode iof = claims.path("P31");
-        if(iof.isArray()) {
-          for(Iterator<JsonNode> it = iof.elements(); it.hasNext();) {
-            final JsonNode child = it.next();
-            JsonNode ref = child.path("mainsnak").path("datavalue").path("value").path("numeric-id");
-            if(ref.isInt()) {
-              if(ref.asInt() == 13406463) { // "Wikimedia list article"
-                continue lines;
-              }
-              if(ref.asInt() == 4167836) { // "Wikimedia category article"
-                continue lines;
-              }
-              if(ref.asInt() == 4167410) { // "Wikimedia disambiguation page"
-                continue lines;
-              }
-              // Not reliable: if(ref.asInt() == 14204246) { // "Wikimedia
-              // project page"
-            }
+        buf.setLength(0);
+        if(ex.format(buf))
+          write(buf.toString());
+      }
+      writer.close();
+    }//end try
+  }
+
+  /**
+   * Load the dump in parallel.
+   *
+   * Wikidata dumps contain one entity per line. The input is read in blocks of
+   * whole lines, which are parsed by a pool of workers; the results are
+   * written in input order.
+   *
+   * @param fname Dump file name
+   * @param wikis Wikis to extract
+   * @throws IOException on errors
+   */
+  private void loadParallel(String fname, final String[] wikis) throws IOException {
+    final JsonFactory jackf = new JsonFactory();
+    write(header(wikis));
+    ExecutorService pool = Executors.newFixedThreadPool(par);
+    ArrayDeque<Future<String>> pending = new ArrayDeque<>();
+    try (InputStream in = Util.openInput(fname)) {
+      byte[] buf = new byte[BLOCK_SIZE];
+      for(int len = 0, r = 0; r >= 0;) {
+        r = in.read(buf, len, buf.length - len);
+        if(r > 0 && (len += r) < buf.length)
+          continue;
+        // Cut after the last complete line, unless at the end.
+        int end = len;
+        if(r >= 0) {
+          while(end > 0 && buf[end - 1] != '\n')
+            --end;
+          if(end == 0) { // Very long line
+            buf = Arrays.copyOf(buf, buf.length << 1);
+            continue;
           }
         }
-        //buf.setLength(0);
-        buf.delete(0, buf.length());
-        buf.append(idn.asText());
-        JsonNode sl = tree.path("sitelinks");
-        boolean good = false;
-        for(int i = 0; i < wikis.length; i++) {
-          JsonNode wln = sl.path(wikis[i]).path("title");
-          buf.append('\t');
-          if(wln.isTextual()) {
-            buf.append(wln.asText());
-            good |= true;
+        final byte[] block = Arrays.copyOf(buf, end);
+        System.arraycopy(buf, end, buf, 0, len - end);
+        len -= end;
+        pending.add(pool.submit(new Callable<String>() {
+          @Override
+          public String call() throws IOException {
+            return process(jackf, block, wikis);
           }
+        }));
+        while(pending.size() > par << 2)
+          write(pending.poll().get());
+      }
+      while(!pending.isEmpty())
+        write(pending.poll().get());
+    }
+    catch(InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+    catch(ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+    finally {
+      pool.shutdownNow();
+    }
+    writer.close();
+  }
+
+  /**
+   * Process a block of entity lines.
+   *
+   * @param jackf JSON factory
+   * @param block Block of complete lines
+   * @param wikis Wikis to extract
+   * @return Output lines
+   * @throws IOException on parse errors
+   */
+  private static String process(JsonFactory jackf, byte[] block, String[] wikis) throws IOException {
+    EntityExtractor ex = new EntityExtractor(wikis);
+    StringBuilder buf = new StringBuilder();
+    for(int s = 0, e; s < block.length; s = e + 1) {
+      e = s;
+      while(e < block.length && block[e] != '\n')
+        ++e;
+      // Skip the array brackets, and empty lines.
+      int b = s;
+      while(b < e && block[b] != '{' && block[b] != '[' && block[b] != ']')
+        ++b;
+      if(b == e || block[b] != '{')
+        continue;
+      try (JsonParser parser = jackf.createParser(block, b, e - b)) {
+        parser.nextToken();
+        if(!ex.read(parser)) {
+          System.err.println("Skipping entry without ID.");
+          continue;
         }
-        if(good) {
-          buf.append('\n');
-          text = buf.toString();
-          System.out.print(text);
-          writer.append(text);
-          /*
-          total_lines++;
-          if (total_lines > 10000)
-          {
-            break;
+      }
+      final int mark = buf.length();
+      if(!ex.format(buf))
+        buf.setLength(mark);
+    }
+    return buf.toString();
+  }
+
+  /**
+   * Write formatted lines as records.
+   *
+   * @param lines Tab-separated lines
+   * @throws IOException on errors
+   */
+  private void write(String lines) throws IOException {
+    byte[] b = lines.getBytes(StandardCharsets.UTF_8);
+    for(int s = 0, e; s < b.length; s = e + 1) {
+      e = s;
+      while(e < b.length && b[e] != '\n')
+        ++e;
+      writer.split(b, s, e - s, (byte) '\t');
+    }
+  }
+
+  /**
+   * Format the output header.
+   *
+   * @param wikis Wikis to extract
+   * @return Header line
+   */
+  private static String header(String[] wikis) {
+    StringBuilder buf = new StringBuilder();
+    buf.append("WikiDataID");
+    for(int i = 0; i < wikis.length; i++) {
+      buf.append('\t').append(wikis[i]);
+    }
+    //output
+    buf.append('\n');
+    return buf.toString();
+  }
+
+  /**
+   * Streaming extraction of the fields used from a Wikidata entity: the id,
+   * the instance-of (P31) claims, and the titles of the requested sitelinks.
+   *
+   * All other fields are skipped on the token level, without building trees;
+   * only the id and the titles found are allocated as strings.
+   */
+  static class EntityExtractor {
+    /** Path to the item id of a claim */
+    private static final String[] CLAIM_ITEM = { "mainsnak", "datavalue", "value", "numeric-id" };
+
+    /** Wikis to extract */
+    private String[] wikis;
+
+    /** Entity id */
+    private String id;
+
+    /** Sitelink titles */
+    private String[] titles;
+
+    /** Entity is a list, category or disambiguation page */
+    private boolean excluded;
+
+    /**
+     * Constructor.
+     *
+     * @param wikis Wikis to extract
+     */
+    EntityExtractor(String... wikis) {
+      this.wikis = wikis;
+      this.titles = new String[wikis.length];
+    }
+
+    /**
+     * Read an entity object.
+     *
+     * @param p Parser, at the start of the object; will be at its end.
+     * @return {@code false} if the entity has no id
+     * @throws IOException on parse errors
+     */
+    boolean read(JsonParser p) throws IOException {
+      id = null;
+      excluded = false;
+      Arrays.fill(titles, null);
+      while(p.nextToken() == JsonToken.FIELD_NAME) {
+        final String field = p.getCurrentName();
+        final JsonToken t = p.nextToken();
+        if(t == JsonToken.VALUE_STRING && "id".equals(field))
+          id = p.getText();
+        else if(t == JsonToken.START_OBJECT && "claims".equals(field))
+          readClaims(p);
+        else if(t == JsonToken.START_OBJECT && "sitelinks".equals(field))
+          readSitelinks(p);
+        else
+          p.skipChildren();
+      }
+      return id != null;
+    }
+
+    /**
+     * Read the claims, checking instance-of for list and category pages.
+     *
+     * @param p Parser, at the start of the object
+     * @throws IOException on parse errors
+     */
+    private void readClaims(JsonParser p) throws IOException {
+      while(p.nextToken() == JsonToken.FIELD_NAME) {
+        final boolean iof = "P31".equals(p.getCurrentName());
+        if(p.nextToken() != JsonToken.START_ARRAY || !iof) {
+          p.skipChildren();
+          continue;
+        }
+        for(JsonToken t; (t = p.nextToken()) != JsonToken.END_ARRAY;) {
+          if(t != JsonToken.START_OBJECT) {
+            p.skipChildren();
+            continue;
           }
-           */
+          final int ref = readItem(p, 0);
+          if(ref == 13406463 // "Wikimedia list article"
+              || ref == 4167836 // "Wikimedia category article"
+              || ref == 4167410) { // "Wikimedia disambiguation page"
+            excluded = true;
+          }
+          // Not reliable: 14204246 "Wikimedia project page"
         }
-        parser.nextToken();
-      }//end while
-      writer.flush();
-      writer.close();
-    }//end try
+      }
+    }
+
+    /**
+     * Read the item id of a claim.
+     *
+     * @param p Parser, at the start of an object
+     * @param depth Depth in {@link #CLAIM_ITEM}
+     * @return Item id, -1 if none
+     * @throws IOException on parse errors
+     */
+    private int readItem(JsonParser p, int depth) throws IOException {
+      int item = -1;
+      while(p.nextToken() == JsonToken.FIELD_NAME) {
+        final boolean match = CLAIM_ITEM[depth].equals(p.getCurrentName());
+        final JsonToken t = p.nextToken();
+        if(match && depth + 1 < CLAIM_ITEM.length && t == JsonToken.START_OBJECT)
+          item = readItem(p, depth + 1);
+        else if(match && depth + 1 == CLAIM_ITEM.length && t == JsonToken.VALUE_NUMBER_INT && p.getNumberType() == JsonParser.NumberType.INT)
+          item = p.getIntValue();
+        else
+          p.skipChildren();
+      }
+      return item;
+    }
+
+    /**
+     * Read the titles of the requested sitelinks.
+     *
+     * @param p Parser, at the start of the object
+     * @throws IOException on parse errors
+     */
+    private void readSitelinks(JsonParser p) throws IOException {
+      while(p.nextToken() == JsonToken.FIELD_NAME) {
+        final String site = p.getCurrentName();
+        int i = 0;
+        while(i < wikis.length && !wikis[i].equals(site))
+          ++i;
+        if(p.nextToken() != JsonToken.START_OBJECT || i == wikis.length) {
+          p.skipChildren();
+          continue;
+        }
+        while(p.nextToken() == JsonToken.FIELD_NAME) {
+          final boolean title = "title".equals(p.getCurrentName());
+          if(p.nextToken() == JsonToken.VALUE_STRING && title)
+            titles[i] = p.getText();
+          else
+            p.skipChildren();
+        }
+      }
+    }
+
+    /**
+     * Format the output line of the last entity read.
+     *
+     * @param buf Output buffer
+     * @return {@code false} if the entity is excluded, or has no sitelinks
+     */
+    boolean format(StringBuilder buf) {
+      if(excluded)
+        return false;
+      buf.append(id);
+      boolean good = false;
+      for(String title : titles) {
+        buf.append('\t');
+        if(title != null) {
+          buf.append(title);
+          good = true;
+        }
+      }
+      buf.append('\n');
+      return good;
+    }
   }
 
   public static void main(String[] args) {
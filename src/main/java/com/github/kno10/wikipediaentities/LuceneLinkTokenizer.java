@@ -1,45 +1,84 @@
 package com.github.kno10.wikipediaentities;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.PrintStream;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.List;
 
-import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.core.LowerCaseFilter;
-import org.apache.lucene.analysis.standard.ClassicFilter;
-import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
-import org.apache.lucene.analysis.wikipedia.WikipediaTokenizer;
-
-import com.github.kno10.wikipediaentities.util.FastStringReader;
-import com.github.kno10.wikipediaentities.util.Util;
+import com.github.kno10.wikipediaentities.util.CountMinSketch;
+import com.github.kno10.wikipediaentities.util.PartitionedCounter;
+import com.github.kno10.wikipediaentities.util.RecordReader;
+import com.github.kno10.wikipediaentities.util.RecordWriter;
 
 import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
-import it.unimi.dsi.fastutil.objects.ObjectIterator;
 
 /**
- * Tokenize link texts seen in Wikipedia, to build a list of common link titles.
- * Count how often each target occurs.
+ * Count the link texts seen in Wikipedia, to build a list of common link
+ * titles. The link texts are the normalized tokens of the labels, as given by
+ * the {@link LabelAnalyzer} of the indexer.
+ *
+ * Every handler counts in a small map of its own, which is added to shared
+ * counters partitioned by hash range when it grows large, see
+ * {@link PartitionedCounter}; counts beyond the memory budget are spilled to
+ * sorted runs next to the output.
+ *
+ * Optionally, a shared {@link CountMinSketch} absorbs the first sightings of
+ * each label, and a label only gets an exact counter once its estimate reaches
+ * {@link #MINSUPP}. Labels seen fewer times, the vast majority, then never take
+ * memory in the counters. As the estimate never is too low, at most MINSUPP-1
+ * sightings of a label are absorbed, and are added back as such; so no label
+ * with enough support is lost, and counts are too high by at most MINSUPP-1.
+ * A label seen less often is only kept if the sketch overestimates it.
  *
  * @author Erich Schubert
  */
 public class LuceneLinkTokenizer {
-  /** Link text */
-  Object2IntOpenHashMap<String> links = new Object2IntOpenHashMap<>();
+  /** Link text counts */
+  PartitionedCounter links;
 
   /** Output file name */
   private String out;
 
+  /** Number of threads for the final merge */
+  private int threads;
+
   /** Minimum support to report */
   static final int MINSUPP = 3;
 
+  /** Number of link texts per handler before adding to the shared counts */
+  static final int LOCAL_SIZE = 1 << 16;
+
+  /** Sketch for first sightings, may be {@code null} */
+  CountMinSketch sketch;
+
+  /** Sightings absorbed by the sketch */
+  long absorbed = 0;
+
+  /** First sightings in the sketch, and their total length */
+  long firsts = 0, firstChars = 0;
+
   /**
    * Constructor
    *
    * @param out Output file name
+   * @param threads Number of threads for the final merge
+   * @param budget Memory budget for the counts, in bytes
+   * @param sketchBytes Memory for the sketch of first sightings, 0 to count
+   *        all labels exactly
    */
-  public LuceneLinkTokenizer(String out) {
+  public LuceneLinkTokenizer(String out, int threads, long budget, long sketchBytes) {
     this.out = out;
+    this.threads = threads;
+    this.links = new PartitionedCounter(new File(out).getAbsoluteFile().getParentFile(), "linktext", budget);
+    this.sketch = sketchBytes > 0 ? new CountMinSketch(sketchBytes, 4) : null;
+  }
+
+  /**
+   * Count offset for the sightings absorbed by the sketch.
+   *
+   * @return Offset
+   */
+  private int offset() {
+    return sketch != null ? MINSUPP - 1 : 0;
   }
 
   /**
@@ -48,98 +87,185 @@ public class LuceneLinkTokenizer {
    * @return Threadsafe handler.
    */
   public Handler makeThreadHandler() {
-    return new LinkHandler();
+    return new LinkHandler(1);
+  }
+
+  /**
+   * Make a handler removing the counts of the links it is given, e.g., of
+   * articles that have been changed or deleted since the counts were saved.
+   * Cannot be used with the sketch.
+   *
+   * @return Handler for a single thread.
+   */
+  public Handler makeRemovalHandler() {
+    if(sketch != null)
+      throw new IllegalStateException("Counts cannot be removed from the sketch.");
+    return new LinkHandler(-1);
   }
 
   class LinkHandler extends AbstractHandler {
     /** Link texts */
     Object2IntOpenHashMap<String> links = new Object2IntOpenHashMap<>();
 
-    /** Lucene Wikipedia tokenizer */
-    WikipediaTokenizer tokenizer;
-
-    /** Filtered token stream */
-    TokenStream stream;
+    /** Count to add per link */
+    int weight;
 
-    /** Lucene character term attribute */
-    CharTermAttribute termAtt;
+    /** Sightings absorbed by the sketch */
+    long absorbed = 0;
 
-    /** Buffer for tokenization */
-    StringBuilder buf = new StringBuilder();
+    /** First sightings in the sketch, and their total length */
+    long firsts = 0, firstChars = 0;
 
-    /** String reader */
-    FastStringReader reader = new FastStringReader("");
-
-    public LinkHandler() {
-      tokenizer = new WikipediaTokenizer();
-      stream = tokenizer;
-      // stream = new PorterStemFilter(stream);
-      stream = new ClassicFilter(stream);
-      stream = new LowerCaseFilter(stream);
-      termAtt = stream.addAttribute(CharTermAttribute.class);
+    /**
+     * Constructor.
+     *
+     * @param weight Count to add per link
+     */
+    public LinkHandler(int weight) {
+      this.weight = weight;
     }
 
     @Override
-    public void linkDetected(String prefix, String title, String label, String target) {
-      // Normalize the link text.
-      try {
-        buf.delete(0, buf.length());
-        tokenizer.reset();
-        tokenizer.setReader(reader.reset(label));
-        stream.reset();
-        while(stream.incrementToken()) {
-          if(termAtt.length() <= 0)
-            continue;
-          if(buf.length() > 0)
-            buf.append(' ');
-          buf.append(termAtt.buffer(), 0, termAtt.length());
+    public void linkDetected(String prefix, String title, String label, String tokens, String target) {
+      if(tokens.isEmpty())
+        return;
+      if(sketch != null && !links.containsKey(tokens)) {
+        final int est = sketch.add(tokens);
+        if(est == 1) {
+          ++firsts;
+          firstChars += tokens.length();
         }
-        if(buf.length() == 0)
+        if(est < MINSUPP) {
+          ++absorbed;
           return;
-        label = buf.toString();
-        links.addTo(label, 1);
+        }
       }
-      catch(IOException e) { // Should never happen in FastStringReader
-        e.printStackTrace();
+      links.addTo(tokens, weight);
+      if(links.size() >= LOCAL_SIZE)
+        flush();
+    }
+
+    /**
+     * Add the counts of this handler to the shared counts.
+     */
+    private void flush() {
+      try {
+        LuceneLinkTokenizer.this.links.addAll(links);
+      }
+      catch(IOException e) {
+        throw new RuntimeException(e);
       }
+      links.clear();
+    }
+
+    @Override
+    public void checkpoint() {
+      flush();
     }
 
     @Override
     public void close() {
+      flush();
+      links = null;
       synchronized(LuceneLinkTokenizer.this) {
-        Object2IntOpenHashMap<String> plinks = LuceneLinkTokenizer.this.links;
-        if(plinks.size() == 0) {
-          LuceneLinkTokenizer.this.links = links;
-        }
-        else {
-          for(ObjectIterator<Object2IntOpenHashMap.Entry<String>> it = links.object2IntEntrySet().fastIterator(); it.hasNext();) {
-            Object2IntOpenHashMap.Entry<String> ent = it.next();
-            plinks.addTo(ent.getKey(), ent.getIntValue());
-          }
-        }
-        links = null;
+        LuceneLinkTokenizer.this.absorbed += absorbed;
+        LuceneLinkTokenizer.this.firsts += firsts;
+        LuceneLinkTokenizer.this.firstChars += firstChars;
+      }
+    }
+  }
+
+  /**
+   * Save the link text counts collected so far, for a later delta update.
+   * With the sketch, only the labels with an exact counter are saved, and the
+   * counts include the offset of the absorbed sightings; the first record, with
+   * an empty label, then marks them as not usable for delta updates.
+   *
+   * @param fname File name
+   * @throws IOException on errors
+   */
+  public synchronized void save(String fname) throws IOException {
+    try (RecordWriter writer = RecordWriter.open(fname)) {
+      if(sketch != null)
+        writer.write("", "sketch", Integer.toString(offset()));
+      links.save(writer, 1, offset());
+    }
+  }
+
+  /**
+   * Save the link text counts added since the last checkpoint, or all counts,
+   * and the sketch, for resuming from a checkpoint. The handlers must have been
+   * checkpointed.
+   *
+   * @param fname File name
+   * @param sketchName File name for the sketch
+   * @param full Save all counts, not only those since the last checkpoint
+   * @throws IOException on errors
+   */
+  public synchronized void checkpoint(String fname, String sketchName, boolean full) throws IOException {
+    try (RecordWriter writer = RecordWriter.open(fname)) {
+      links.checkpoint(writer, full);
+    }
+    if(sketch != null)
+      sketch.save(sketchName);
+  }
+
+  /**
+   * Load the link text counts of a previous run, which must have counted all
+   * labels exactly.
+   *
+   * @param fname File name
+   * @throws IOException on errors, or if the counts were saved with the sketch
+   */
+  public synchronized void load(String fname) throws IOException {
+    if(sketch != null)
+      throw new IOException("Saved counts cannot be loaded into the sketch.");
+    try (RecordReader r = RecordReader.open(fname)) {
+      while(r.next()) {
+        if(r.get(0).isEmpty())
+          throw new IOException("The link text counts in " + fname + " are approximate, as the previous run used linktext.sketch.mb > 0; rerun the full parse without the sketch to allow delta updates.");
+        links.add(r.get(0), Integer.parseInt(r.get(r.size() - 1)));
       }
     }
   }
 
+  /**
+   * Load the link text counts and the sketch of a checkpoint.
+   *
+   * @param fnames Files of the counts, as written by {@link #checkpoint} since
+   *        the last full save, in order
+   * @param sketchName File name of the sketch
+   * @throws IOException on errors
+   */
+  public synchronized void restore(List<String> fnames, String sketchName) throws IOException {
+    if(sketch != null)
+      sketch.load(sketchName);
+    for(String fname : fnames)
+      try (RecordReader r = RecordReader.open(fname)) {
+        while(r.next())
+          links.add(r.get(0), Integer.parseInt(r.get(1)));
+      }
+    links.checkpoint(null, false); // Already saved
+  }
+
   public void close() throws IOException {
     System.err.format("Closing %s output.\n", getClass().getSimpleName());
-    PrintStream writer = Util.openOutput(out);
     // We sort everything here. This is expensive, but makes the output
     // files nicer to use in the future.
-    ArrayList<String> keys = new ArrayList<>(links.size());
-    for(ObjectIterator<Object2IntOpenHashMap.Entry<String>> it = links.object2IntEntrySet().fastIterator(); it.hasNext();) {
-      Object2IntOpenHashMap.Entry<String> ent = it.next();
-      if(ent.getIntValue() >= MINSUPP) {
-        keys.add(ent.getKey());
-      }
+    final long start = System.currentTimeMillis();
+    try (RecordWriter writer = RecordWriter.open(out)) {
+      final long n = links.frequent(writer, MINSUPP - offset(), threads);
+      System.err.format("Wrote %d link texts in %d ms.\n", n, System.currentTimeMillis() - start);
     }
-    Collections.sort(keys);
-    for(String key : keys) {
-      writer.append(key);
-      writer.append('\n');
+    links.close();
+    if(sketch != null) {
+      final long exact = links.distinct(), saved = Math.max(firsts - exact, 0);
+      System.err.format("Sketch: %d x %d counters (%.1f MB), %d sightings, %d absorbed.\n", //
+          sketch.depth(), sketch.width(), sketch.bytes() / 1048576., sketch.total(), absorbed);
+      System.err.format("Sketch: %d labels counted exactly, about %d more never promoted, saving about %.1f MB of counters.\n", //
+          exact, saved, saved * (64. + 2. * firstChars / Math.max(firsts, 1)) / 1048576.);
+      System.err.format("Sketch: counts are too high by at most %d; estimates exceed by %.1f with probability %.2g, a label seen once is kept with probability at most %.2g.\n", //
+          offset(), sketch.errorBound(), Math.exp(-sketch.depth()), sketch.overestimateProbability(MINSUPP - 1));
     }
-    if(writer != System.out)
-      writer.close();
   }
 }
@@ -3,10 +3,10 @@ package com.github.kno10.wikipediaentities;
 import java.io.IOException;
 import java.nio.file.FileSystems;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.core.LowerCaseFilter;
@@ -14,15 +14,34 @@ import org.apache.lucene.analysis.standard.ClassicFilter;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.wikipedia.WikipediaTokenizer;
+import org.apache.lucene.codecs.lucene50.Lucene50StoredFieldsFormat;
+import org.apache.lucene.codecs.lucene70.Lucene70Codec;
+import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.KeepOnlyLastCommitDeletionPolicy;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.SnapshotDeletionPolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TieredMergePolicy;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.BytesRefBuilder;
 
 import com.github.kno10.wikipediaentities.util.FastStringReader;
-import com.github.kno10.wikipediaentities.util.Util;
+import com.github.kno10.wikipediaentities.util.LinkList;
+import com.github.kno10.wikipediaentities.util.TitleDictionary;
 
 /**
  * Class to load Wikipedia articles into a Lucene index.
@@ -36,25 +55,185 @@ public class LuceneWikipediaIndexer {
   /** Lucene field name for title */
   public static final String LUCENE_FIELD_TITLE = "c";
 
-  /** Lucene field name for the links */
+  /** Lucene field name for the links, binary doc values, see {@link LinkList} */
   public static final String LUCENE_FIELD_LINKS = "l";
 
+  /** Lucene field name for the revision id, numeric doc values */
+  public static final String LUCENE_FIELD_REVISION = "r";
+
+  /**
+   * Minimal field type for the text: we only run phrase queries, so we need
+   * positions, but neither norms nor offsets.
+   */
+  public static final FieldType BULK_TEXT_TYPE = new FieldType();
+
+  static {
+    BULK_TEXT_TYPE.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS);
+    BULK_TEXT_TYPE.setOmitNorms(true);
+    BULK_TEXT_TYPE.setTokenized(true);
+    BULK_TEXT_TYPE.freeze();
+  }
+
   /** Lucene index writer */
   private IndexWriter index;
   private FSDirectory ldir;
 
+  /** Title dictionary, for encoding link targets */
+  private TitleDictionary titles;
+
+  /** Field type for the text */
+  private FieldType textType = TextField.TYPE_NOT_STORED;
+
+  /** Force merge to this many segments on close (0: do not merge) */
+  private int forceMerge = 0;
+
+  /** Read the index once after closing, to warm the page cache */
+  private boolean warm = false;
+
+  /** Profile name, for reporting */
+  private String profile;
+
+  /** Start time */
+  private long start = System.currentTimeMillis();
+
+  /** Replace documents with the same title, when adding to an existing index */
+  private boolean append;
+
+  /** Deletion policy, to keep the previous commit readable */
+  private SnapshotDeletionPolicy snapshots;
+
+  /** Snapshot of the previous commit, may be {@code null} */
+  private IndexCommit snapshot;
+
+  /** Reader of the previous commit, may be {@code null} */
+  private DirectoryReader previous;
+
+  /** Labels found in the caches of the label analyzers, and labels analyzed */
+  private long labelHits = 0, labelMisses = 0;
+
   /**
-   * Constructor
+   * Constructor, using the Lucene defaults.
    *
    * @param dir Directory for Lucene index.
+   * @param titles Title dictionary, for encoding link targets
    * @throws IOException on errors opening the lucene index
    */
-  public LuceneWikipediaIndexer(String dir) throws IOException {
+  public LuceneWikipediaIndexer(String dir, TitleDictionary titles) throws IOException {
+    this(dir, "default", titles);
+  }
+
+  /**
+   * Constructor.
+   *
+   * The "bulk" profile is tuned for building the index from scratch: large
+   * RAM buffer, concurrent merges, no compound files, a minimal text field
+   * type, and stored fields compressed for speed. Its settings are read from
+   * the {@code indexer.*} configuration properties.
+   *
+   * @param dir Directory for Lucene index.
+   * @param profile Indexing profile, "default" or "bulk"
+   * @param titles Title dictionary, for encoding link targets
+   * @throws IOException on errors opening the lucene index
+   */
+  public LuceneWikipediaIndexer(String dir, String profile, TitleDictionary titles) throws IOException {
+    this(dir, profile, titles, false);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param dir Directory for Lucene index.
+   * @param profile Indexing profile, "default" or "bulk"
+   * @param titles Title dictionary, for encoding link targets
+   * @param append Add to the last commit of an existing index; documents
+   *        replace those with the same title
+   * @throws IOException on errors opening the lucene index
+   */
+  public LuceneWikipediaIndexer(String dir, String profile, TitleDictionary titles, boolean append) throws IOException {
+    this.profile = profile;
+    this.append = append;
+    this.titles = titles;
     ldir = FSDirectory.open(FileSystems.getDefault().getPath(dir));
     IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
+    if("bulk".equals(profile)) {
+      config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+      config.setRAMBufferSizeMB(Double.parseDouble(Config.get("indexer.ram.mb").trim()));
+      config.setMaxBufferedDocs(IndexWriterConfig.DISABLE_AUTO_FLUSH);
+      config.setUseCompoundFile(false);
+      int threads = Integer.parseInt(Config.get("indexer.merge.threads").trim());
+      ConcurrentMergeScheduler cms = new ConcurrentMergeScheduler();
+      cms.setMaxMergesAndThreads(threads + 2, threads);
+      config.setMergeScheduler(cms);
+      TieredMergePolicy tmp = new TieredMergePolicy();
+      tmp.setSegmentsPerTier(20);
+      tmp.setMaxMergeAtOnce(20);
+      tmp.setNoCFSRatio(0.);
+      config.setMergePolicy(tmp);
+      config.setCodec(new Lucene70Codec("compression".equals(Config.get("indexer.storedfields")) ? //
+          Lucene50StoredFieldsFormat.Mode.BEST_COMPRESSION : Lucene50StoredFieldsFormat.Mode.BEST_SPEED));
+      textType = BULK_TEXT_TYPE;
+      forceMerge = Integer.parseInt(Config.get("indexer.forcemerge").trim());
+      warm = Boolean.parseBoolean(Config.get("indexer.warm").trim());
+    }
+    else if(!"default".equals(profile)) {
+      throw new RuntimeException("Unknown indexer profile: " + profile);
+    }
+    if(append) {
+      config.setOpenMode(IndexWriterConfig.OpenMode.APPEND);
+      config.setIndexDeletionPolicy(snapshots = new SnapshotDeletionPolicy(new KeepOnlyLastCommitDeletionPolicy()));
+    }
     index = new IndexWriter(ldir, config);
   }
 
+  /**
+   * Open a reader on the index as it was when opened for appending. It remains
+   * valid until the indexer is closed.
+   *
+   * @return Reader
+   * @throws IOException on errors
+   */
+  public DirectoryReader openPrevious() throws IOException {
+    if(previous == null) {
+      snapshot = snapshots.snapshot();
+      previous = DirectoryReader.open(snapshot);
+    }
+    return previous;
+  }
+
+  /**
+   * Delete the document with the given title.
+   *
+   * @param title Title, including the wiki prefix
+   * @throws IOException on errors
+   */
+  public void delete(String title) throws IOException {
+    index.deleteDocuments(new Term(LUCENE_FIELD_TITLE, title));
+  }
+
+  /**
+   * Commit the index, with user data identifying a checkpoint.
+   *
+   * @param data Commit user data
+   * @throws IOException on errors
+   */
+  public void commit(Map<String, String> data) throws IOException {
+    index.setLiveCommitData(data.entrySet());
+    index.commit();
+  }
+
+  /**
+   * Get the user data of the last commit of an index.
+   *
+   * @param dir Index directory
+   * @return Commit user data
+   * @throws IOException on errors
+   */
+  public static Map<String, String> lastCommitData(String dir) throws IOException {
+    try (FSDirectory d = FSDirectory.open(FileSystems.getDefault().getPath(dir))) {
+      return SegmentInfos.readLatestCommit(d).getUserData();
+    }
+  }
+
   /**
    * Make handler for a single thread.
    *
@@ -62,7 +241,7 @@ public class LuceneWikipediaIndexer {
    * @return Threadsafe handler.
    */
   public Handler makeThreadHandler(Handler handler) {
-    return new IndexHandler(handler);
+    return new IndexHandler(handler, Integer.parseInt(Config.get("labels.cache").trim()));
   }
 
   /**
@@ -77,19 +256,14 @@ public class LuceneWikipediaIndexer {
     /** Filtered token stream */
     private TokenStream stream;
 
-    /** Patterns to strip from the wiki text */
-    private Matcher stripBasics = Pattern.compile("(<!--.*?-->|<math>(.*?)</math>|</?su[bp]>|^\\s*__\\w+__\\s*$)", Pattern.CASE_INSENSITIVE | Pattern.MULTILINE).matcher("");
+    /** Wiki text lexer */
+    private WikiTextLexer lexer = new WikiTextLexer();
 
-    /** Pattern to strip all templates, as we cannot reasonably parse them */
-    private Matcher stripTemplates = Pattern.compile("\\{\\{([^}{]*?)\\}\\}").matcher("");
+    /** Links found by the lexer */
+    private ArrayList<String> found = new ArrayList<>();
 
-    /** Match links, which are not nested. */
-    // too much backtracking: private Matcher linkMatcher =
-    // Pattern.compile("\\[\\[\\s*([^\\]\\[\\|]*?)(?:\\s*#.*?)?(?:(?:\\s*\\|\\s*[^\\]\\[\\#\\|]*)*\\s*\\|([^\\]\\[\\#\\|]+))?\\s*\\]\\]").matcher("");
-    private Matcher linkMatcher = Pattern.compile("\\[\\[\\s*([^\\]\\[\\|]*?)(?:\\s*#.*?)?(?:\\s*\\|(?:[^\\]\\[\\#\\|]*\\|)?\\s*([^\\]\\[\\#\\|]+))?\\s*\\]\\]").matcher("");
-
-    /** More cruft to remove */
-    private Matcher stripCruft = Pattern.compile("(?:<ref(?:[^<]*</ref|\\s+name\\s*=\\s*[^<]*|[^<]*/>)>|\\{\\|(.*?)\\|\\}|^ *\\*+|\\[\\[(?:([^\\]\\[]*)\\s*\\|\\s*)?([^\\]\\[]*)\\]\\])", Pattern.CASE_INSENSITIVE).matcher("");
+    /** Analyzer for the link labels */
+    private LabelAnalyzer analyzer;
 
     /** Handler to send link detected events to. */
     Handler handler;
@@ -98,9 +272,10 @@ public class LuceneWikipediaIndexer {
      * Constructor
      *
      * @param handler Handlers for detected links.
-     * @throws IOException on errors opening the Lucene index
+     * @param cacheSize Number of labels to cache in the label analyzer
      */
-    public IndexHandler(Handler handler) {
+    public IndexHandler(Handler handler, int cacheSize) {
+      analyzer = new LabelAnalyzer(cacheSize);
       Set<String> skip = new HashSet<>();
       skip.add(WikipediaTokenizer.EXTERNAL_LINK_URL);
       stream = tokenizer = new WikipediaTokenizer(WikipediaTokenizer.TOKENS_ONLY, skip);
@@ -110,76 +285,41 @@ public class LuceneWikipediaIndexer {
       this.handler = handler;
     }
 
-    StringBuilder buf = new StringBuilder();
+    /** Buffer for encoding the links */
+    BytesRefBuilder buf = new BytesRefBuilder();
 
     FastStringReader reader = new FastStringReader("");
 
     @Override
-    public void rawArticle(String prefix, String title, String intext) {
-      CharSequence text = intext;
-      // System.err.print(title + ": ");
-      stripBasics.reset(text);
-      text = stripBasics.replaceAll("");
-      for(int i = 0; i < 4; i++) {
-        stripTemplates.reset(text);
-        String text2 = stripTemplates.replaceAll("");
-        if(text2.equals(text))
-          break; // No more changes
-        text = text2;
-      }
-      { // Parse, and replace links with their text only:
-        buf.setLength(0); // clear
-        int pos = 0;
-        linkMatcher.reset(text);
-        while(linkMatcher.find()) {
-          buf.append(text, pos, linkMatcher.start());
-          String targ = linkMatcher.group(1);
-          if(targ == null || targ.length() == 0) {
-            buf.append(linkMatcher.group(2));
-            pos = linkMatcher.end();
-            continue; // Internal link.
-          }
-          targ = Util.normalizeLink(targ);
-          if(targ == null || targ.length() == 0) {
-            System.err.println(linkMatcher.group(0));
-            continue;
-          }
-          final String[] spl = targ.split(":");
-          String targl = spl.length > 0 ? spl[0].trim() : targ;
-          if(targ.charAt(0) == ':' || "file".equalsIgnoreCase(targl) || "wikisource".equalsIgnoreCase(targl) //
-          || "category".equalsIgnoreCase(targl) || "kategorie".equalsIgnoreCase(targl) //
-          || "catégorie".equalsIgnoreCase(targl) || "categoría".equalsIgnoreCase(targl) //
-          || "wikipedia".equalsIgnoreCase(targl) || "commons".equalsIgnoreCase(targl) || "image".equalsIgnoreCase(targl)//
-          || "fichier".equalsIgnoreCase(targl) || "datei".equalsIgnoreCase(targl) || "bild".equalsIgnoreCase(targl) //
-          || "archivo".equalsIgnoreCase(targl) || "imagen".equalsIgnoreCase(targl))
-            continue;
-          String labl = linkMatcher.group(2);
-          if(labl == null)
-            labl = targ;
-          labl = labl.replace('\n', ' ').trim();
-          targ = prefix + targ;
-          if(addLink(targ, labl))
-            handler.linkDetected(prefix, title, labl, targ);
-
-          buf.append(labl);
-          pos = linkMatcher.end();
+    public void rawArticle(String prefix, String title, long revision, String intext) {
+      found.clear();
+      String text = lexer.process(intext, found);
+      for(int i = 0; i < found.size(); i += 2) {
+        String targ = prefix + found.get(i), labl = found.get(i + 1);
+        if(addLink(targ, labl)) {
+          final String tokens = analyzer.analyze(labl);
+          encoded.add(targ);
+          encoded.add(tokens);
+          handler.linkDetected(prefix, title, labl, tokens, targ);
         }
-        buf.append(text, pos, text.length());
-        text = buf;
       }
-      stripCruft.reset(text);
-      text = stripCruft.replaceAll(""); // Converts to string!
 
       try {
         Document doc = new Document();
-        doc.add(new StoredField(LUCENE_FIELD_TITLE, prefix + title));
-        doc.add(new StoredField(LUCENE_FIELD_LINKS, serializeLinks()));
+        final String key = prefix + title;
+        doc.add(new StringField(LUCENE_FIELD_TITLE, key, Field.Store.YES));
+        doc.add(new NumericDocValuesField(LUCENE_FIELD_REVISION, revision));
+        LinkList.encode(encoded, titles, buf);
+        doc.add(new BinaryDocValuesField(LUCENE_FIELD_LINKS, buf.get()));
 
         tokenizer.reset();
         stream.reset();
         tokenizer.setReader(reader.reset(text));
-        doc.add(new TextField(LUCENE_FIELD_TEXT, stream));
-        index.addDocument(doc);
+        doc.add(new Field(LUCENE_FIELD_TEXT, stream, textType));
+        if(append)
+          index.updateDocument(new Term(LUCENE_FIELD_TITLE, key), doc);
+        else
+          index.addDocument(doc);
       }
       catch(IOException e) {
         e.printStackTrace();
@@ -187,11 +327,15 @@ public class LuceneWikipediaIndexer {
       }
       clearLinks();
 
-      handler.rawArticle(prefix, title, intext);
+      handler.rawArticle(prefix, title, revision, intext);
     }
 
+    /** Link targets and labels of the current document */
     ArrayList<String> links = new ArrayList<>();
 
+    /** Link targets and normalized labels, for the index */
+    ArrayList<String> encoded = new ArrayList<>();
+
     boolean addLink(String target, String label) {
       // There won't be that many duplicates for a hash map to pay off
       for(int i = 0, l = links.size(); i < l; i += 2) {
@@ -204,30 +348,58 @@ public class LuceneWikipediaIndexer {
       return true;
     }
 
-    String serializeLinks() {
-      buf.setLength(0);
-      for(int i = 0; i < links.size(); i++) {
-        if(i > 0) {
-          buf.append('\t');
-        }
-        buf.append(links.get(i));
-      }
-      return buf.toString();
-    }
-
     void clearLinks() {
       links.clear();
+      encoded.clear();
+    }
+
+    @Override
+    public void checkpoint() {
+      handler.checkpoint();
     }
 
     @Override
     public void close() {
       handler.close();
+      synchronized(LuceneWikipediaIndexer.this) {
+        labelHits += analyzer.hits();
+        labelMisses += analyzer.misses();
+      }
     }
   }
 
   public void close() throws IOException {
     System.err.format("Closing %s output.\n", getClass().getSimpleName());
+    System.err.format("Analyzed %d link labels, %d more found in the cache.\n", labelMisses, labelHits);
+    if(previous != null) {
+      previous.close();
+      snapshots.release(snapshot);
+      index.deleteUnusedFiles();
+    }
+    if(forceMerge > 0) {
+      System.err.format("Merging index to %d segments.\n", forceMerge);
+      index.forceMerge(forceMerge);
+    }
+    // The completed index is no longer a checkpoint.
+    index.setLiveCommitData(Collections.<String, String> emptyMap().entrySet());
     index.commit();
+    final int numDocs = index.numDocs();
     index.close();
+    long size = 0, read = 0;
+    byte[] b = new byte[1 << 16];
+    for(String f : ldir.listAll()) {
+      size += ldir.fileLength(f);
+      if(warm) {
+        try (IndexInput in = ldir.openInput(f, IOContext.READONCE)) {
+          for(long p = 0, l = in.length(); p < l; p += b.length) {
+            in.readBytes(b, 0, (int) Math.min(b.length, l - p));
+          }
+          read += in.length();
+        }
+      }
+    }
+    System.err.format("Index profile %s: %d docs, %.1f MB, built in %d ms.%s\n", profile, numDocs, //
+        size / 1048576., System.currentTimeMillis() - start, warm ? " Warmed " + (read >> 20) + " MB." : "");
+    ldir.close();
   }
 }
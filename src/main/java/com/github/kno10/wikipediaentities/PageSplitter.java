@@ -0,0 +1,429 @@
+package com.github.kno10.wikipediaentities;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Split a MediaWiki XML export into articles, working on the raw UTF-8 bytes.
+ *
+ * This is not a general XML parser: it only understands the fixed export
+ * schema, i.e., the {@code <page>}, {@code <title>}, {@code <ns>},
+ * {@code <redirect title="...">} and {@code <text>} elements. Pages outside of
+ * the main namespace are skipped without decoding their text. Compared to the
+ * StAX event reader, this avoids allocating event objects and intermediate
+ * strings, and is not affected by the JAXP entity size limits.
+ */
+public class PageSplitter {
+  /** Tag names */
+  private static final byte[] PAGE = bytes("page"), PAGE_END = bytes("/page"), //
+      TITLE = bytes("title"), NS = bytes("ns"), REDIRECT = bytes("redirect"), //
+      TEXT = bytes("text"), REVISION = bytes("revision"), ID = bytes("id");
+
+  /** Input stream */
+  private InputStream in;
+
+  /** Naming prefix */
+  private String prefix;
+
+  /** Input buffer */
+  private byte[] buf = new byte[1 << 20];
+
+  /** Position and limit in the input buffer */
+  private int pos = 0, lim = 0;
+
+  /** Current tag name */
+  private byte[] tag = new byte[16];
+
+  /** Length of the current tag name */
+  private int taglen;
+
+  /** Character that terminated the current tag name */
+  private int tagend;
+
+  /** Buffer for element contents */
+  private byte[] tmp = new byte[1 << 16];
+
+  /** Length of the contents */
+  private int tmplen;
+
+  /**
+   * Constructor.
+   *
+   * @param in Input stream
+   * @param prefix Wiki prefix
+   */
+  public PageSplitter(InputStream in, String prefix) {
+    this.in = in;
+    this.prefix = prefix;
+  }
+
+  /**
+   * Continue with a new input stream, reusing the buffers.
+   *
+   * @param in Input stream
+   * @return this
+   */
+  public PageSplitter reset(InputStream in) {
+    this.in = in;
+    pos = lim = 0;
+    return this;
+  }
+
+  /**
+   * Read the next article in the main namespace.
+   *
+   * @return Article, or {@code null} at the end of the input.
+   * @throws IOException on read errors
+   */
+  public Article next() throws IOException {
+    while(true) {
+      // Find the next page:
+      do {
+        if(!nextTag())
+          return null;
+      }
+      while(!isTag(PAGE));
+      String title = null, text = null, redirect = null;
+      long revision = 0;
+      boolean skip = false, inRevision = false;
+      while(true) {
+        if(!nextTag())
+          return null; // Truncated
+        if(isTag(PAGE_END))
+          break;
+        if(isTag(TITLE)) {
+          title = readContents();
+        }
+        else if(isTag(NS)) {
+          skip |= !(readRaw() && tmplen == 1 && tmp[0] == '0');
+          if(skip)
+            continue; // Skip to the end of the page.
+        }
+        else if(isTag(REDIRECT)) {
+          redirect = readTitleAttribute();
+        }
+        else if(isTag(REVISION)) {
+          inRevision = true;
+        }
+        else if(isTag(ID) && inRevision && !skip) {
+          revision = readRaw() ? parseLong(tmp, tmplen) : 0;
+          inRevision = false; // Not the id of the contributor
+        }
+        else if(isTag(TEXT) && !skip) {
+          text = readContents();
+        }
+      }
+      if(!skip && redirect == null && text == null && title != null)
+        System.err.println("No redirect or text, but title: " + title);
+      if(skip || title == null || text == null)
+        continue;
+      return new Article(prefix, title, redirect, text, revision);
+    }
+  }
+
+  /**
+   * Fill the input buffer.
+   *
+   * @return {@code false} at the end of the input.
+   * @throws IOException on read errors
+   */
+  private boolean fill() throws IOException {
+    if(pos < lim)
+      return true;
+    int n;
+    while((n = in.read(buf, 0, buf.length)) == 0) {
+      // Retry
+    }
+    pos = 0;
+    lim = n > 0 ? n : 0;
+    return n > 0;
+  }
+
+  /**
+   * Advance to the next tag, and read its name.
+   *
+   * @return {@code false} at the end of the input.
+   * @throws IOException on read errors
+   */
+  private boolean nextTag() throws IOException {
+    while(true) {
+      if(!fill())
+        return false;
+      int p = pos;
+      while(p < lim && buf[p] != '<')
+        ++p;
+      pos = p;
+      if(p < lim)
+        break;
+    }
+    ++pos;
+    taglen = 0;
+    while(true) {
+      if(!fill())
+        return false;
+      final byte b = buf[pos++];
+      if(b == '>' || b == ' ' || b == '\t' || b == '\n' || (b == '/' && taglen > 0)) {
+        tagend = b;
+        return true;
+      }
+      if(taglen < tag.length)
+        tag[taglen] = b;
+      ++taglen;
+    }
+  }
+
+  /**
+   * Test the current tag name.
+   *
+   * @param name Tag name
+   * @return {@code true} when matching
+   */
+  private boolean isTag(byte[] name) {
+    if(taglen != name.length)
+      return false;
+    for(int i = 0; i < taglen; i++)
+      if(tag[i] != name[i])
+        return false;
+    return true;
+  }
+
+  /**
+   * Read the remainder of the current tag into the content buffer.
+   *
+   * @return {@code true} if the tag was self-closing.
+   * @throws IOException on read errors
+   */
+  private boolean readAttributes() throws IOException {
+    tmplen = 0;
+    if(tagend == '>')
+      return false;
+    int prev = tagend;
+    while(fill()) {
+      final byte b = buf[pos++];
+      if(b == '>')
+        return prev == '/';
+      append(b);
+      prev = b;
+    }
+    return true;
+  }
+
+  /**
+   * Read the raw contents of the current element into the content buffer.
+   *
+   * @return {@code false} if the element was empty.
+   * @throws IOException on read errors
+   */
+  private boolean readRaw() throws IOException {
+    if(readAttributes())
+      return false;
+    tmplen = 0;
+    while(fill()) {
+      int p = pos;
+      while(p < lim && buf[p] != '<')
+        ++p;
+      append(buf, pos, p - pos);
+      pos = p;
+      if(p < lim)
+        break;
+    }
+    return tmplen > 0;
+  }
+
+  /**
+   * Read and decode the contents of the current element.
+   *
+   * @return Contents, or {@code null} if empty.
+   * @throws IOException on read errors
+   */
+  private String readContents() throws IOException {
+    return readRaw() ? decode(0, tmplen) : null;
+  }
+
+  /**
+   * Read the title attribute of the current tag.
+   *
+   * @return Attribute value, or {@code null}
+   * @throws IOException on read errors
+   */
+  private String readTitleAttribute() throws IOException {
+    readAttributes();
+    for(int i = 0; i + 7 <= tmplen; i++) {
+      if(tmp[i] == 't' && tmp[i + 1] == 'i' && tmp[i + 2] == 't' && tmp[i + 3] == 'l' && tmp[i + 4] == 'e' //
+          && tmp[i + 5] == '=' && (tmp[i + 6] == '"' || tmp[i + 6] == '\'')) {
+        final byte q = tmp[i + 6];
+        int e = i + 7;
+        while(e < tmplen && tmp[e] != q)
+          ++e;
+        return decode(i + 7, e);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Append to the content buffer.
+   *
+   * @param b Byte
+   */
+  private void append(byte b) {
+    if(tmplen == tmp.length)
+      tmp = Arrays.copyOf(tmp, tmp.length << 1);
+    tmp[tmplen++] = b;
+  }
+
+  /**
+   * Append to the content buffer.
+   *
+   * @param b Bytes
+   * @param off Offset
+   * @param len Length
+   */
+  private void append(byte[] b, int off, int len) {
+    if(tmplen + len > tmp.length)
+      tmp = Arrays.copyOf(tmp, Math.max(tmp.length << 1, tmplen + len));
+    System.arraycopy(b, off, tmp, tmplen, len);
+    tmplen += len;
+  }
+
+  /**
+   * Decode a range of the content buffer, resolving XML entities in place.
+   *
+   * @param start Start
+   * @param end End
+   * @return Decoded string
+   */
+  private String decode(int start, int end) {
+    int o = start;
+    for(int i = start; i < end; i++) {
+      byte b = tmp[i];
+      if(b == '&') {
+        int e = i + 1;
+        while(e < end && e - i < 12 && tmp[e] != ';')
+          ++e;
+        if(e < end && tmp[e] == ';') {
+          int cp = entity(i + 1, e);
+          if(cp >= 0) {
+            o = encode(cp, o);
+            i = e;
+            continue;
+          }
+        }
+      }
+      tmp[o++] = b;
+    }
+    return new String(tmp, start, o - start, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Resolve an XML entity. Numeric references must have at least one digit
+   * and denote a valid XML character; otherwise, like all unknown entities,
+   * they are kept as literal text.
+   *
+   * @param s Start (after the ampersand)
+   * @param e End (at the semicolon)
+   * @return Code point, or -1
+   */
+  private int entity(int s, int e) {
+    final int l = e - s;
+    if(l >= 2 && tmp[s] == '#') {
+      final boolean hex = tmp[s + 1] == 'x' || tmp[s + 1] == 'X';
+      final int first = hex ? s + 2 : s + 1;
+      if(first == e)
+        return -1; // No digits
+      int cp = 0;
+      for(int i = first; i < e; i++) {
+        final int d = Character.digit(tmp[i], hex ? 16 : 10);
+        if(d < 0)
+          return -1;
+        cp = cp * (hex ? 16 : 10) + d;
+        if(cp > Character.MAX_CODE_POINT)
+          return -1; // Also prevents overflows
+      }
+      return isXMLChar(cp) ? cp : -1;
+    }
+    if(l == 2 && tmp[s] == 'l' && tmp[s + 1] == 't')
+      return '<';
+    if(l == 2 && tmp[s] == 'g' && tmp[s + 1] == 't')
+      return '>';
+    if(l == 3 && tmp[s] == 'a' && tmp[s + 1] == 'm' && tmp[s + 2] == 'p')
+      return '&';
+    if(l == 4 && tmp[s] == 'q' && tmp[s + 1] == 'u' && tmp[s + 2] == 'o' && tmp[s + 3] == 't')
+      return '"';
+    if(l == 4 && tmp[s] == 'a' && tmp[s + 1] == 'p' && tmp[s + 2] == 'o' && tmp[s + 3] == 's')
+      return '\'';
+    return -1;
+  }
+
+  /**
+   * Test for the characters allowed in XML 1.0. This excludes most control
+   * characters, the surrogates (which cannot be encoded in UTF-8 on their
+   * own), and U+FFFE and U+FFFF.
+   *
+   * @param cp Code point
+   * @return {@code true} if allowed
+   */
+  private static boolean isXMLChar(int cp) {
+    return cp >= 0x20 ? (cp < 0xD800 || (cp >= 0xE000 && cp <= 0xFFFD) || cp >= 0x10000) //
+        : (cp == 0x9 || cp == 0xA || cp == 0xD);
+  }
+
+  /**
+   * Encode a code point as UTF-8 into the content buffer. The encoding is
+   * never longer than the entity it replaces.
+   *
+   * @param cp Code point
+   * @param o Output position
+   * @return New output position
+   */
+  private int encode(int cp, int o) {
+    if(cp < 0x80) {
+      tmp[o++] = (byte) cp;
+    }
+    else if(cp < 0x800) {
+      tmp[o++] = (byte) (0xC0 | (cp >> 6));
+      tmp[o++] = (byte) (0x80 | (cp & 0x3F));
+    }
+    else if(cp < 0x10000) {
+      tmp[o++] = (byte) (0xE0 | (cp >> 12));
+      tmp[o++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+      tmp[o++] = (byte) (0x80 | (cp & 0x3F));
+    }
+    else {
+      tmp[o++] = (byte) (0xF0 | (cp >> 18));
+      tmp[o++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+      tmp[o++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+      tmp[o++] = (byte) (0x80 | (cp & 0x3F));
+    }
+    return o;
+  }
+
+  /**
+   * Parse a decimal number.
+   *
+   * @param b Bytes
+   * @param len Length
+   * @return Value, 0 if not a number
+   */
+  private static long parseLong(byte[] b, int len) {
+    long v = 0;
+    for(int i = 0; i < len; i++) {
+      if(b[i] < '0' || b[i] > '9')
+        return 0;
+      v = v * 10 + (b[i] - '0');
+    }
+    return v;
+  }
+
+  /**
+   * Get the ASCII bytes of a tag name.
+   *
+   * @param s Tag name
+   * @return Bytes
+   */
+  private static byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.US_ASCII);
+  }
+}
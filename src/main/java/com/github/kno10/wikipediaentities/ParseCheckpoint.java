@@ -0,0 +1,310 @@
+package com.github.kno10.wikipediaentities;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.github.kno10.wikipediaentities.util.TitleDictionary;
+
+/**
+ * Checkpoints of a {@link ParseWikipedia} run.
+ *
+ * A checkpoint consists of the title dictionary, the redirects and link texts
+ * collected so far, the offsets of the links output shards and the positions of
+ * the readers, written to numbered files in the checkpoint directory. The
+ * positions are only valid for the same readers on the same input, so the
+ * reader type and input file of each reader are part of the state. The commit
+ * of the Lucene index, tagged with the checkpoint number, makes a checkpoint
+ * valid.
+ *
+ * To not rewrite all data at every checkpoint, only the titles, redirects and
+ * link text counts added since the previous checkpoint are written, to new
+ * files. The files of earlier checkpoints are not modified, and the state file
+ * lists all files a checkpoint consists of. Every {@link #MAX_DELTAS}
+ * checkpoints, all data is written again, and the files no longer listed are
+ * removed once the checkpoint is valid.
+ */
+public class ParseCheckpoint {
+  /** Commit user data key */
+  public static final String COMMIT_KEY = "checkpoint";
+
+  /** Maximum number of checkpoints since the last full checkpoint */
+  static final int MAX_DELTAS = 16;
+
+  /** Checkpoint directory */
+  private String dir;
+
+  /** Current checkpoint number, 0 if none */
+  private int gen = 0;
+
+  /** Links output shard offsets, {@code null} if none */
+  private long[] linksOffsets = null;
+
+  /** Reader positions */
+  private long[] positions;
+
+  /** Reader type and input file of each reader */
+  private String[] sources;
+
+  /** Files of the titles; a dictionary, followed by the keys added since */
+  private List<String> titleFiles = new ArrayList<>();
+
+  /** Number of titles in the checkpoint */
+  private int numTitles = 0;
+
+  /** Files of the redirects */
+  private List<String> redirectFiles = new ArrayList<>();
+
+  /** Files of the link text counts */
+  private List<String> linktextFiles = new ArrayList<>();
+
+  /** Title dictionary */
+  private TitleDictionary titles;
+
+  /** Redirect collector */
+  private RedirectCollector redirects;
+
+  /** Lucene index */
+  private LuceneWikipediaIndexer indexer;
+
+  /** Link collector */
+  private LinkCollector links;
+
+  /** Link text collector */
+  private LuceneLinkTokenizer linktext;
+
+  /**
+   * Constructor.
+   *
+   * @param dir Checkpoint directory
+   */
+  public ParseCheckpoint(String dir) {
+    this.dir = dir;
+  }
+
+  /**
+   * Find the last checkpoint of an index, and read its state.
+   *
+   * @param indexdir Lucene index directory
+   * @param sources Reader type and input file of each reader
+   * @throws IOException when there is no valid checkpoint, or it was written
+   *         reading a different input
+   */
+  public void restore(String indexdir, String[] sources) throws IOException {
+    String g = LuceneWikipediaIndexer.lastCommitData(indexdir).get(COMMIT_KEY);
+    if(g == null)
+      throw new IOException("Index " + indexdir + " was not committed by a checkpoint.");
+    gen = Integer.parseInt(g);
+    try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file("state", ".txt")), "UTF-8"))) {
+      linksOffsets = new long[Integer.parseInt(r.readLine())];
+      for(int i = 0; i < linksOffsets.length; i++)
+        linksOffsets[i] = Long.parseLong(r.readLine());
+      positions = new long[Integer.parseInt(r.readLine())];
+      for(int i = 0; i < positions.length; i++)
+        positions[i] = Long.parseLong(r.readLine());
+      this.sources = new String[positions.length];
+      for(int i = 0; i < positions.length; i++)
+        this.sources[i] = r.readLine();
+      numTitles = Integer.parseInt(r.readLine());
+      readFiles(r, titleFiles);
+      readFiles(r, redirectFiles);
+      readFiles(r, linktextFiles);
+    }
+    if(!Arrays.equals(this.sources, sources))
+      throw new IOException("Checkpoint " + gen + " was written reading " + Arrays.toString(this.sources) + ", but the input is " + Arrays.toString(sources) + ".");
+    System.err.format("Resuming from checkpoint %d.\n", gen);
+  }
+
+  /**
+   * Set the collected data to save at each checkpoint.
+   *
+   * @param titles Title dictionary
+   * @param redirects Redirect collector
+   * @param indexer Lucene index
+   * @param links Link collector
+   * @param linktext Link text collector
+   */
+  public void attach(TitleDictionary titles, RedirectCollector redirects, LuceneWikipediaIndexer indexer, LinkCollector links, LuceneLinkTokenizer linktext) {
+    this.titles = titles;
+    this.redirects = redirects;
+    this.indexer = indexer;
+    this.links = links;
+    this.linktext = linktext;
+  }
+
+  /**
+   * Write a checkpoint. All articles read so far must have been processed, and
+   * the handlers checkpointed.
+   *
+   * @param positions Reader positions
+   * @param sources Reader type and input file of each reader
+   * @throws IOException on errors
+   */
+  public void save(long[] positions, String[] sources) throws IOException {
+    final long start = System.currentTimeMillis();
+    new File(dir).mkdirs();
+    final List<String> previous = files();
+    ++gen;
+    final boolean full = titleFiles.size() > MAX_DELTAS || titleFiles.isEmpty();
+    if(full) {
+      titleFiles.clear();
+      redirectFiles.clear();
+      linktextFiles.clear();
+      titles.save(file("titles", ".dict"));
+      titleFiles.add(name("titles", ".dict"));
+    }
+    else {
+      titles.saveKeys(file("titles", ".rec.gz"), numTitles);
+      titleFiles.add(name("titles", ".rec.gz"));
+    }
+    numTitles = titles.size();
+    redirects.save(file("redirects", ".gz"), full);
+    redirectFiles.add(name("redirects", ".gz"));
+    linktext.checkpoint(file("linktext", ".gz"), file("linktext", ".sketch"), full);
+    linktextFiles.add(name("linktext", ".gz"));
+    linksOffsets = links.checkpoint();
+    try (PrintStream out = new PrintStream(file("state", ".txt"), "UTF-8")) {
+      out.println(linksOffsets.length);
+      for(long o : linksOffsets)
+        out.println(o);
+      out.println(positions.length);
+      for(long p : positions)
+        out.println(p);
+      for(String s : sources)
+        out.println(s);
+      out.println(numTitles);
+      writeFiles(out, titleFiles);
+      writeFiles(out, redirectFiles);
+      writeFiles(out, linktextFiles);
+    }
+    indexer.commit(Collections.singletonMap(COMMIT_KEY, Integer.toString(gen)));
+    previous.removeAll(files());
+    for(String f : previous)
+      new File(dir, f).delete();
+    System.err.format("%s checkpoint %d written in %d ms.\n", full ? "Full" : "Incremental", gen, System.currentTimeMillis() - start);
+  }
+
+  /**
+   * Remove the files of the current checkpoint, after completion.
+   */
+  public void delete() {
+    for(String f : files())
+      new File(dir, f).delete();
+  }
+
+  /**
+   * All files of the current checkpoint.
+   *
+   * @return File names, relative to the checkpoint directory
+   */
+  private List<String> files() {
+    List<String> files = new ArrayList<>();
+    if(gen > 0) {
+      files.addAll(titleFiles);
+      files.addAll(redirectFiles);
+      files.addAll(linktextFiles);
+      files.add(name("linktext", ".sketch"));
+      files.add(name("state", ".txt"));
+    }
+    return files;
+  }
+
+  /**
+   * Write a list of files to the state.
+   *
+   * @param out Output
+   * @param files File names
+   */
+  private static void writeFiles(PrintStream out, List<String> files) {
+    out.println(files.size());
+    for(String f : files)
+      out.println(f);
+  }
+
+  /**
+   * Read a list of files from the state.
+   *
+   * @param in Input
+   * @param files Output list of file names
+   * @throws IOException on errors
+   */
+  private static void readFiles(BufferedReader in, List<String> files) throws IOException {
+    files.clear();
+    for(int i = Integer.parseInt(in.readLine()); i > 0; i--)
+      files.add(in.readLine());
+  }
+
+  /**
+   * Get the name of a file of the current checkpoint.
+   *
+   * @param name Base name
+   * @param ext Extension
+   * @return File name, relative to the checkpoint directory
+   */
+  private String name(String name, String ext) {
+    return name + "-" + gen + ext;
+  }
+
+  /**
+   * Get a file of the current checkpoint.
+   *
+   * @param name Base name
+   * @param ext Extension
+   * @return File name
+   */
+  private String file(String name, String ext) {
+    return new File(dir, name(name, ext)).getPath();
+  }
+
+  /**
+   * @return Links output shard offsets to resume from, {@code null} if none
+   */
+  public long[] linksOffsets() {
+    return linksOffsets;
+  }
+
+  /**
+   * @return Reader positions to resume from
+   */
+  public long[] positions() {
+    return positions;
+  }
+
+  /**
+   * Load the title dictionary of the checkpoint.
+   *
+   * @return Title dictionary
+   * @throws IOException on errors
+   */
+  public TitleDictionary loadTitles() throws IOException {
+    TitleDictionary titles = TitleDictionary.load(new File(dir, titleFiles.get(0)).getPath());
+    for(String f : titleFiles.subList(1, titleFiles.size()))
+      titles.addKeys(new File(dir, f).getPath(), titles.size());
+    if(titles.size() != numTitles)
+      throw new IOException("Checkpoint has " + numTitles + " titles, but " + titles.size() + " were read.");
+    return titles;
+  }
+
+  /**
+   * Load the collected data of the checkpoint.
+   *
+   * @param redirects Redirect collector
+   * @param linktext Link text collector
+   * @throws IOException on errors
+   */
+  public void load(RedirectCollector redirects, LuceneLinkTokenizer linktext) throws IOException {
+    for(String f : redirectFiles)
+      redirects.load(new File(dir, f).getPath());
+    List<String> counts = new ArrayList<>();
+    for(String f : linktextFiles)
+      counts.add(new File(dir, f).getPath());
+    linktext.restore(counts, file("linktext", ".sketch"));
+  }
+}
@@ -1,13 +1,18 @@
 package com.github.kno10.wikipediaentities;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.SequenceInputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Phaser;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -19,16 +24,24 @@ import javax.xml.stream.XMLStreamReader;
 import javax.xml.stream.events.StartElement;
 import javax.xml.stream.events.XMLEvent;
 
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.utils.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
 import com.github.kno10.wikipediaentities.util.Progress;
+import com.github.kno10.wikipediaentities.util.TitleDictionary;
 import com.github.kno10.wikipediaentities.util.Util;
 
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
 /**
  * Parse and index a complete Wikipedia dump.
  *
  * @author Erich Schubert
  */
 public class ParseWikipedia {
-  int readers = 0;
+  /** Use the byte-level page splitter instead of the StAX event reader */
+  boolean byteReader = true;
 
   Progress readprog = new Progress("Reading articles");
 
@@ -37,6 +50,18 @@ public class ParseWikipedia {
   /** Title attribute for redirects */
   static final QName TITLEQNAME = new QName("title");
 
+  /** Reader threads, in order of creation */
+  List<ReaderThread> readers = new ArrayList<>();
+
+  /** Readers pause at a safe point for checkpoints; the coordinator is a party */
+  Phaser phaser = new Phaser(1);
+
+  /** A checkpoint was requested */
+  volatile boolean requested = false;
+
+  /** Changes relative to the previous index, in delta mode */
+  IndexDelta delta = null;
+
   /**
    * Constructor.
    */
@@ -52,9 +77,128 @@ public class ParseWikipedia {
    * @param queue Processing queue
    * @return reader thread
    */
-  public synchronized Thread makeReaderThread(String fname, String prefix, BlockingQueue<Article> queue) {
-    ++readers;
-    return new ReaderThread(fname, prefix, queue);
+  public Thread makeReaderThread(String fname, String prefix, ArticleQueue queue) {
+    return new ReaderThread(fname, prefix, queue.addProducer());
+  }
+
+  /**
+   * Continue the readers from the positions of a checkpoint.
+   *
+   * @param positions Reader positions
+   */
+  public void resume(long[] positions) {
+    if(positions.length != readers.size())
+      throw new RuntimeException("Checkpoint has " + positions.length + " readers, but " + readers.size() + " were configured.");
+    for(int i = 0; i < positions.length; i++)
+      readers.get(i).resume(positions[i]);
+  }
+
+  /**
+   * Pause the readers at a safe point, wait until all articles read so far
+   * have been processed, and write a checkpoint.
+   *
+   * @param queue Processing queue
+   * @param handlers Handlers of the parser threads
+   * @param cp Checkpoint
+   * @throws IOException on errors writing the checkpoint
+   * @throws InterruptedException when interrupted
+   */
+  public void checkpoint(ArticleQueue queue, List<? extends Handler> handlers, ParseCheckpoint cp) throws IOException, InterruptedException {
+    requested = true;
+    phaser.arriveAndAwaitAdvance(); // All readers paused or finished
+    try {
+      if(queue.producers() == 0)
+        return; // Finishing anyway.
+      queue.awaitIdle();
+      for(Handler h : handlers)
+        h.checkpoint();
+      long[] positions = new long[readers.size()];
+      for(int i = 0; i < positions.length; i++)
+        positions[i] = readers.get(i).position();
+      cp.save(positions, sources());
+    }
+    finally {
+      requested = false;
+      phaser.arriveAndAwaitAdvance(); // Continue reading
+    }
+  }
+
+  /**
+   * Describe the input of each reader, which determines the meaning of the
+   * reader positions.
+   *
+   * @return Reader type and input file of each reader
+   */
+  public String[] sources() {
+    String[] sources = new String[readers.size()];
+    for(int i = 0; i < sources.length; i++)
+      sources[i] = readers.get(i).source();
+    return sources;
+  }
+
+  /**
+   * Start reader threads for a multistream dump.
+   *
+   * The dump is split into independent bzip2 streams using the offset index,
+   * and contiguous ranges of streams are assigned to each reader.
+   *
+   * @param fname Multistream dump file name
+   * @param index Offset index file name
+   * @param prefix Prefix
+   * @param n Number of readers
+   * @param queue Processing queue
+   * @return reader threads
+   * @throws IOException on errors reading the index
+   */
+  public List<Thread> makeMultistreamReaderThreads(String fname, String index, String prefix, int n, ArticleQueue queue) throws IOException {
+    long[] offsets = readMultistreamIndex(index);
+    n = Math.max(1, Math.min(n, offsets.length));
+    List<Thread> threads = new ArrayList<>(n);
+    for(int i = 0; i < n; i++) {
+      final int b = (int) (i * (long) offsets.length / n);
+      final int e = (int) ((i + 1) * (long) offsets.length / n);
+      threads.add(new MultistreamReaderThread(fname, prefix, queue.addProducer(), offsets, b, e));
+    }
+    return threads;
+  }
+
+  /**
+   * Read the offsets of the streams from a multistream index file.
+   *
+   * Lines have the format {@code offset:pageid:title}.
+   *
+   * @param index Index file name
+   * @return Stream offsets, ascending
+   * @throws IOException on errors reading the index
+   */
+  static long[] readMultistreamIndex(String index) throws IOException {
+    LongArrayList offsets = new LongArrayList();
+    try (BufferedReader r = new BufferedReader(new InputStreamReader(Util.openInput(index), "UTF-8"))) {
+      String line;
+      long prev = -1;
+      while((line = r.readLine()) != null) {
+        int p = line.indexOf(':');
+        if(p <= 0)
+          continue;
+        long off = Long.parseLong(line.substring(0, p));
+        if(off != prev)
+          offsets.add(prev = off);
+      }
+    }
+    return offsets.toLongArray();
+  }
+
+  /**
+   * Find the offset index of a multistream dump.
+   *
+   * @param fname Dump file name
+   * @return Index file name, or {@code null}
+   */
+  static String findMultistreamIndex(String fname) {
+    if(!fname.contains("multistream") || !fname.endsWith(".xml.bz2"))
+      return null;
+    String index = fname.substring(0, fname.length() - 8) + "-index.txt.bz2";
+    return new File(index).exists() ? index : null;
   }
 
   /**
@@ -64,49 +208,133 @@ public class ParseWikipedia {
    */
   private class ReaderThread extends Thread {
     /** Input file name. */
-    private String fname;
+    protected String fname;
 
     /** Naming prefix */
     private String prefix;
 
-    /** Classes to process articles */
-    protected BlockingQueue<Article> queue;
+    /** Publisher to the processing queue */
+    protected ArticleQueue.Publisher queue;
 
     /** String buffer */
     StringBuilder buf = new StringBuilder();
 
+    /** Page splitter, reused */
+    private PageSplitter splitter;
+
+    /** Position to resume from: number of articles read */
+    protected volatile long position = 0;
+
+    /** Articles to skip, when resuming */
+    private long skip = 0;
+
+    /** Reading has completed */
+    protected volatile boolean done = false;
+
     /**
      * Constructor.
      *
      * @param fname Source file name
      * @param prefix Prefix
-     * @param queue Queue to output articles to
+     * @param queue Publisher to output articles to
      */
-    public ReaderThread(String fname, String prefix, BlockingQueue<Article> queue) {
+    public ReaderThread(String fname, String prefix, ArticleQueue.Publisher queue) {
       this.fname = fname;
       this.prefix = prefix;
       this.queue = queue;
+      phaser.register();
+      readers.add(this);
+    }
+
+    /**
+     * Continue from a checkpoint position.
+     *
+     * @param position Position, -1 when finished
+     */
+    protected void resume(long position) {
+      if(position < 0)
+        done = true;
+      else
+        this.position = skip = position;
+    }
+
+    /**
+     * @return Position to resume from, -1 when finished
+     */
+    protected long position() {
+      return done ? -1 : position;
+    }
+
+    /**
+     * @return Reader type and input file; the position is a number of articles
+     */
+    protected String source() {
+      return (byteReader ? "bytes " : "stax ") + new File(fname).getAbsolutePath();
+    }
+
+    /**
+     * Read the input.
+     *
+     * @throws IOException on read errors
+     * @throws XMLStreamException on parse errors
+     * @throws InterruptedException when interrupted
+     */
+    protected void read() throws IOException, XMLStreamException, InterruptedException {
+      try (InputStream fin2 = Util.openInput(fname)) {
+        read(fin2);
+      }
+    }
+
+    /**
+     * Read articles from an input stream.
+     *
+     * @param in Input stream
+     * @throws IOException on read errors
+     * @throws XMLStreamException on parse errors
+     * @throws InterruptedException when interrupted
+     */
+    protected void read(InputStream in) throws IOException, XMLStreamException, InterruptedException {
+      if(byteReader)
+        readBytes(in);
+      else
+        readEvents(in);
+    }
+
+    /**
+     * Publish an article, and pause at a checkpoint.
+     *
+     * @param a Article
+     * @throws InterruptedException when interrupted
+     */
+    protected void emit(Article a) throws InterruptedException {
+      if(skip > 0) {
+        --skip; // Already processed before the checkpoint
+        return;
+      }
+      queue.add(a);
+      readprog.incrementAndLog();
+      ++position;
+      if(requested)
+        pause();
+    }
+
+    /**
+     * Pause for a checkpoint, after publishing all articles read.
+     *
+     * @throws InterruptedException when interrupted
+     */
+    protected void pause() throws InterruptedException {
+      queue.flush();
+      phaser.arriveAndAwaitAdvance(); // Checkpoint starts
+      phaser.arriveAndAwaitAdvance(); // Checkpoint done
     }
 
     @Override
     public void run() {
-      final XMLInputFactory factory = XMLInputFactory.newInstance();
-      // 设置entity size , 否则会报 JAXP00010004 错误 但是仍然会在4200w行左右出错
-      factory.setProperty("http://www.oracle.com/xml/jaxp/properties/totalEntitySizeLimit", Integer.MAX_VALUE);
-      try (InputStream fin2 = Util.openInput(fname)) {
-        XMLEventReader eventReader = factory.createXMLEventReader(fin2, "UTF-8");
-        //XMLStreamReader eventReader = factory.createXMLStreamReader(fin2, "UTF-8");
-        while(eventReader.hasNext()) {
-          XMLEvent event = eventReader.nextEvent();
-          if(event.isStartElement()) {
-            StartElement startElement = event.asStartElement();
-            String name = startElement.getName().getLocalPart();
-            if(name.equals("page")) {
-              parsePage(eventReader);
-              // if (readprog.get() == 10000) break;
-            }
-          }
-        }
+      try {
+        if(!done)
+          read();
+        done = true;
       }
       catch(IOException | XMLStreamException e) {
         throw new RuntimeException(e);
@@ -118,16 +346,55 @@ public class ParseWikipedia {
         // Update max, for progress logging.
         parseprog.setMax(readprog.get());
 
-        // We've finished adding to the queue. Wait for shutdown.
-        synchronized(ParseWikipedia.this) {
-          --readers;
+        // We've finished adding to the queue.
+        queue.close();
+        phaser.arriveAndDeregister();
+      }
+    }
+
+    /**
+     * Read articles using the byte-level page splitter.
+     *
+     * @param in Input stream
+     * @throws IOException on read errors
+     * @throws InterruptedException when interrupted
+     */
+    private void readBytes(InputStream in) throws IOException, InterruptedException {
+      splitter = splitter == null ? new PageSplitter(in, prefix) : splitter.reset(in);
+      for(Article a; (a = splitter.next()) != null;)
+        emit(a);
+    }
+
+    /**
+     * Read articles using the StAX event reader.
+     *
+     * @param in Input stream
+     * @throws XMLStreamException on parse errors
+     * @throws InterruptedException when interrupted
+     */
+    private void readEvents(InputStream in) throws XMLStreamException, InterruptedException {
+      final XMLInputFactory factory = XMLInputFactory.newInstance();
+      // 设置entity size , 否则会报 JAXP00010004 错误 但是仍然会在4200w行左右出错
+      factory.setProperty("http://www.oracle.com/xml/jaxp/properties/totalEntitySizeLimit", Integer.MAX_VALUE);
+      XMLEventReader eventReader = factory.createXMLEventReader(in, "UTF-8");
+      //XMLStreamReader eventReader = factory.createXMLStreamReader(fin2, "UTF-8");
+      while(eventReader.hasNext()) {
+        XMLEvent event = eventReader.nextEvent();
+        if(event.isStartElement()) {
+          StartElement startElement = event.asStartElement();
+          String name = startElement.getName().getLocalPart();
+          if(name.equals("page")) {
+            parsePage(eventReader);
+            // if (readprog.get() == 10000) break;
+          }
         }
       }
     }
 
     private void parsePage(XMLEventReader eventReader) throws XMLStreamException, InterruptedException {
       String title = null, text = null, redirect = null;
-      boolean skip = false;
+      long revision = 0;
+      boolean skip = false, inRevision = false;
       while(eventReader.hasNext()) {
         XMLEvent event = eventReader.nextEvent();
         if(event.isEndElement() && event.asEndElement().getName().getLocalPart() == "page") {
@@ -147,6 +414,15 @@ public class ParseWikipedia {
 
           if(startElement.getName().getLocalPart() == "redirect")
             redirect = startElement.getAttributeByName(TITLEQNAME).getValue();
+
+          if(startElement.getName().getLocalPart() == "revision")
+            inRevision = true;
+
+          if(inRevision && startElement.getName().getLocalPart() == "id") {
+            String id = parseTextContents(eventReader);
+            revision = id != null && id.matches("[0-9]+") ? Long.parseLong(id) : 0;
+            inRevision = false; // Not the id of the contributor
+          }
         }
       }
       // Post-process page.
@@ -155,8 +431,7 @@ public class ParseWikipedia {
       // Ignore non-main pages
       if(skip || title == null || text == null)
         return;
-      queue.put(new Article(prefix, title, redirect, text));
-      readprog.incrementAndLog();
+      emit(new Article(prefix, title, redirect, text, revision));
     }
 
     private String parseTextContents(XMLEventReader eventReader) throws XMLStreamException {
@@ -185,7 +460,88 @@ public class ParseWikipedia {
 
   }
 
-  public Thread makeParserThread(BlockingQueue<Article> q, Handler h) {
+  /**
+   * Thread reading a range of streams of a multistream dump.
+   *
+   * The streams are decompressed one at a time, and checkpoints are only taken
+   * between streams, so the position is the index of the next stream.
+   */
+  private class MultistreamReaderThread extends ReaderThread {
+    /** Stream offsets */
+    private long[] offsets;
+
+    /** Range of streams to read, end exclusive */
+    private int start, end;
+
+    /**
+     * Constructor.
+     *
+     * @param fname Source file name
+     * @param prefix Prefix
+     * @param queue Publisher to output articles to
+     * @param offsets Stream offsets
+     * @param start First stream
+     * @param end End of range of streams (exclusive)
+     */
+    public MultistreamReaderThread(String fname, String prefix, ArticleQueue.Publisher queue, long[] offsets, int start, int end) {
+      super(fname, prefix, queue);
+      this.offsets = offsets;
+      this.position = this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected void resume(long position) {
+      if(position < 0)
+        done = true;
+      else
+        this.position = position;
+    }
+
+    /**
+     * @return Range of streams and input file; the position is a stream index
+     */
+    @Override
+    protected String source() {
+      return "multistream " + start + "-" + end + " " + new File(fname).getAbsolutePath();
+    }
+
+    @Override
+    protected void emit(Article a) throws InterruptedException {
+      queue.add(a);
+      readprog.incrementAndLog();
+    }
+
+    @Override
+    protected void read() throws IOException, XMLStreamException, InterruptedException {
+      if(position >= end)
+        return;
+      try (FileInputStream fin = new FileInputStream(fname)) {
+        fin.getChannel().position(offsets[(int) position]);
+        InputStream in = new BufferedInputStream(fin, 1 << 16);
+        for(int i = (int) position; i < end; i++) {
+          // The last stream of the dump continues to the end of the file.
+          final boolean last = i + 1 == offsets.length;
+          InputStream s = BoundedInputStream.builder().setInputStream(in) //
+              .setMaxCount(last ? Long.MAX_VALUE : offsets[i + 1] - offsets[i]).setPropagateClose(false).get();
+          // The page streams are fragments, wrap them into a root element.
+          // The last stream of the dump closes the root element itself.
+          List<InputStream> parts = new ArrayList<>(3);
+          parts.add(new ByteArrayInputStream("<mediawiki>".getBytes("UTF-8")));
+          parts.add(new BZip2CompressorInputStream(s, true));
+          if(!last)
+            parts.add(new ByteArrayInputStream("</mediawiki>".getBytes("UTF-8")));
+          read(new SequenceInputStream(Collections.enumeration(parts)));
+          IOUtils.skip(s, Long.MAX_VALUE); // Remainder of the stream, if any
+          position = i + 1;
+          if(requested)
+            pause();
+        }
+      }
+    }
+  }
+
+  public Thread makeParserThread(ArticleQueue q, Handler h) {
     return new WikipediaParserThread(q, h);
   }
 
@@ -195,7 +551,7 @@ public class ParseWikipedia {
    * @author Erich Schubert
    */
   private class WikipediaParserThread extends Thread {
-    BlockingQueue<Article> queue;
+    ArticleQueue queue;
 
     Handler handler;
 
@@ -208,25 +564,25 @@ public class ParseWikipedia {
      * @param q Queue
      * @param h Handler
      */
-    public WikipediaParserThread(BlockingQueue<Article> q, Handler h) {
+    public WikipediaParserThread(ArticleQueue q, Handler h) {
       this.queue = q;
       this.handler = h;
     }
 
     @Override
     public void run() {
-      while(!queue.isEmpty() || readers > 0) {
-        try {
-          Article a = queue.poll(100, TimeUnit.MILLISECONDS);
-          if(a == null)
-            continue;
-          process(a);
-          parseprog.incrementAndLog();
-        }
-        catch(InterruptedException e) {
-          break;
+      try {
+        for(Article[] batch; (batch = queue.take()) != null;) {
+          for(Article a : batch) {
+            process(a);
+            parseprog.incrementAndLog();
+          }
+          queue.release(batch);
         }
       }
+      catch(InterruptedException e) {
+        System.err.println("Processing interrupted.");
+      }
       // System.err.println("Parser thread has completed.");
       handler.close();
     }
@@ -236,6 +592,9 @@ public class ParseWikipedia {
       // Skip boring "list of" pages
       if(title.startsWith("List ") || title.startsWith("Liste ") || title.startsWith("Anexo:"))
         return;
+      // Skip unchanged articles in delta mode
+      if(a.redirect == null && delta != null && !delta.changed(a.prefix + title, a.revision))
+        return;
       String text = Util.removeEntities(a.rawtext);
       //存在重定向
       if(a.redirect != null) {
@@ -257,7 +616,39 @@ public class ParseWikipedia {
       //不存在重定向
       // Note: removing some of these too early will break redirects!
       text = Util.removeSpecial(text);
-      handler.rawArticle(a.prefix, title, text);
+      handler.rawArticle(a.prefix, title, a.revision, text);
+    }
+  }
+
+  /**
+   * Compare the throughput of the StAX event reader and the page splitter.
+   *
+   * @param fname Input file name
+   */
+  static void benchmarkReaders(String fname) {
+    for(boolean bytes : new boolean[] { false, true }) {
+      ParseWikipedia l = new ParseWikipedia();
+      l.byteReader = bytes;
+      ArticleQueue q = new ArticleQueue(64 << 20);
+      long start = System.currentTimeMillis();
+      Thread reader = l.makeReaderThread(fname, "", q);
+      reader.start();
+      int count = 0, hash = 0;
+      try {
+        for(Article[] batch; (batch = q.take()) != null;) {
+          for(Article a : batch) {
+            ++count;
+            hash = hash * 31 + a.title.hashCode() + a.rawtext.hashCode();
+          }
+          q.release(batch);
+        }
+      }
+      catch(InterruptedException e) {
+        return;
+      }
+      long time = System.currentTimeMillis() - start;
+      System.err.format("%s: %d articles in %d ms (%.2f/s), checksum %08x\n", //
+          bytes ? "PageSplitter" : "XMLEventReader", count, time, count * 1000. / Math.max(time, 1), hash);
     }
   }
 
@@ -267,6 +658,15 @@ public class ParseWikipedia {
    * @param args Command line attributes
    */
   public static void main(String[] args) {
+    if(args.length == 2 && "--benchmark-readers".equals(args[0])) {
+      benchmarkReaders(args[1]);
+      return;
+    }
+    final boolean resume = args.length == 1 && "--resume".equals(args[0]);
+    final boolean delta = Boolean.parseBoolean(Config.get("loader.delta").trim());
+    if(delta && resume) {
+      throw new Error("Delta updates do not use checkpoints, and cannot be resumed.");
+    }
     //多线程
     int par = Math.min(Integer.valueOf(Config.get("parallelism")), Runtime.getRuntime().availableProcessors());
     if(par < 1) {
@@ -276,20 +676,48 @@ public class ParseWikipedia {
     try {
       List<Thread> threads = new ArrayList<>();
 
-      BlockingQueue<Article> q1 = new ArrayBlockingQueue<>(100);
+      ArticleQueue q1 = new ArticleQueue(Long.parseLong(Config.get("loader.queue.mb")) << 20);
       ParseWikipedia l = new ParseWikipedia();
+      l.byteReader = !"stax".equals(Config.get("loader.reader"));
       // Start the reader: 要处理的数据来源，如果处理多个，中间使用逗号分割
       //创建线程，解析XML文件，并生成Article
       for(String s : Config.get("loader.source").split(",")) {
         //获取文件名，并按-分割，得到的如enwiki:、dewiki等
         String p = new File(s).getName().split("-")[0] + ":";
+        String index = findMultistreamIndex(s);
+        if(index != null) {
+          threads.addAll(l.makeMultistreamReaderThreads(s, index, p, Integer.valueOf(Config.get("loader.readers")), q1));
+          continue;
+        }
         Thread reader = l.makeReaderThread(s, p, q1);
         threads.add(reader);
       }
-      RedirectCollector r = new RedirectCollector(Config.get("redirects.output"));
-      indexer = new LuceneWikipediaIndexer(Config.get("indexer.dir"));
-      LinkCollector lc = new LinkCollector(Config.get("links.output"));
-      LuceneLinkTokenizer lt = new LuceneLinkTokenizer(Config.get("linktext.output"));
+      final long interval = delta ? 0 : (long) (Double.parseDouble(Config.get("loader.checkpoint.minutes").trim()) * 60000);
+      ParseCheckpoint cp = new ParseCheckpoint(Config.get("loader.checkpoint.dir").trim());
+      if(resume) {
+        cp.restore(Config.get("indexer.dir"), l.sources());
+        l.resume(cp.positions());
+      }
+      TitleDictionary titles = resume ? cp.loadTitles() : //
+          delta ? TitleDictionary.load(Config.get("titles.output")) : new TitleDictionary(1 << 20);
+      RedirectCollector r = new RedirectCollector(Config.get("redirects.output"), titles, Integer.parseInt(Config.get("redirects.buffer.mb").trim()) << 20);
+      indexer = new LuceneWikipediaIndexer(Config.get("indexer.dir"), Config.get("indexer.profile").trim(), titles, resume || delta);
+      // In delta mode, only the links of new and changed articles are written, then patched into the previous output.
+      String links = Config.get("links.output"), linksDelta = IndexDelta.sibling(links, "delta");
+      // Delta links are not merged, but patched into the previous output.
+      LinkCollector lc = new LinkCollector(delta ? linksDelta : links, par, cp.linksOffsets(), //
+          delta ? 0 : Integer.parseInt(Config.get("links.merge.mb").trim()) << 20);
+      // Counts cannot be removed from the sketch, so delta updates count exactly.
+      final long sketch = delta ? 0 : Long.parseLong(Config.get("linktext.sketch.mb").trim()) << 20;
+      LuceneLinkTokenizer lt = new LuceneLinkTokenizer(Config.get("linktext.output"), par, Long.parseLong(Config.get("linktext.buffer.mb").trim()) << 20, sketch);
+      if(resume)
+        cp.load(r, lt);
+      if(delta) {
+        lt.load(Config.get("linktext.counts"));
+        l.delta = new IndexDelta(indexer.openPrevious(), titles);
+      }
+      cp.attach(titles, r, indexer, lc, lt);
+      List<HandlerList> handlers = new ArrayList<>();
       System.err.println("Starting " + par + " worker threads.");
       //创建若干个消费进程 每个消费进程都会有若干个handler，包括RedirectHandler、IndexHandler(包含了LinkHandler和LuceneLinkHandler)
       //其中RedirectHandler负责生成redirect.gz文件，格式为"{prefix}{title}" "{prefix}{redirect}[\t{anchor}]"
@@ -303,11 +731,24 @@ public class ParseWikipedia {
         h2.add(lc.makeThreadHandler());
         h2.add(lt.makeThreadHandler());
         threads.add(a);
+        handlers.add(h);
       }
 
       // Start all:
       for(Thread th : threads)
         th.start();
+      // Take checkpoints while reading:
+      if(interval > 0) {
+        long next = System.currentTimeMillis() + interval;
+        for(Thread th : l.readers)
+          while(th.isAlive()) {
+            th.join(Math.max(next - System.currentTimeMillis(), 1));
+            if(System.currentTimeMillis() >= next) {
+              l.checkpoint(q1, handlers, cp);
+              next = System.currentTimeMillis() + interval;
+            }
+          }
+      }
       // Wait for all:
       for(Thread th : threads)
         try {
@@ -317,10 +758,20 @@ public class ParseWikipedia {
           e.printStackTrace();
         }
       // Close in a controlled order:
+      if(delta)
+        l.delta.finish(indexer, lt.makeRemovalHandler());
       r.close(); // Before lt!
       indexer.close(); // Before lc, lt!
+      titles.save(Config.get("titles.output"));
       lc.close();
+      if(delta)
+        l.delta.patchLinks(links, linksDelta);
+      lt.save(Config.get("linktext.counts")); // For delta updates
       lt.close();
+      cp.delete();
+    }
+    catch(InterruptedException e) {
+      System.err.println("Processing interrupted.");
     }
     catch(IOException e) {
       e.printStackTrace();
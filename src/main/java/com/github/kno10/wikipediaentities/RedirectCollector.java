@@ -1,75 +1,76 @@
 package com.github.kno10.wikipediaentities;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.PrintStream;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
-import com.github.kno10.wikipediaentities.util.Util;
+import com.github.kno10.wikipediaentities.util.ExternalSorter;
+import com.github.kno10.wikipediaentities.util.TitleDictionary;
 
 /**
  * Collect all redirections into an output file.
  *
+ * Every thread buffers its redirects as UTF-8 records, which are sorted and
+ * spilled to temporary files next to the output when the buffer is full. The
+ * output is a merge of these runs, sorted by title. If a title has more than
+ * one redirect, the first in this order is kept.
+ *
  * @author Erich Schubert
  */
 public class RedirectCollector {
   /** Output filename */
   private String out;
 
-  /** Hashmap storage */
-  protected ConcurrentHashMap<String, String> redirects = new ConcurrentHashMap<>(100000);
+  /** Sorted record storage */
+  private ExternalSorter sorter;
 
-  /** Has the transitive closure been computed */
-  protected boolean closed = false;
+  /** Title dictionary */
+  private TitleDictionary titles;
 
   /**
    * Constructor.
    *
    * @param out Output file name
+   * @param titles Title dictionary, redirect sources and targets will be added
+   * @param bufferSize Buffer size per thread, in bytes
    */
-  public RedirectCollector(String out) {
+  public RedirectCollector(String out, TitleDictionary titles, int bufferSize) {
     this.out = out;
-  }
-
-  /** Compute the transitive closure of redirects. */
-  public synchronized Map<String, String> transitiveClosure() {
-    if(closed)
-      return redirects;
-    System.err.println("Computing transitive closure of redirects.");
-    HashSet<String> seen = new HashSet<>();
-    // Iterate using a copy to avoid concurrent modification
-    for(String key : new ArrayList<>(redirects.keySet())) {
-      String targ = redirects.get(key), targ2;
-      assert (targ != null);
-      seen.add(key);
-      seen.add(targ);
-      while((targ2 = redirects.get(targ)) != null) {
-        if(!seen.add(targ2)) {
-          System.err.format("Redirect cycle detected involving %s > %s > %s\n", key, targ, targ2);
-          break;
-        }
-        targ = targ2;
-      }
-      if(key.equals(targ))
-        redirects.remove(key);
-      else
-        redirects.put(key, targ);
-      seen.clear();
-    }
-    closed = true;
-    return redirects;
+    this.titles = titles;
+    this.sorter = new ExternalSorter(new File(out).getAbsoluteFile().getParentFile(), "redirects", '\t', bufferSize);
   }
 
   public void close() throws IOException {
-    //transitiveClosure();
     System.err.format("Closing %s output.\n", getClass().getSimpleName());
-    PrintStream writer = Util.openOutput(out);
-    for(String title : redirects.keySet())
-      writer.append(title).append('\t').append(redirects.get(title)).append('\n');
-    if(writer != System.out)
-      writer.close();
+    long n = sorter.merge(out);
+    sorter.close();
+    System.err.format("Wrote %d redirects.\n", n);
+  }
+
+  /**
+   * Write the redirects collected since the last save, or all. The handlers
+   * must have been checkpointed, and the file is read again at a full save or
+   * close; it must be kept until then.
+   *
+   * @param fname File name
+   * @param full Write all redirects, replacing the files of earlier saves
+   * @throws IOException on errors
+   */
+  public void save(String fname, boolean full) throws IOException {
+    sorter.checkpoint(fname, full);
+  }
+
+  /**
+   * Load a file of the redirects of a checkpoint, written by
+   * {@link #save(String, boolean)}. The file is read again at the next full
+   * save or close.
+   *
+   * @param fname File name
+   * @throws IOException on errors
+   */
+  public void load(String fname) throws IOException {
+    if(!new File(fname).exists())
+      throw new IOException("Missing checkpoint file " + fname);
+    sorter.addRun(fname);
   }
 
   public Handler makeThreadHandler() {
@@ -77,14 +78,39 @@ public class RedirectCollector {
   }
 
   private class RedirectHandler extends AbstractHandler {
+    /** Record buffer of this thread */
+    private ExternalSorter.Buffer buffer = sorter.newBuffer();
+
     @Override
     public void redirect(String prefix, String title, String redirect, String anchor) {
       if(redirect == null || redirect.length() == 0)
         return;
-      if(anchor != null)
-        redirects.put(prefix + title, prefix + redirect + '\t' + anchor);
-      else
-        redirects.put(prefix + title, prefix + redirect);
+      titles.add(prefix + title);
+      titles.add(prefix + redirect);
+      try {
+        if(anchor != null)
+          buffer.add(prefix + title + '\t' + prefix + redirect + '\t' + anchor);
+        else
+          buffer.add(prefix + title + '\t' + prefix + redirect);
+      }
+      catch(IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    @Override
+    public void checkpoint() {
+      close();
+    }
+
+    @Override
+    public void close() {
+      try {
+        buffer.spill();
+      }
+      catch(IOException e) {
+        throw new RuntimeException(e);
+      }
     }
   }
 }
@@ -0,0 +1,125 @@
+package com.github.kno10.wikipediaentities;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+
+import com.github.kno10.wikipediaentities.util.LinkList;
+import com.github.kno10.wikipediaentities.util.TitleDictionary;
+
+/**
+ * Links of every document, resolved once to Wikidata entities.
+ *
+ * For each document, we store the distinct pairs of (entity, label), sorted by
+ * entity. The label is stored as the id of the candidate query equal to its
+ * normalized tokens, or -1. The pairs are kept off-heap, in pages of direct
+ * buffers, and are addressed by a per-document offset.
+ */
+public class ResolvedLinkCache {
+  /** Page size */
+  private static final int PAGE_BITS = 24, PAGE_MASK = (1 << PAGE_BITS) - 1;
+
+  /** Start offsets of each document, and the end offset */
+  private long[] offsets;
+
+  /** Data pages */
+  private IntBuffer[] pages = new IntBuffer[16];
+
+  /** Number of values stored */
+  private long size = 0;
+
+  /**
+   * Build the cache.
+   *
+   * @param reader Index reader
+   * @param datamap Wikidata entry index, by title id
+   * @param queries Candidate queries, normalized by {@link LabelAnalyzer}
+   * @throws IOException on index read errors
+   */
+  public ResolvedLinkCache(IndexReader reader, int[] datamap, TitleDictionary queries) throws IOException {
+    System.err.format("Resolving links of %d documents.\n", reader.maxDoc());
+    final long start = System.currentTimeMillis();
+    offsets = new long[reader.maxDoc() + 1];
+    LinkList.Reader lis = new LinkList.Reader();
+    long[] pairs = new long[256];
+    for(LeafReaderContext ctx : reader.leaves()) {
+      BinaryDocValues values = ctx.reader().getBinaryDocValues(LuceneWikipediaIndexer.LUCENE_FIELD_LINKS);
+      for(int d = 0, max = ctx.reader().maxDoc(); d < max; d++) {
+        offsets[ctx.docBase + d] = size;
+        if(values == null || !values.advanceExact(d))
+          continue;
+        lis.reset(values.binaryValue());
+        int n = 0;
+        while(lis.next()) {
+          final int id = lis.target();
+          final int ent = id < datamap.length ? datamap[id] : -1;
+          if(ent < 0)
+            continue;
+          final int qid = lis.label(queries);
+          if(n == pairs.length)
+            pairs = Arrays.copyOf(pairs, n << 1);
+          pairs[n++] = ((long) ent << 32) | (qid & 0xFFFFFFFFL);
+        }
+        Arrays.sort(pairs, 0, n);
+        for(int i = 0; i < n; i++) {
+          if(i > 0 && pairs[i] == pairs[i - 1])
+            continue; // Duplicate
+          append((int) (pairs[i] >>> 32));
+          append((int) pairs[i]);
+        }
+      }
+    }
+    offsets[reader.maxDoc()] = size;
+    System.err.format("Resolved %d links in %d ms.\n", size >>> 1, System.currentTimeMillis() - start);
+  }
+
+  /**
+   * Append a value.
+   *
+   * @param v Value
+   */
+  private void append(int v) {
+    final int p = (int) (size >>> PAGE_BITS);
+    if(p == pages.length)
+      pages = Arrays.copyOf(pages, p << 1);
+    if(pages[p] == null)
+      pages[p] = ByteBuffer.allocateDirect(4 << PAGE_BITS).asIntBuffer();
+    pages[p].put((int) (size & PAGE_MASK), v);
+    ++size;
+  }
+
+  /**
+   * Get the start offset of a document's pairs.
+   *
+   * @param doc Document id
+   * @return Offset
+   */
+  public long start(int doc) {
+    return offsets[doc];
+  }
+
+  /**
+   * Get the end offset of a document's pairs.
+   *
+   * @param doc Document id
+   * @return Offset (exclusive)
+   */
+  public long end(int doc) {
+    return offsets[doc + 1];
+  }
+
+  /**
+   * Get a stored value. Even offsets are entities, odd offsets query ids.
+   *
+   * @param off Offset
+   * @return Value
+   */
+  public int get(long off) {
+    return pages[(int) (off >>> PAGE_BITS)].get((int) (off & PAGE_MASK));
+  }
+}
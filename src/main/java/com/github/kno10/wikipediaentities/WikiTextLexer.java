@@ -0,0 +1,500 @@
+package com.github.kno10.wikipediaentities;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Single-pass lexer for wiki text, which removes comments, math, references,
+ * templates and table markup, replaces links with their labels, and collects
+ * the (target, label) pairs of the links.
+ *
+ * Nesting of templates and links is tracked with counters and a stack of
+ * output positions: the contents of a link are written to the output as usual,
+ * and replaced by the label once the link is closed. This gives the same links
+ * and tokens as the regular expressions previously used by the indexer, with
+ * their bugs fixed, except for some corner cases where the regular expressions
+ * were line- or depth-limited (multi-line comments, deeply nested templates).
+ *
+ * Not thread safe; use one instance per thread.
+ */
+public class WikiTextLexer {
+  /** Link namespaces to ignore */
+  private static final String[] IGNORED_NAMESPACES = { "file", "wikisource", //
+      "category", "kategorie", "catégorie", "categoría", //
+      "wikipedia", "commons", "image", //
+      "fichier", "datei", "bild", "archivo", "imagen" };
+
+  /** Output buffer */
+  private StringBuilder out = new StringBuilder();
+
+  /** Buffer for building link targets */
+  private StringBuilder tmp = new StringBuilder();
+
+  /** Output positions of the open links */
+  private int[] marks = new int[16];
+
+  /** Flags for open links that contain other links */
+  private boolean[] nested = new boolean[16];
+
+  /** Number of open links */
+  private int depth;
+
+  /** Output position of the open reference, or -1 */
+  private int refmark;
+
+  /** Output position of the open single-line table, or -1 */
+  private int tablemark;
+
+  /** Table nesting depth */
+  private int tables;
+
+  /** Positions of the templates opened in a scan */
+  private int[] opened = new int[16];
+
+  /** Positions of the templates that were found unclosed */
+  private int[] unclosed = new int[16];
+
+  /** Number of unclosed templates, and the next one to expect */
+  private int numUnclosed, nextUnclosed;
+
+  /** Output list of links */
+  private List<String> links;
+
+  /**
+   * Clean the wiki text, and collect the links.
+   *
+   * @param text Wiki text
+   * @param links Output list of link targets and labels, alternating
+   * @return Cleaned text
+   */
+  public String process(String text, List<String> links) {
+    this.links = links;
+    out.setLength(0);
+    depth = 0;
+    refmark = -1;
+    tablemark = -1;
+    tables = 0;
+    numUnclosed = nextUnclosed = 0;
+    final int len = text.length();
+    int i = 0, line = -1;
+    while(i < len) {
+      if(i != line && (i == 0 || text.charAt(i - 1) == '\n')) {
+        line = i;
+        int j = lineStart(text, i, len);
+        if(j != i) {
+          i = j;
+          continue;
+        }
+      }
+      final char c = text.charAt(i);
+      if(c == '<') {
+        int j = tag(text, i, len);
+        if(j > i) {
+          i = j;
+          continue;
+        }
+      }
+      else if(c == '{' && i + 1 < len && text.charAt(i + 1) == '{') {
+        int j = isUnclosed(i) ? -1 : skipTemplate(text, i, len);
+        if(j < 0) { // Unbalanced, keep.
+          out.append("{{");
+          i += 2;
+          continue;
+        }
+        i = j;
+        continue;
+      }
+      else if(c == '[' && i + 2 < len && text.charAt(i + 1) == '[' && text.charAt(i + 2) != '[') {
+        if(depth == marks.length) {
+          marks = Arrays.copyOf(marks, depth << 1);
+          nested = Arrays.copyOf(nested, depth << 1);
+        }
+        if(depth > 0)
+          nested[depth - 1] = true;
+        nested[depth] = false;
+        marks[depth++] = out.length();
+        i += 2;
+        continue;
+      }
+      else if(c == ']' && depth > 0 && i + 1 < len && text.charAt(i + 1) == ']') {
+        closeLink();
+        i += 2;
+        continue;
+      }
+      else if(c == '{' && tablemark < 0 && i + 1 < len && text.charAt(i + 1) == '|') {
+        tablemark = out.length();
+      }
+      else if(c == '|' && tablemark >= 0 && i + 1 < len && text.charAt(i + 1) == '}') {
+        out.setLength(tablemark); // Single-line table
+        tablemark = -1;
+        i += 2;
+        continue;
+      }
+      else if(c == '\n' && depth == 0) {
+        tablemark = -1;
+      }
+      else if(tables > 0 && (c == '|' || c == '!') && i + 1 < len && text.charAt(i + 1) == c) {
+        out.append(' '); // Inline cell separator
+        i += 2;
+        continue;
+      }
+      out.append(c);
+      ++i;
+    }
+    // Unclosed links are kept as is.
+    while(depth > 0)
+      out.insert(marks[--depth], "[[");
+    this.links = null;
+    return out.toString();
+  }
+
+  /**
+   * Process the beginning of a line: table markup, magic words, list bullets.
+   *
+   * @param text Text
+   * @param i Line start
+   * @param len Text length
+   * @return Position to continue at
+   */
+  private int lineStart(String text, int i, int len) {
+    final char c = text.charAt(i);
+    if(c == '{' && i + 1 < len && text.charAt(i + 1) == '|') {
+      int e = endOfLine(text, i, len), j = text.indexOf("|}", i + 2);
+      if(j < 0 || j >= e) { // Otherwise a single-line table
+        ++tables;
+        return e;
+      }
+    }
+    if(tables > 0 && (c == '|' || c == '!')) {
+      final char n = i + 1 < len ? text.charAt(i + 1) : '\n';
+      if(c == '|' && n == '}') {
+        --tables;
+        return endOfLine(text, i, len);
+      }
+      if(c == '|' && n == '-')
+        return endOfLine(text, i, len);
+      return i + (c == '|' && n == '+' ? 2 : 1);
+    }
+    int j = i;
+    while(j < len && text.charAt(j) == ' ')
+      ++j;
+    if(j < len && text.charAt(j) == '*') {
+      while(j < len && text.charAt(j) == '*')
+        ++j;
+      return j;
+    }
+    while(j < len && isSpace(text.charAt(j)) && text.charAt(j) != '\n')
+      ++j;
+    if(j + 4 < len && text.charAt(j) == '_' && text.charAt(j + 1) == '_') {
+      int k = j + 2;
+      while(k < len && (Character.isLetterOrDigit(text.charAt(k)) || (text.charAt(k) == '_' && !text.startsWith("__", k))))
+        ++k;
+      if(k > j + 2 && text.startsWith("__", k)) {
+        k += 2;
+        while(k < len && isSpace(text.charAt(k)) && text.charAt(k) != '\n')
+          ++k;
+        if(k == len || text.charAt(k) == '\n')
+          return k; // Magic word, such as __TOC__
+      }
+    }
+    return i;
+  }
+
+  /**
+   * Process HTML-style tags and comments.
+   *
+   * @param text Text
+   * @param i Position of the opening bracket
+   * @param len Text length
+   * @return Position to continue at, or {@code i} to keep the character.
+   */
+  private int tag(String text, int i, int len) {
+    if(text.startsWith("<!--", i)) {
+      int j = text.indexOf("-->", i + 4);
+      return j < 0 ? i : j + 3;
+    }
+    int j = skipMath(text, i, len);
+    if(j > i)
+      return j;
+    if(text.regionMatches(true, i, "<sub>", 0, 5) || text.regionMatches(true, i, "<sup>", 0, 5))
+      return i + 5;
+    if(text.regionMatches(true, i, "</sub>", 0, 6) || text.regionMatches(true, i, "</sup>", 0, 6))
+      return i + 6;
+    if(text.regionMatches(true, i, "<ref", 0, 4) && i + 4 < len && isTagEnd(text.charAt(i + 4))) {
+      int e = text.indexOf('>', i + 4);
+      if(e < 0)
+        return i;
+      if(text.charAt(e - 1) != '/' && refmark < 0)
+        refmark = out.length(); // Drop the contents on close.
+      return e + 1;
+    }
+    if(refmark >= 0 && text.regionMatches(true, i, "</ref>", 0, 6)) {
+      if(refmark <= out.length())
+        out.setLength(refmark);
+      if(tablemark > refmark)
+        tablemark = -1;
+      while(depth > 0 && marks[depth - 1] > refmark)
+        --depth;
+      refmark = -1;
+      return i + 6;
+    }
+    return i;
+  }
+
+  /**
+   * Skip a math element.
+   *
+   * @param text Text
+   * @param i Position of the opening bracket
+   * @param len Text length
+   * @return End position, or {@code i}
+   */
+  private static int skipMath(String text, int i, int len) {
+    if(!text.regionMatches(true, i, "<math", 0, 5) || i + 5 >= len || !isTagEnd(text.charAt(i + 5)))
+      return i;
+    for(int j = text.indexOf('>', i + 5); j >= 0 && j < len; j = text.indexOf('<', j + 1))
+      if(text.regionMatches(true, j, "</math>", 0, 7))
+        return j + 7;
+    return i;
+  }
+
+  /**
+   * Skip a template, including nested templates.
+   *
+   * If the template is not closed, the scan has reached the end of the text;
+   * the templates it left open are remembered, so that they are kept as text
+   * without scanning the remainder again.
+   *
+   * @param text Text
+   * @param i Position of the opening braces
+   * @param len Text length
+   * @return End position, or -1 if not closed.
+   */
+  private int skipTemplate(String text, int i, int len) {
+    int d = 0;
+    while(i < len) {
+      final char c = text.charAt(i);
+      if(c == '{' && i + 1 < len && text.charAt(i + 1) == '{') {
+        if(d == opened.length)
+          opened = Arrays.copyOf(opened, d << 1);
+        opened[d++] = i;
+        i += 2;
+      }
+      else if(c == '}' && i + 1 < len && text.charAt(i + 1) == '}') {
+        i += 2;
+        if(--d == 0)
+          return i;
+      }
+      else if(c == '<' && text.startsWith("<!--", i)) {
+        int j = text.indexOf("-->", i + 4);
+        i = j < 0 ? i + 4 : j + 3;
+      }
+      else if(c == '<') {
+        int j = skipMath(text, i, len);
+        i = j > i ? j : i + 1;
+      }
+      else {
+        ++i;
+      }
+    }
+    int[] t = unclosed; // Swap the buffers.
+    unclosed = opened;
+    opened = t;
+    numUnclosed = d;
+    nextUnclosed = 1; // The first is the current template.
+    return -1;
+  }
+
+  /**
+   * Test for a template that an earlier scan found unclosed.
+   *
+   * @param i Position of the opening braces
+   * @return {@code true} if known to be unclosed
+   */
+  private boolean isUnclosed(int i) {
+    while(nextUnclosed < numUnclosed && unclosed[nextUnclosed] < i)
+      ++nextUnclosed;
+    return nextUnclosed < numUnclosed && unclosed[nextUnclosed] == i;
+  }
+
+  /**
+   * Close the innermost open link, and replace it with its label.
+   */
+  private void closeLink() {
+    final int a = marks[--depth], b = out.length();
+    if(nested[depth]) { // Images with captions etc.
+      out.setLength(a);
+      return;
+    }
+    int pipe = -1, pipes = 0, last = -1, hash = -1;
+    for(int k = a; k < b; k++) {
+      final char c = out.charAt(k);
+      if(c == '[' || c == ']') { // Not a link
+        out.insert(a, "[[").append("]]");
+        return;
+      }
+      if(c == '|') {
+        pipe = pipe < 0 ? k : pipe;
+        last = k;
+        ++pipes;
+      }
+      else if(c == '#' && hash < 0 && pipe < 0)
+        hash = k;
+    }
+    // Target, up to the anchor or the first pipe:
+    int ts = a, te = hash >= 0 ? hash : pipe >= 0 ? pipe : b;
+    // Label, after the last pipe:
+    int ls = -1;
+    if(hash >= 0) { // The anchor may contain further pipes.
+      if(last >= 0 && validLabel(last + 1, b))
+        ls = last + 1;
+    }
+    else if(pipes == 1 || (pipes == 2 && indexOf('#', pipe + 1, last) < 0)) {
+      if(!validLabel(last + 1, b)) {
+        out.setLength(a);
+        return;
+      }
+      ls = last + 1;
+    }
+    else if(pipes > 0) { // Too many pipes, or anchors in between.
+      out.setLength(a);
+      return;
+    }
+    while(ts < te && out.charAt(ts) <= ' ')
+      ++ts;
+    while(te > ts && out.charAt(te - 1) <= ' ')
+      --te;
+    if(ts == te) { // Section link, keep the label only.
+      String label = ls >= 0 ? trimmed(ls, b) : "";
+      out.setLength(a);
+      out.append(label);
+      return;
+    }
+    if(ignored(ts, te)) {
+      out.setLength(a);
+      return;
+    }
+    tmp.setLength(0);
+    for(int k = ts; k < te; k++) {
+      final char c = out.charAt(k);
+      tmp.append(c == '\n' ? ' ' : c);
+    }
+    final char first = tmp.charAt(0);
+    if(Character.isLowerCase(first))
+      tmp.setCharAt(0, Character.toUpperCase(first));
+    final String target = tmp.toString();
+    final String label = ls >= 0 ? trimmed(ls, b) : target;
+    out.setLength(a);
+    out.append(label);
+    links.add(target);
+    links.add(label);
+  }
+
+  /**
+   * Test for a link to an ignored namespace.
+   *
+   * @param ts Target start
+   * @param te Target end
+   * @return {@code true} if the link should be ignored.
+   */
+  private boolean ignored(int ts, int te) {
+    if(out.charAt(ts) == ':')
+      return true;
+    int ne = indexOf(':', ts, te);
+    ne = ne < 0 ? te : ne;
+    while(ne > ts && out.charAt(ne - 1) <= ' ')
+      --ne;
+    final int l = ne - ts;
+    for(String ns : IGNORED_NAMESPACES) {
+      if(ns.length() != l)
+        continue;
+      boolean match = true;
+      for(int k = 0; k < l && match; k++) {
+        final char c1 = out.charAt(ts + k), c2 = ns.charAt(k);
+        match = c1 == c2 || Character.toLowerCase(c1) == c2 || Character.toLowerCase(Character.toUpperCase(c1)) == c2;
+      }
+      if(match)
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Test for a valid link label.
+   *
+   * @param s Start
+   * @param e End
+   * @return {@code true} if non-empty and without anchors
+   */
+  private boolean validLabel(int s, int e) {
+    return e > s && indexOf('#', s, e) < 0;
+  }
+
+  /**
+   * Get a trimmed part of the output, with newlines replaced.
+   *
+   * @param s Start
+   * @param e End
+   * @return String
+   */
+  private String trimmed(int s, int e) {
+    while(s < e && out.charAt(s) <= ' ')
+      ++s;
+    while(e > s && out.charAt(e - 1) <= ' ')
+      --e;
+    tmp.setLength(0);
+    for(int k = s; k < e; k++) {
+      final char c = out.charAt(k);
+      tmp.append(c == '\n' ? ' ' : c);
+    }
+    return tmp.toString();
+  }
+
+  /**
+   * Find a character in the output.
+   *
+   * @param c Character
+   * @param s Start
+   * @param e End
+   * @return Position, or -1
+   */
+  private int indexOf(char c, int s, int e) {
+    for(int k = s; k < e; k++)
+      if(out.charAt(k) == c)
+        return k;
+    return -1;
+  }
+
+  /**
+   * Find the end of the current line.
+   *
+   * @param text Text
+   * @param i Position
+   * @param len Length
+   * @return Position of the newline, or the text length
+   */
+  private static int endOfLine(String text, int i, int len) {
+    int j = text.indexOf('\n', i);
+    return j < 0 ? len : j;
+  }
+
+  /**
+   * Whitespace, as in regular expressions.
+   *
+   * @param c Character
+   * @return {@code true} for whitespace
+   */
+  private static boolean isSpace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+
+  /**
+   * Characters that can end a tag name.
+   *
+   * @param c Character
+   * @return {@code true} for tag name terminators
+   */
+  private static boolean isTagEnd(char c) {
+    return c == '>' || c == '/' || isSpace(c);
+  }
+}
@@ -0,0 +1,150 @@
+package com.github.kno10.wikipediaentities.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+/**
+ * Resolve chains in a graph where every node has at most one successor (such
+ * as redirects), in parallel by pointer jumping.
+ *
+ * Each node either has a value, or takes the value of the first node with a
+ * value along its chain of successors. The state of every node is a single
+ * integer: a pointer further along its chain (&ge; 0), or the final value v
+ * encoded as -v-2. Every round replaces each pointer by the state of the node
+ * it points to, which at least halves the remaining chain lengths. As states
+ * are single integers, the rounds can update them in place without locking:
+ * any state read is either a valid pointer along the same chain, or the final
+ * value. Every round resolves at least the unresolved node closest to the end
+ * of each chain; once a round resolves no node, the remaining nodes lead into
+ * cycles. This happens after at most log2(n)+1 rounds.
+ */
+public class ChainResolver {
+  /** Minimum number of nodes per task */
+  private static final int MIN_CHUNK = 1 << 14;
+
+  /** Node states */
+  private final int[] state;
+
+  /** Nodes to resolve */
+  private final int[] nodes;
+
+  /** Number of rounds used */
+  private int rounds = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param next Successor of each node, -1 for none
+   * @param values Value of each node, -1 for none
+   * @param nodes Nodes to resolve, others keep their value
+   */
+  public ChainResolver(int[] next, int[] values, int[] nodes) {
+    this.nodes = nodes;
+    state = new int[values.length];
+    for(int i = 0; i < values.length; i++)
+      state[i] = -values[i] - 2;
+    for(int v : nodes)
+      if(values[v] < 0 && next[v] >= 0)
+        state[v] = next[v];
+  }
+
+  /**
+   * Run the pointer jumping.
+   *
+   * @param threads Number of threads
+   * @throws InterruptedException when interrupted
+   */
+  public void run(int threads) throws InterruptedException {
+    final int maxRounds = 33 - Integer.numberOfLeadingZeros(Math.max(state.length, 1));
+    final int chunks = Math.max(1, Math.min(threads * 4, nodes.length / MIN_CHUNK));
+    List<Callable<Integer>> tasks = new ArrayList<>(chunks);
+    for(int i = 0; i < chunks; i++) {
+      final int b = (int) (i * (long) nodes.length / chunks);
+      final int e = (int) ((i + 1) * (long) nodes.length / chunks);
+      tasks.add(new Callable<Integer>() {
+        @Override
+        public Integer call() {
+          return jump(b, e);
+        }
+      });
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+    try {
+      for(int prev = -1; rounds < maxRounds;) {
+        ++rounds;
+        int active = 0;
+        for(Future<Integer> f : pool.invokeAll(tasks))
+          active += f.get();
+        if(active == 0 || active == prev)
+          break; // Resolved, or only cycles remain.
+        prev = active;
+      }
+    }
+    catch(ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+    finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * One round of pointer jumping, for a range of nodes.
+   *
+   * @param b Begin
+   * @param e End (exclusive)
+   * @return Number of nodes not yet resolved
+   */
+  private int jump(int b, int e) {
+    final int[] state = this.state;
+    int active = 0;
+    for(int i = b; i < e; i++) {
+      final int v = nodes[i], p = state[v];
+      if(p < 0)
+        continue;
+      final int s = state[p];
+      state[v] = s;
+      if(s >= 0)
+        ++active;
+    }
+    return active;
+  }
+
+  /**
+   * Get the resolved value of a node.
+   *
+   * @param v Node
+   * @return Value, -1 if none (or if the chain ends in a cycle)
+   */
+  public int value(int v) {
+    final int s = state[v];
+    return s < 0 ? -s - 2 : -1;
+  }
+
+  /**
+   * Get the nodes whose chain ends in a cycle.
+   *
+   * @return Unresolved nodes
+   */
+  public IntArrayList unresolved() {
+    IntArrayList l = new IntArrayList();
+    for(int v : nodes)
+      if(state[v] >= 0)
+        l.add(v);
+    return l;
+  }
+
+  /**
+   * @return Number of rounds used
+   */
+  public int rounds() {
+    return rounds;
+  }
+}
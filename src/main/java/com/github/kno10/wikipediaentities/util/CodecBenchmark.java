@@ -0,0 +1,58 @@
+package com.github.kno10.wikipediaentities.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Compare the output codecs of {@link Util#compress} on a file: time to write
+ * and to read back with {@link Util#openInput}, and the size on disk.
+ */
+public class CodecBenchmark {
+  /**
+   * Run the benchmark.
+   *
+   * @param args Input file, and optionally the codec suffixes to compare
+   * @throws IOException on errors
+   */
+  public static void main(String[] args) throws IOException {
+    String[] codecs = args.length > 1 ? new String[args.length - 1] : new String[] { ".gz", ".zst", ".lz4", ".bz2" };
+    if(args.length > 1)
+      System.arraycopy(args, 1, codecs, 0, codecs.length);
+    byte[] buf = new byte[1 << 16];
+    long total = 0;
+    CRC32 crc = new CRC32();
+    try (InputStream in = new FileInputStream(args[0])) {
+      for(int n; (n = in.read(buf)) > 0;) {
+        crc.update(buf, 0, n);
+        total += n;
+      }
+    }
+    System.err.format("%s: %d bytes, crc %08x\n", args[0], total, crc.getValue());
+    for(String codec : codecs) {
+      File f = File.createTempFile("codec", codec);
+      long start = System.currentTimeMillis();
+      try (InputStream in = new FileInputStream(args[0]);
+          OutputStream out = Util.compress(new FileOutputStream(f), f.getName())) {
+        for(int n; (n = in.read(buf)) > 0;)
+          out.write(buf, 0, n);
+      }
+      final long write = System.currentTimeMillis() - start;
+      start = System.currentTimeMillis();
+      CRC32 check = new CRC32();
+      try (InputStream in = Util.openInput(f.getPath())) {
+        for(int n; (n = in.read(buf)) > 0;)
+          check.update(buf, 0, n);
+      }
+      final long read = System.currentTimeMillis() - start;
+      System.err.format("%-4s write %6d ms, read %6d ms, size %11d (%5.1f%%), %s\n", //
+          codec, write, read, f.length(), f.length() * 100. / Math.max(total, 1), //
+          check.getValue() == crc.getValue() ? "verified" : "MISMATCH");
+      f.delete();
+    }
+  }
+}
@@ -0,0 +1,169 @@
+package com.github.kno10.wikipediaentities.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Count-min sketch of strings, shared by many threads without locks.
+ *
+ * Each of the rows has its own hash function, and a key increments one
+ * counter per row; the estimate is the minimum of these counters. It never
+ * underestimates; with N additions and width w, it overestimates by more than
+ * e N / w with probability at most exp(-depth).
+ */
+public class CountMinSketch {
+  /** Number of rows */
+  private int depth;
+
+  /** Width of a row, minus one; the width is a power of two */
+  private int mask;
+
+  /** Counters, row by row */
+  private AtomicIntegerArray table;
+
+  /** Number of additions */
+  private AtomicLong total = new AtomicLong();
+
+  /**
+   * Constructor.
+   *
+   * @param bytes Memory to use, rounded down to a power of two per row
+   * @param depth Number of rows
+   */
+  public CountMinSketch(long bytes, int depth) {
+    final long width = Long.highestOneBit(Math.max(bytes / (depth << 2), 64));
+    this.depth = depth;
+    this.mask = (int) Math.min(width, 1 << 28) - 1;
+    this.table = new AtomicIntegerArray(depth * (mask + 1));
+  }
+
+  /**
+   * Second hash of a string.
+   *
+   * @param key Key
+   * @return Hash code, odd
+   */
+  private static int hash2(CharSequence key) {
+    int h = 0x811C9DC5;
+    for(int i = 0, n = key.length(); i < n; i++)
+      h = (h ^ key.charAt(i)) * 0x01000193;
+    return (h ^ (h >>> 15)) | 1;
+  }
+
+  /**
+   * Add one occurrence of a key.
+   *
+   * @param key Key
+   * @return Estimated count, including this occurrence
+   */
+  public int add(String key) {
+    total.incrementAndGet();
+    final int h1 = key.hashCode() * 0x9E3779B9, h2 = hash2(key);
+    int min = Integer.MAX_VALUE;
+    for(int i = 0, h = h1; i < depth; i++, h += h2)
+      min = Math.min(min, table.incrementAndGet(i * (mask + 1) + ((h ^ (h >>> 16)) & mask)));
+    return min;
+  }
+
+  /**
+   * Estimate the count of a key.
+   *
+   * @param key Key
+   * @return Estimated count
+   */
+  public int estimate(String key) {
+    final int h1 = key.hashCode() * 0x9E3779B9, h2 = hash2(key);
+    int min = Integer.MAX_VALUE;
+    for(int i = 0, h = h1; i < depth; i++, h += h2)
+      min = Math.min(min, table.get(i * (mask + 1) + ((h ^ (h >>> 16)) & mask)));
+    return min;
+  }
+
+  /**
+   * @return Number of additions
+   */
+  public long total() {
+    return total.get();
+  }
+
+  /**
+   * @return Width of each row
+   */
+  public int width() {
+    return mask + 1;
+  }
+
+  /**
+   * @return Number of rows
+   */
+  public int depth() {
+    return depth;
+  }
+
+  /**
+   * @return Memory used by the counters, in bytes
+   */
+  public long bytes() {
+    return (long) table.length() << 2;
+  }
+
+  /**
+   * Bound on the overestimation, {@code e N / w}, which holds for a single key
+   * with probability {@code 1 - exp(-depth)}.
+   *
+   * @return Error bound
+   */
+  public double errorBound() {
+    return Math.E * total() / width();
+  }
+
+  /**
+   * Upper bound on the probability that a key is overestimated by at least
+   * the given amount, {@code (N / (w t))^depth} by the Markov inequality.
+   *
+   * @param t Overestimation
+   * @return Probability bound
+   */
+  public double overestimateProbability(int t) {
+    return Math.min(1., Math.pow(total() / ((double) width() * t), depth));
+  }
+
+  /**
+   * Save the sketch. There must be no concurrent additions.
+   *
+   * @param fname File name
+   * @throws IOException on errors
+   */
+  public void save(String fname) throws IOException {
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fname), 1 << 16))) {
+      out.writeInt(depth);
+      out.writeInt(mask + 1);
+      out.writeLong(total());
+      for(int i = 0, n = table.length(); i < n; i++)
+        out.writeInt(table.get(i));
+    }
+  }
+
+  /**
+   * Load a sketch saved with the same dimensions.
+   *
+   * @param fname File name
+   * @throws IOException on errors, or if the dimensions differ
+   */
+  public void load(String fname) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fname), 1 << 16))) {
+      if(in.readInt() != depth || in.readInt() != mask + 1)
+        throw new IOException("Sketch " + fname + " was saved with a different size.");
+      total.set(in.readLong());
+      for(int i = 0, n = table.length(); i < n; i++)
+        table.set(i, in.readInt());
+    }
+  }
+}
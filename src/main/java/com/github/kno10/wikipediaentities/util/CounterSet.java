@@ -7,6 +7,8 @@ import java.util.List;
 
 import it.unimi.dsi.fastutil.objects.Object2IntMap;
 import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2LongMap;
+import it.unimi.dsi.fastutil.objects.Object2LongOpenHashMap;
 
 /**
  * Count Objects.
@@ -14,17 +16,23 @@ import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
  * @author Erich Schubert
  */
 public class CounterSet {
+  /**
+   * Increment for exact matches: the search count is in the lower, the exact
+   * count in the upper 32 bits of the combined counter.
+   */
+  public static final long EXACT = 1L << 32;
+
   /**
    * Get a descending list of counted items.
    *
    * @return List of items.
    */
-  public static <O> List<Entry<O>> descending(Object2IntOpenHashMap<O> counters) {
+  public static <O> List<Entry<O>> descending(Object2LongOpenHashMap<O> counters) {
     ArrayList<Entry<O>> copy = new ArrayList<>(counters.size());
-    for(Iterator<Object2IntMap.Entry<O>> iter = counters.object2IntEntrySet().fastIterator(); iter.hasNext();) {
+    for(Iterator<Object2LongMap.Entry<O>> iter = counters.object2LongEntrySet().fastIterator(); iter.hasNext();) {
       // Note: fast iterator will recycle this object!
-      Object2IntMap.Entry<O> entry = iter.next();
-      copy.add(new Entry<O>(entry.getKey(), entry.getIntValue()));
+      Object2LongMap.Entry<O> entry = iter.next();
+      copy.add(new Entry<O>(entry.getKey(), entry.getLongValue()));
     }
     Collections.sort(copy);
     return copy;
@@ -42,7 +50,7 @@ public class CounterSet {
     private O key;
 
     /** Data value */
-    private int count;
+    private long count;
 
     /**
      * Constructor.
@@ -50,7 +58,7 @@ public class CounterSet {
      * @param key Key
      * @param count Count
      */
-    private Entry(O key, int count) {
+    private Entry(O key, long count) {
       super();
       this.key = key;
       this.count = count;
@@ -61,15 +69,15 @@ public class CounterSet {
     }
 
     public int getSearchCount() {
-      return count & 0xFFFF;
+      return (int) count;
     }
 
     public int getExactCount() {
-      return count >>> 16;
+      return (int) (count >>> 32);
     }
 
     public int getCombinedCount() {
-      return (count & 0xFFFF) + (count >>> 16);
+      return getSearchCount() + getExactCount();
     }
 
     @Override
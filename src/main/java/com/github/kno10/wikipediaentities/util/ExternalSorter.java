@@ -0,0 +1,460 @@
+package com.github.kno10.wikipediaentities.util;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntComparator;
+
+/**
+ * Sort text records (lines) that may not fit into memory.
+ *
+ * Every thread adds records to its own {@link Buffer}, which keeps them UTF-8
+ * encoded in a single byte array. When a buffer is full, it is sorted and
+ * spilled to a temporary run file. The output is produced by a k-way merge of
+ * all runs, in byte order (which is code point order for UTF-8). Unless all
+ * records are kept, records with the same key, up to the first separator, are
+ * reduced to the first record in this order; so the result does not depend on
+ * the order of adding.
+ *
+ * Memory use is bounded by the buffer size per thread, and one read buffer per
+ * run while merging. If there are too many runs, they are merged into one.
+ *
+ * For checkpoints, the runs spilled since the previous checkpoint are merged
+ * into a file that is kept as a run, see {@link #checkpoint}; such files are not
+ * modified afterwards.
+ */
+public class ExternalSorter implements Closeable {
+  /** Maximum number of runs to merge at once */
+  private static final int MAX_RUNS = 64;
+
+  /** File name suffix of spilled runs */
+  private static final String RUN_SUFFIX = ".run";
+
+  /** Size of file buffers */
+  private static final int IO_BUFFER = 1 << 16;
+
+  /** Directory for temporary files */
+  private File dir;
+
+  /** Prefix of temporary files */
+  private String prefix;
+
+  /** Key separator */
+  private byte separator;
+
+  /** Buffer size in bytes */
+  private int bufferSize;
+
+  /** Keep only the first record of each key */
+  private boolean unique;
+
+  /** Sorted runs */
+  private List<String> runs = new ArrayList<>();
+
+  /** Number of runs (at the start of the list) that are checkpoint files */
+  private int saved = 0;
+
+  /** Temporary files, to remove */
+  private List<File> temporary = new ArrayList<>();
+
+  /**
+   * Constructor.
+   *
+   * @param dir Directory for temporary files
+   * @param prefix Prefix of temporary files
+   * @param separator Key separator
+   * @param bufferSize Buffer size per thread, in bytes
+   */
+  public ExternalSorter(File dir, String prefix, char separator, int bufferSize) {
+    this(dir, prefix, separator, bufferSize, true);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param dir Directory for temporary files
+   * @param prefix Prefix of temporary files
+   * @param separator Key separator
+   * @param bufferSize Buffer size per thread, in bytes
+   * @param unique Keep only the first record of each key
+   */
+  public ExternalSorter(File dir, String prefix, char separator, int bufferSize, boolean unique) {
+    this.dir = dir;
+    this.prefix = prefix;
+    this.separator = (byte) separator;
+    this.bufferSize = Math.max(bufferSize, 1 << 16);
+    this.unique = unique;
+  }
+
+  /**
+   * Make a buffer for a single thread.
+   *
+   * @return Buffer
+   */
+  public Buffer newBuffer() {
+    return new Buffer();
+  }
+
+  /**
+   * Add a sorted file as run, such as the output of {@link #checkpoint}. The
+   * file is read, but not removed.
+   *
+   * @param fname File name
+   */
+  public synchronized void addRun(String fname) {
+    runs.add(fname);
+    saved = runs.size();
+  }
+
+  /**
+   * Merge the runs spilled since the last checkpoint into a file, which is
+   * kept as run and read, but not removed. The files of earlier checkpoints are
+   * not modified, unless all runs are merged. The buffers must have been
+   * spilled before.
+   *
+   * @param fname Output file name
+   * @param full Merge all runs, to replace the files of earlier checkpoints
+   * @throws IOException on errors
+   */
+  public synchronized void checkpoint(String fname, boolean full) throws IOException {
+    if(full)
+      saved = 0;
+    // Runs are always read as lines, see Run.
+    try (RecordWriter out = new RecordWriter(Util.compress(new FileOutputStream(fname), fname), false)) {
+      merge(runs.subList(saved, runs.size()), out);
+    }
+    removeTemporary();
+    runs.subList(saved, runs.size()).clear();
+    runs.add(fname);
+    saved = runs.size();
+  }
+
+  /**
+   * Merge all runs into the output. The buffers must have been spilled before.
+   *
+   * @param fname Output file name
+   * @return Number of records written
+   * @throws IOException on errors
+   */
+  public long merge(String fname) throws IOException {
+    try (RecordWriter out = RecordWriter.open(fname)) {
+      return merge(out);
+    }
+  }
+
+  /**
+   * Merge all runs into the output, split into fields at the separator. The
+   * buffers must have been spilled before.
+   *
+   * @param out Output, will be flushed
+   * @return Number of records written
+   * @throws IOException on errors
+   */
+  public synchronized long merge(RecordWriter out) throws IOException {
+    return merge(runs, out);
+  }
+
+  /**
+   * Merge runs.
+   *
+   * @param files Run files
+   * @param out Output, will be flushed
+   * @return Number of records written
+   * @throws IOException on errors
+   */
+  private long merge(List<String> files, RecordWriter out) throws IOException {
+    PriorityQueue<Run> heap = new PriorityQueue<>(Math.max(files.size(), 1), new Comparator<Run>() {
+      @Override
+      public int compare(Run a, Run b) {
+        int c = ExternalSorter.compare(a.line, 0, a.len, b.line, 0, b.len);
+        return c != 0 ? c : Integer.compare(a.num, b.num);
+      }
+    });
+    long count = 0;
+    try {
+      for(int i = 0; i < files.size(); i++) {
+        Run r = new Run(open(files.get(i)), i);
+        if(r.next())
+          heap.add(r);
+        else
+          r.close();
+      }
+      byte[] last = new byte[256];
+      int lastlen = -1;
+      while(!heap.isEmpty()) {
+        Run r = heap.poll();
+        final int klen = keyLength(r.line, 0, r.len);
+        if(!unique || klen != lastlen || compare(last, 0, lastlen, r.line, 0, klen) != 0) {
+          out.split(r.line, 0, r.len, separator);
+          ++count;
+          if(klen > last.length)
+            last = new byte[klen << 1];
+          System.arraycopy(r.line, 0, last, 0, klen);
+          lastlen = klen;
+        }
+        if(r.next())
+          heap.add(r);
+        else
+          r.close();
+      }
+      out.flush();
+    }
+    finally {
+      for(Run r : heap)
+        r.close();
+    }
+    return count;
+  }
+
+  /**
+   * Open a run. Spilled runs are not compressed, and must not be subject to
+   * format detection.
+   *
+   * @param fname File name
+   * @return Input stream
+   * @throws IOException on errors
+   */
+  private static InputStream open(String fname) throws IOException {
+    return fname.endsWith(RUN_SUFFIX) ? new FileInputStream(fname) : Util.openInput(fname);
+  }
+
+  /**
+   * Register a spilled run; merge the runs since the last checkpoint if there
+   * are too many.
+   *
+   * @param f Run file
+   * @throws IOException on errors
+   */
+  private synchronized void addSpilled(File f) throws IOException {
+    temporary.add(f);
+    runs.add(f.getPath());
+    if(runs.size() - saved < MAX_RUNS)
+      return;
+    File merged = File.createTempFile(prefix, RUN_SUFFIX, dir);
+    try (RecordWriter out = new RecordWriter(new BufferedOutputStream(new FileOutputStream(merged), IO_BUFFER), false)) {
+      merge(runs.subList(saved, runs.size()), out);
+    }
+    removeTemporary();
+    runs.subList(saved, runs.size()).clear();
+    runs.add(merged.getPath());
+    temporary.add(merged);
+  }
+
+  /**
+   * Remove the temporary files.
+   */
+  private void removeTemporary() {
+    for(File f : temporary)
+      f.delete();
+    temporary.clear();
+  }
+
+  @Override
+  public synchronized void close() {
+    removeTemporary();
+    runs.clear();
+    saved = 0;
+  }
+
+  /**
+   * Length of the key of a record.
+   *
+   * @param b Data
+   * @param off Offset
+   * @param len Record length
+   * @return Key length
+   */
+  private int keyLength(byte[] b, int off, int len) {
+    for(int i = 0; i < len; i++)
+      if(b[off + i] == separator)
+        return i;
+    return len;
+  }
+
+  /**
+   * Compare two byte sequences, unsigned.
+   *
+   * @param a First data
+   * @param aoff First offset
+   * @param alen First length
+   * @param b Second data
+   * @param boff Second offset
+   * @param blen Second length
+   * @return Comparison result
+   */
+  private static int compare(byte[] a, int aoff, int alen, byte[] b, int boff, int blen) {
+    for(int i = 0, l = Math.min(alen, blen); i < l; i++) {
+      final int c = (a[aoff + i] & 0xFF) - (b[boff + i] & 0xFF);
+      if(c != 0)
+        return c;
+    }
+    return alen - blen;
+  }
+
+  /**
+   * Record buffer of a single thread.
+   */
+  public class Buffer {
+    /** Record data, each record is followed by a newline */
+    private byte[] data = new byte[Math.min(bufferSize, 1 << 20)];
+
+    /** Record offsets; record i is from starts[i] to starts[i+1]-1 */
+    private int[] starts = new int[1 << 12];
+
+    /** Number of records */
+    private int size = 0;
+
+    /**
+     * Add a record. It must not contain newlines.
+     *
+     * @param record Record
+     * @throws IOException on errors spilling the buffer
+     */
+    public void add(String record) throws IOException {
+      byte[] b = record.getBytes(StandardCharsets.UTF_8);
+      add(b, 0, b.length);
+    }
+
+    /**
+     * Add a record. It must not contain newlines.
+     *
+     * @param b UTF-8 data
+     * @param off Offset
+     * @param len Length
+     * @throws IOException on errors spilling the buffer
+     */
+    public void add(byte[] b, int off, int len) throws IOException {
+      int end = starts[size];
+      if(end + len + 1 > data.length) {
+        if(end + len + 1 > bufferSize && size > 0) {
+          spill();
+          end = 0;
+        }
+        if(len + 1 > data.length - end)
+          data = Arrays.copyOf(data, Math.max(Math.min(data.length << 1, bufferSize), end + len + 1));
+      }
+      System.arraycopy(b, off, data, end, len);
+      data[end + len] = '\n';
+      if(size + 2 > starts.length)
+        starts = Arrays.copyOf(starts, starts.length << 1);
+      starts[++size] = end + len + 1;
+    }
+
+    /**
+     * Sort the buffered records, and write them to a new run.
+     *
+     * @throws IOException on errors
+     */
+    public void spill() throws IOException {
+      if(size == 0)
+        return;
+      int[] order = new int[size];
+      for(int i = 0; i < size; i++)
+        order[i] = i;
+      IntArrays.quickSort(order, 0, size, new IntComparator() {
+        @Override
+        public int compare(int a, int b) {
+          final int sa = starts[a], sb = starts[b];
+          final int c = ExternalSorter.compare(data, sa, starts[a + 1] - 1 - sa, data, sb, starts[b + 1] - 1 - sb);
+          return c != 0 ? c : Integer.compare(a, b);
+        }
+
+        @Override
+        public int compare(Integer a, Integer b) {
+          return compare(a.intValue(), b.intValue());
+        }
+      });
+      File f = File.createTempFile(prefix, RUN_SUFFIX, dir);
+      try (OutputStream out = new BufferedOutputStream(new FileOutputStream(f), IO_BUFFER)) {
+        for(int i : order)
+          out.write(data, starts[i], starts[i + 1] - starts[i]);
+      }
+      size = 0;
+      addSpilled(f);
+    }
+  }
+
+  /**
+   * Reader of a sorted run.
+   */
+  private static class Run implements Closeable {
+    /** Input stream */
+    private InputStream in;
+
+    /** Run number, for a stable merge */
+    private int num;
+
+    /** Read buffer */
+    private byte[] buf = new byte[IO_BUFFER];
+
+    /** Read buffer position and limit */
+    private int pos = 0, lim = 0;
+
+    /** Current record */
+    private byte[] line = new byte[256];
+
+    /** Current record length */
+    private int len = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param in Input stream
+     * @param num Run number
+     */
+    Run(InputStream in, int num) {
+      this.in = in;
+      this.num = num;
+    }
+
+    /**
+     * Read the next record.
+     *
+     * @return {@code false} at the end of the run
+     * @throws IOException on read errors
+     */
+    boolean next() throws IOException {
+      len = 0;
+      while(true) {
+        if(pos == lim) {
+          lim = in.read(buf, 0, buf.length);
+          pos = 0;
+          if(lim <= 0) {
+            lim = 0;
+            return len > 0;
+          }
+        }
+        int i = pos;
+        while(i < lim && buf[i] != '\n')
+          ++i;
+        if(len + i - pos > line.length)
+          line = Arrays.copyOf(line, Math.max(line.length << 1, len + i - pos));
+        System.arraycopy(buf, pos, line, len, i - pos);
+        len += i - pos;
+        pos = i;
+        if(i < lim) {
+          ++pos;
+          return true;
+        }
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
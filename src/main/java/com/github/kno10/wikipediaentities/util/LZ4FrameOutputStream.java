@@ -0,0 +1,265 @@
+package com.github.kno10.wikipediaentities.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.apache.commons.codec.digest.XXHash32;
+
+/**
+ * Write the LZ4 frame format, with a fast greedy block compressor.
+ *
+ * The LZ4 compressor of commons-compress produces good output, but is too slow
+ * for intermediate files. This uses the single-probe hash table of the LZ4
+ * "fast" mode instead. Blocks of up to 4 MB are compressed independently,
+ * and incompressible blocks are stored. The frame has a content checksum, and
+ * is read back by commons-compress.
+ */
+public class LZ4FrameOutputStream extends OutputStream {
+  /** Frame magic number */
+  private static final int MAGIC = 0x184D2204;
+
+  /** Frame flags: version 1, independent blocks, content checksum */
+  private static final int FLG = 0x40 | 0x20 | 0x04;
+
+  /** Block descriptor: 4 MB blocks */
+  private static final int BD = 7 << 4;
+
+  /** Block size */
+  private static final int BLOCK_SIZE = 4 << 20;
+
+  /** Hash table bits */
+  private static final int HASH_BITS = 16;
+
+  /** Minimum match length */
+  private static final int MIN_MATCH = 4;
+
+  /** The last match must start this many bytes before the block end */
+  private static final int MF_LIMIT = 12;
+
+  /** The last bytes of a block are always literals */
+  private static final int LAST_LITERALS = 5;
+
+  /** Maximum match offset */
+  private static final int MAX_OFFSET = 65535;
+
+  /** Output stream */
+  private OutputStream out;
+
+  /** Input buffer */
+  private byte[] block = new byte[BLOCK_SIZE];
+
+  /** Fill of the input buffer */
+  private int len = 0;
+
+  /** Compressed block buffer */
+  private byte[] buf = new byte[4 + BLOCK_SIZE + BLOCK_SIZE / 255 + 16];
+
+  /** Hash table of positions */
+  private int[] table = new int[1 << HASH_BITS];
+
+  /** Content checksum */
+  private XXHash32 checksum = new XXHash32();
+
+  /** Frame finished */
+  private boolean finished = false;
+
+  /**
+   * Constructor.
+   *
+   * @param out Output stream
+   * @throws IOException on errors writing the frame header
+   */
+  public LZ4FrameOutputStream(OutputStream out) throws IOException {
+    this.out = out;
+    XXHash32 hc = new XXHash32();
+    hc.update(FLG);
+    hc.update(BD);
+    writeInt(buf, 0, MAGIC);
+    buf[4] = (byte) FLG;
+    buf[5] = (byte) BD;
+    buf[6] = (byte) (hc.getValue() >>> 8);
+    out.write(buf, 0, 7);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if(len == block.length)
+      writeBlock();
+    block[len++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int n) throws IOException {
+    while(n > 0) {
+      if(len == block.length)
+        writeBlock();
+      final int c = Math.min(n, block.length - len);
+      System.arraycopy(b, off, block, len, c);
+      len += c;
+      off += c;
+      n -= c;
+    }
+  }
+
+  /**
+   * Compress and write the current block.
+   *
+   * @throws IOException on errors
+   */
+  private void writeBlock() throws IOException {
+    if(len == 0)
+      return;
+    checksum.update(block, 0, len);
+    final int c = compress(block, len, buf, 4, table) - 4;
+    if(c < len) {
+      writeInt(buf, 0, c);
+      out.write(buf, 0, 4 + c);
+    }
+    else { // Store uncompressed.
+      writeInt(buf, 0, len | 0x80000000);
+      out.write(buf, 0, 4);
+      out.write(block, 0, len);
+    }
+    len = 0;
+  }
+
+  /**
+   * Compress a block.
+   *
+   * @param src Data
+   * @param n Length
+   * @param dst Output buffer, of size at least n + n / 255 + 16
+   * @param op Output position
+   * @param table Hash table
+   * @return Output position after the block
+   */
+  static int compress(byte[] src, int n, byte[] dst, int op, int[] table) {
+    Arrays.fill(table, -1);
+    int anchor = 0;
+    for(int ip = 0; ip < n - MF_LIMIT;) {
+      final int seq = readInt(src, ip);
+      final int h = (seq * -1640531535) >>> (32 - HASH_BITS);
+      final int ref = table[h];
+      table[h] = ip;
+      if(ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+        ip += 1 + ((ip - anchor) >>> 6); // Skip faster in incompressible data
+        continue;
+      }
+      int mlen = MIN_MATCH;
+      while(ip + mlen < n - LAST_LITERALS && src[ref + mlen] == src[ip + mlen])
+        ++mlen;
+      op = writeSequence(src, anchor, ip - anchor, dst, op, ip - ref, mlen);
+      ip += mlen;
+      anchor = ip;
+    }
+    return writeSequence(src, anchor, n - anchor, dst, op, 0, 0);
+  }
+
+  /**
+   * Write a sequence of literals and a match.
+   *
+   * @param src Data
+   * @param lit Literal start
+   * @param litLen Number of literals
+   * @param dst Output buffer
+   * @param op Output position
+   * @param offset Match offset
+   * @param mlen Match length, 0 for the last sequence
+   * @return Output position
+   */
+  private static int writeSequence(byte[] src, int lit, int litLen, byte[] dst, int op, int offset, int mlen) {
+    final int token = op++;
+    dst[token] = (byte) (Math.min(litLen, 15) << 4);
+    if(litLen >= 15)
+      op = writeLength(dst, op, litLen - 15);
+    System.arraycopy(src, lit, dst, op, litLen);
+    op += litLen;
+    if(mlen == 0)
+      return op;
+    dst[op++] = (byte) offset;
+    dst[op++] = (byte) (offset >>> 8);
+    final int ml = mlen - MIN_MATCH;
+    dst[token] |= (byte) Math.min(ml, 15);
+    if(ml >= 15)
+      op = writeLength(dst, op, ml - 15);
+    return op;
+  }
+
+  /**
+   * Write an extended length.
+   *
+   * @param dst Output buffer
+   * @param op Output position
+   * @param l Remaining length
+   * @return Output position
+   */
+  private static int writeLength(byte[] dst, int op, int l) {
+    for(; l >= 255; l -= 255)
+      dst[op++] = (byte) 255;
+    dst[op++] = (byte) l;
+    return op;
+  }
+
+  /**
+   * Read a little endian integer.
+   *
+   * @param b Buffer
+   * @param p Position
+   * @return Value
+   */
+  private static int readInt(byte[] b, int p) {
+    return (b[p] & 0xFF) | (b[p + 1] & 0xFF) << 8 | (b[p + 2] & 0xFF) << 16 | b[p + 3] << 24;
+  }
+
+  /**
+   * Write a little endian integer.
+   *
+   * @param b Buffer
+   * @param p Position
+   * @param v Value
+   */
+  private static void writeInt(byte[] b, int p, int v) {
+    b[p] = (byte) v;
+    b[p + 1] = (byte) (v >>> 8);
+    b[p + 2] = (byte) (v >>> 16);
+    b[p + 3] = (byte) (v >>> 24);
+  }
+
+  /**
+   * Write all data compressed so far, ending the current block.
+   */
+  @Override
+  public void flush() throws IOException {
+    if(finished)
+      return;
+    writeBlock();
+    out.flush();
+  }
+
+  /**
+   * Finish the frame, without closing the output.
+   *
+   * @throws IOException on errors
+   */
+  public void finish() throws IOException {
+    if(finished)
+      return;
+    writeBlock();
+    writeInt(buf, 0, 0); // End mark
+    writeInt(buf, 4, (int) checksum.getValue());
+    out.write(buf, 0, 8);
+    out.flush();
+    finished = true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      finish();
+    }
+    finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package com.github.kno10.wikipediaentities.util;
+
+import java.util.List;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.UnicodeUtil;
+
+/**
+ * Compact binary encoding of the links of an article.
+ *
+ * The links are a sequence of (target, label) pairs. The target is encoded as
+ * its {@link TitleDictionary} id, the label as its UTF-8 length, followed by
+ * the UTF-8 bytes; all integers use a variable length encoding. The indexer
+ * stores the normalized tokens of each label, rather than the label itself.
+ */
+public class LinkList {
+  /**
+   * Fake constructor: do not instantiate.
+   */
+  private LinkList() {
+    // Do not instantiate.
+  }
+
+  /**
+   * Encode a list of links.
+   *
+   * @param links Link targets and labels, alternating
+   * @param titles Title dictionary, new targets will be added
+   * @param out Output buffer (will be cleared)
+   */
+  public static void encode(List<String> links, TitleDictionary titles, BytesRefBuilder out) {
+    out.clear();
+    for(int i = 0, l = links.size(); i < l; i += 2) {
+      out.grow(out.length() + 5);
+      out.setLength(writeVInt(titles.add(links.get(i)), out.bytes(), out.length()));
+      final String s = links.get(i + 1);
+      out.grow(out.length() + 5 + UnicodeUtil.maxUTF8Length(s.length()));
+      // Leave room for the length, then shift if it was shorter.
+      final int start = out.length() + 5;
+      final int len = UnicodeUtil.UTF16toUTF8(s, 0, s.length(), out.bytes(), start) - start;
+      final int p = writeVInt(len, out.bytes(), out.length());
+      System.arraycopy(out.bytes(), start, out.bytes(), p, len);
+      out.setLength(p + len);
+    }
+  }
+
+  /**
+   * Write a variable length integer.
+   *
+   * @param v Value
+   * @param b Output buffer
+   * @param p Position
+   * @return New position
+   */
+  private static int writeVInt(int v, byte[] b, int p) {
+    while((v & ~0x7F) != 0) {
+      b[p++] = (byte) ((v & 0x7F) | 0x80);
+      v >>>= 7;
+    }
+    b[p++] = (byte) v;
+    return p;
+  }
+
+  /**
+   * Reader for the encoded links, reusable and without allocations.
+   */
+  public static class Reader {
+    /** Data */
+    private byte[] bytes;
+
+    /** Position and end of the data */
+    private int pos, end;
+
+    /** Current link target */
+    private int target;
+
+    /** Offset and length of the current link label */
+    private int loff, llen;
+
+    /**
+     * Start reading a new list.
+     *
+     * @param ref Encoded link list
+     * @return this
+     */
+    public Reader reset(BytesRef ref) {
+      bytes = ref.bytes;
+      pos = ref.offset;
+      end = ref.offset + ref.length;
+      return this;
+    }
+
+    /**
+     * Advance to the next link.
+     *
+     * @return {@code false} when no more links are available.
+     */
+    public boolean next() {
+      if(pos >= end)
+        return false;
+      target = readVInt();
+      llen = readVInt();
+      loff = pos;
+      pos += llen;
+      return true;
+    }
+
+    /**
+     * Read a variable length integer.
+     *
+     * @return Value
+     */
+    private int readVInt() {
+      int v = 0;
+      for(int shift = 0;; shift += 7) {
+        final byte b = bytes[pos++];
+        v |= (b & 0x7F) << shift;
+        if(b >= 0)
+          return v;
+      }
+    }
+
+    /**
+     * @return Title id of the current link target
+     */
+    public int target() {
+      return target;
+    }
+
+    /**
+     * Decode the current link label (allocates a string).
+     *
+     * @return Link label
+     */
+    public String label() {
+      return new BytesRef(bytes, loff, llen).utf8ToString();
+    }
+
+    /**
+     * Look up the current label in a dictionary, without decoding it.
+     *
+     * @param dict Dictionary
+     * @return Id of the label, or -1
+     */
+    public int label(TitleDictionary dict) {
+      return dict.get(bytes, loff, llen);
+    }
+  }
+}
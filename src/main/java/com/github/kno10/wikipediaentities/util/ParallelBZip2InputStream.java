@@ -0,0 +1,369 @@
+package com.github.kno10.wikipediaentities.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+/**
+ * Decompress bzip2 data using multiple threads.
+ *
+ * bzip2 compresses independent blocks of up to 900k. A scanner thread searches
+ * the compressed bit stream for the block magic numbers, and each block is
+ * re-wrapped as a standalone bzip2 stream and decoded on a thread pool. The
+ * decoded blocks are returned in their original order. Concatenated streams
+ * (e.g., multistream dumps) are supported.
+ *
+ * Note: the 48 bit block magic could in theory also occur inside the compressed
+ * data. This is very unlikely, and will then cause a CRC error; use the
+ * single-threaded decoder for such files.
+ */
+public class ParallelBZip2InputStream extends InputStream {
+  /** Magic number at the beginning of each block */
+  static final long BLOCK_MAGIC = 0x314159265359L;
+
+  /** Magic number at the end of each stream */
+  static final long EOS_MAGIC = 0x177245385090L;
+
+  /** Mask for the magic numbers */
+  static final long MASK48 = (1L << 48) - 1;
+
+  /** Stream header to use for the re-wrapped blocks */
+  static final byte[] HEADER = { 'B', 'Z', 'h', '9' };
+
+  /** Empty buffer */
+  static final byte[] EMPTY = new byte[0];
+
+  /** Marker for the end of the data */
+  static final FutureTask<byte[]> END = done(null);
+
+  /** Compressed input */
+  private InputStream in;
+
+  /** Worker pool */
+  private ExecutorService pool;
+
+  /** Decoded blocks, in order */
+  private BlockingQueue<Future<byte[]>> queue;
+
+  /** Thread scanning for block boundaries */
+  private Thread scanner;
+
+  /** Current block */
+  private byte[] cur = EMPTY;
+
+  /** Position in the current block */
+  private int pos = 0;
+
+  /** End of stream reached */
+  private boolean eof = false;
+
+  /**
+   * Constructor.
+   *
+   * @param in Compressed input stream
+   * @param threads Number of decoding threads
+   */
+  public ParallelBZip2InputStream(InputStream in, int threads) {
+    this.in = in;
+    this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "bunzip2");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    this.queue = new ArrayBlockingQueue<>(threads << 1);
+    this.scanner = new Thread("bunzip2-scanner") {
+      @Override
+      public void run() {
+        try {
+          scan();
+          queue.put(END);
+        }
+        catch(final IOException e) {
+          try {
+            queue.put(failed(e));
+          }
+          catch(InterruptedException e2) {
+            // Closed.
+          }
+        }
+        catch(InterruptedException e) {
+          // Closed.
+        }
+      }
+    };
+    scanner.setDaemon(true);
+    scanner.start();
+  }
+
+  /**
+   * Scan the input for block boundaries, and submit each block for decoding.
+   *
+   * @throws IOException on read errors
+   * @throws InterruptedException when closed
+   */
+  void scan() throws IOException, InterruptedException {
+    byte[] ibuf = new byte[1 << 16];
+    // Raw bytes of the current block, starting at byte rawStart.
+    byte[] raw = null;
+    int rawLen = 0;
+    long rawStart = 0, blockStart = 0;
+    long window = 0, count = 0;
+    int n;
+    while((n = in.read(ibuf)) > 0) {
+      for(int i = 0; i < n; i++) {
+        final int b = ibuf[i] & 0xFF;
+        if(raw != null) {
+          if(rawLen == raw.length)
+            raw = Arrays.copyOf(raw, raw.length << 1);
+          raw[rawLen++] = (byte) b;
+        }
+        window = (window << 8) | b;
+        ++count;
+        for(int s = 7; s >= 0; s--) {
+          final long w = (window >>> s) & MASK48;
+          if(w != BLOCK_MAGIC && w != EOS_MAGIC)
+            continue;
+          final long start = (count << 3) - s - 48;
+          if(raw != null) { // Finish the previous block.
+            final int len = (int) (((start + 7) >>> 3) - rawStart);
+            submit(Arrays.copyOf(raw, len), (int) (blockStart - (rawStart << 3)), start - blockStart);
+            raw = null;
+          }
+          if(w == BLOCK_MAGIC) { // Begin a new block.
+            rawStart = start >>> 3;
+            rawLen = (int) (count - rawStart);
+            raw = new byte[1 << 20];
+            for(int j = 0; j < rawLen; j++)
+              raw[j] = (byte) (window >>> ((rawLen - 1 - j) << 3));
+            blockStart = start;
+          }
+          break;
+        }
+      }
+    }
+    if(raw != null)
+      throw new IOException("Truncated bzip2 stream.");
+  }
+
+  /**
+   * Submit a block for decoding.
+   *
+   * @param raw Raw data
+   * @param bitoff Bit offset of the block magic in the raw data
+   * @param nbits Length of the block in bits
+   * @throws InterruptedException when closed
+   */
+  private void submit(final byte[] raw, final int bitoff, final long nbits) throws InterruptedException {
+    queue.put(pool.submit(new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws IOException {
+        return decode(raw, bitoff, nbits);
+      }
+    }));
+  }
+
+  /**
+   * Decode a single block, by wrapping it into a standalone bzip2 stream.
+   *
+   * @param raw Raw data
+   * @param bitoff Bit offset of the block magic in the raw data
+   * @param nbits Length of the block in bits
+   * @return Decoded data
+   * @throws IOException on decoding errors
+   */
+  static byte[] decode(byte[] raw, int bitoff, long nbits) throws IOException {
+    final int hlen = HEADER.length;
+    byte[] buf = new byte[hlen + (int) ((nbits + 48 + 32 + 7) >>> 3)];
+    System.arraycopy(HEADER, 0, buf, 0, hlen);
+    final int nbytes = (int) ((nbits + 7) >>> 3);
+    for(int i = 0; i < nbytes; i++) {
+      int v = (raw[i] & 0xFF) << bitoff;
+      if(bitoff > 0 && i + 1 < raw.length)
+        v |= (raw[i + 1] & 0xFF) >>> (8 - bitoff);
+      buf[hlen + i] = (byte) v;
+    }
+    if((nbits & 7) != 0) // Clear trailing bits
+      buf[hlen + nbytes - 1] &= (byte) (0xFF00 >>> (nbits & 7));
+    // The combined CRC of a single block stream is the block CRC:
+    final long crc = getBits(buf, (hlen << 3) + 48, 32);
+    final long end = (hlen << 3) + nbits;
+    putBits(buf, end, EOS_MAGIC, 48);
+    putBits(buf, end + 48, crc, 32);
+
+    try (InputStream bin = new BZip2CompressorInputStream(new ByteArrayInputStream(buf), false)) {
+      byte[] out = new byte[1 << 20];
+      int len = 0, n;
+      while((n = bin.read(out, len, out.length - len)) > 0) {
+        len += n;
+        if(len == out.length)
+          out = Arrays.copyOf(out, out.length << 1);
+      }
+      return len == out.length ? out : Arrays.copyOf(out, len);
+    }
+  }
+
+  /**
+   * Read bits from a buffer.
+   *
+   * @param buf Buffer
+   * @param pos Bit position
+   * @param n Number of bits
+   * @return Value
+   */
+  private static long getBits(byte[] buf, long pos, int n) {
+    long v = 0;
+    for(int i = 0; i < n; i++, pos++)
+      v = (v << 1) | ((buf[(int) (pos >>> 3)] >>> (7 - (pos & 7))) & 1);
+    return v;
+  }
+
+  /**
+   * Write bits into a (cleared) buffer.
+   *
+   * @param buf Buffer
+   * @param pos Bit position
+   * @param v Value
+   * @param n Number of bits
+   */
+  private static void putBits(byte[] buf, long pos, long v, int n) {
+    for(int i = n - 1; i >= 0; i--, pos++)
+      if(((v >>> i) & 1) != 0)
+        buf[(int) (pos >>> 3)] |= 0x80 >>> (pos & 7);
+  }
+
+  @Override
+  public int read() throws IOException {
+    while(pos >= cur.length)
+      if(!nextBlock())
+        return -1;
+    return cur[pos++] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if(len == 0)
+      return 0;
+    while(pos >= cur.length)
+      if(!nextBlock())
+        return -1;
+    final int n = Math.min(len, cur.length - pos);
+    System.arraycopy(cur, pos, b, off, n);
+    pos += n;
+    return n;
+  }
+
+  /**
+   * Advance to the next decoded block.
+   *
+   * @return {@code false} at the end of the stream.
+   * @throws IOException on decoding errors
+   */
+  private boolean nextBlock() throws IOException {
+    if(eof)
+      return false;
+    try {
+      byte[] next = queue.take().get();
+      if(next == null) {
+        eof = true;
+        return false;
+      }
+      cur = next;
+      pos = 0;
+      return true;
+    }
+    catch(InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+    catch(ExecutionException e) {
+      if(e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+      throw new IOException(e.getCause());
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    eof = true;
+    scanner.interrupt();
+    pool.shutdownNow();
+    in.close();
+  }
+
+  /**
+   * Make a completed future.
+   *
+   * @param v Value
+   * @return Future
+   */
+  private static FutureTask<byte[]> done(final byte[] v) {
+    FutureTask<byte[]> f = new FutureTask<>(new Callable<byte[]>() {
+      @Override
+      public byte[] call() {
+        return v;
+      }
+    });
+    f.run();
+    return f;
+  }
+
+  /**
+   * Make a failed future.
+   *
+   * @param e Exception
+   * @return Future
+   */
+  private static FutureTask<byte[]> failed(final IOException e) {
+    FutureTask<byte[]> f = new FutureTask<>(new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws IOException {
+        throw e;
+      }
+    });
+    f.run();
+    return f;
+  }
+
+  /**
+   * Benchmark against the single-threaded decoder.
+   *
+   * @param args File name, and optionally the number of threads
+   * @throws IOException on errors
+   */
+  public static void main(String[] args) throws IOException {
+    final int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+    for(int p : new int[] { 1, threads }) {
+      long start = System.currentTimeMillis(), total = 0;
+      CRC32 crc = new CRC32();
+      try (InputStream in = p > 1 ? new ParallelBZip2InputStream(new FileInputStream(args[0]), p) : //
+          new BZip2CompressorInputStream(new FileInputStream(args[0]), true)) {
+        byte[] buf = new byte[1 << 16];
+        int n;
+        while((n = in.read(buf)) > 0) {
+          crc.update(buf, 0, n);
+          total += n;
+        }
+      }
+      long time = System.currentTimeMillis() - start;
+      System.err.format("%d threads: %d bytes in %d ms (%.2f MB/s), crc %08x\n", //
+          p, total, time, total / 1048.576 / Math.max(time, 1), crc.getValue());
+    }
+  }
+}
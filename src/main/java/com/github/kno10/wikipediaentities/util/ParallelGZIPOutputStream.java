@@ -0,0 +1,276 @@
+package com.github.kno10.wikipediaentities.util;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compress gzip data using multiple threads, similar to pigz.
+ *
+ * The input is cut into blocks, which are deflated independently on a thread
+ * pool. Each block uses the last 32k of the previous block as dictionary, and
+ * ends with a sync flush, so the compressed blocks can simply be concatenated
+ * into a single standard gzip member. The CRC is computed while writing.
+ */
+public class ParallelGZIPOutputStream extends OutputStream {
+  /** Size of the deflate window */
+  static final int DICT_SIZE = 1 << 15;
+
+  /** Gzip header, as written by {@link GZIPOutputStream} */
+  static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+  /** Compressed output */
+  private OutputStream out;
+
+  /** Worker pool */
+  private ExecutorService pool;
+
+  /** Compression level */
+  private int level;
+
+  /** Compressed blocks, in order */
+  private ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+
+  /** Maximum number of pending blocks */
+  private int maxPending;
+
+  /** Current block */
+  private byte[] block;
+
+  /** Fill of the current block */
+  private int len = 0;
+
+  /** Previous block, for the dictionary */
+  private byte[] prev = null;
+
+  /** Length of the previous block */
+  private int prevLen = 0;
+
+  /** Checksum of the uncompressed data */
+  private CRC32 crc = new CRC32();
+
+  /** Uncompressed size */
+  private long size = 0;
+
+  /** Trailer written */
+  private boolean finished = false;
+
+  /**
+   * Constructor.
+   *
+   * @param out Output stream
+   * @param threads Number of compression threads
+   * @param level Compression level, -1 for the default
+   * @param blockSize Block size (at least 32k)
+   * @throws IOException on errors writing the header
+   */
+  public ParallelGZIPOutputStream(OutputStream out, int threads, int level, int blockSize) throws IOException {
+    this.out = out;
+    this.level = level;
+    this.block = new byte[Math.max(blockSize, DICT_SIZE)];
+    this.maxPending = threads << 1;
+    this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "gzip");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    out.write(HEADER);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if(len == block.length)
+      submit(false);
+    block[len++] = (byte) b;
+    crc.update(b);
+    ++size;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int n) throws IOException {
+    crc.update(b, off, n);
+    size += n;
+    while(n > 0) {
+      if(len == block.length)
+        submit(false);
+      final int c = Math.min(n, block.length - len);
+      System.arraycopy(b, off, block, len, c);
+      len += c;
+      off += c;
+      n -= c;
+    }
+  }
+
+  /**
+   * Submit the current block for compression.
+   *
+   * @param last Last block of the stream
+   * @throws IOException on errors writing earlier blocks
+   */
+  private void submit(final boolean last) throws IOException {
+    final byte[] data = block, dict = prev;
+    final int n = len, dictLen = prevLen;
+    pending.add(pool.submit(new Callable<byte[]>() {
+      @Override
+      public byte[] call() {
+        return deflate(data, n, dict, dictLen, last, level);
+      }
+    }));
+    prev = data;
+    prevLen = n;
+    block = new byte[block.length];
+    len = 0;
+    while(pending.size() > maxPending)
+      writeNext();
+  }
+
+  /**
+   * Write the next compressed block.
+   *
+   * @throws IOException on errors
+   */
+  private void writeNext() throws IOException {
+    try {
+      out.write(pending.poll().get());
+    }
+    catch(InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+    catch(ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Deflate a single block.
+   *
+   * @param data Data
+   * @param len Length
+   * @param dict Previous block, may be {@code null}
+   * @param dictLen Length of the previous block
+   * @param last Last block of the stream
+   * @param level Compression level
+   * @return Compressed data
+   */
+  static byte[] deflate(byte[] data, int len, byte[] dict, int dictLen, boolean last, int level) {
+    Deflater def = new Deflater(level, true);
+    try {
+      if(dict != null && dictLen > 0) {
+        final int l = Math.min(dictLen, DICT_SIZE);
+        def.setDictionary(dict, dictLen - l, l);
+      }
+      def.setInput(data, 0, len);
+      if(last)
+        def.finish();
+      byte[] buf = new byte[len + (len >>> 3) + 64];
+      int n = 0;
+      while(true) {
+        final int c = def.deflate(buf, n, buf.length - n, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+        n += c;
+        if(last ? def.finished() : n < buf.length)
+          break;
+        if(n == buf.length)
+          buf = Arrays.copyOf(buf, buf.length << 1);
+      }
+      return Arrays.copyOf(buf, n);
+    }
+    finally {
+      def.end();
+    }
+  }
+
+  /**
+   * Write all data compressed so far. The current block is ended with a sync
+   * flush, which costs a little compression.
+   */
+  @Override
+  public void flush() throws IOException {
+    if(finished)
+      return;
+    if(len > 0)
+      submit(false);
+    while(!pending.isEmpty())
+      writeNext();
+    out.flush();
+  }
+
+  /**
+   * Finish the gzip stream, without closing the output.
+   *
+   * @throws IOException on errors
+   */
+  public void finish() throws IOException {
+    if(finished)
+      return;
+    submit(true);
+    while(!pending.isEmpty())
+      writeNext();
+    final long c = crc.getValue();
+    out.write(new byte[] { (byte) c, (byte) (c >>> 8), (byte) (c >>> 16), (byte) (c >>> 24), //
+        (byte) size, (byte) (size >>> 8), (byte) (size >>> 16), (byte) (size >>> 24) });
+    out.flush();
+    finished = true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      finish();
+    }
+    finally {
+      pool.shutdownNow();
+      out.close();
+    }
+  }
+
+  /**
+   * Benchmark against the single-threaded compressor.
+   *
+   * @param args Input file name, and optionally the number of threads, level
+   *        and block size in kB
+   * @throws IOException on errors
+   */
+  public static void main(String[] args) throws IOException {
+    final int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+    final int level = args.length > 2 ? Integer.parseInt(args[2]) : Deflater.DEFAULT_COMPRESSION;
+    final int blockSize = (args.length > 3 ? Integer.parseInt(args[3]) : 128) << 10;
+    for(int p : new int[] { 1, threads }) {
+      final String fname = args[0] + ".test-" + p + ".gz";
+      long start = System.currentTimeMillis(), total = 0;
+      try (InputStream in = new BufferedInputStream(new FileInputStream(args[0]), 1 << 16);
+          OutputStream out = p > 1 ? new ParallelGZIPOutputStream(new FileOutputStream(fname), p, level, blockSize) : //
+              new GZIPOutputStream(new FileOutputStream(fname), 1 << 16)) {
+        byte[] buf = new byte[1 << 16];
+        int n;
+        while((n = in.read(buf)) > 0) {
+          out.write(buf, 0, n);
+          total += n;
+        }
+      }
+      long time = System.currentTimeMillis() - start;
+      final long csize = new File(fname).length();
+      new File(fname).delete();
+      System.err.format("%d threads: %d bytes in %d ms (%.2f MB/s), %d compressed.\n", //
+          p, total, time, total / 1048.576 / Math.max(time, 1), csize);
+    }
+  }
+}
@@ -0,0 +1,512 @@
+package com.github.kno10.wikipediaentities.util;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+
+/**
+ * Count strings with bounded memory, shared by many threads.
+ *
+ * The keys are partitioned by hash range, and each partition has its own lock,
+ * so threads adding counts only contend on the same partition. When a partition
+ * exceeds its share of the memory budget, its counts are sorted and spilled to
+ * a temporary run. The result is a merge of the runs of each partition, summing
+ * the counts, which is done for all partitions in parallel; the frequent keys
+ * of each partition are written to a sorted run, and these runs are then
+ * merged into the output.
+ *
+ * For checkpoints, only the counts added since the previous checkpoint need to
+ * be written, see {@link #checkpoint}.
+ */
+public class PartitionedCounter implements Closeable {
+  /** Number of partitions, as bits */
+  private static final int BITS = 6;
+
+  /** Estimated memory per entry, in addition to the characters */
+  private static final int ENTRY_BYTES = 64;
+
+  /** Maximum number of runs per partition, before merging them */
+  private static final int MAX_RUNS = 32;
+
+  /** Directory for temporary files */
+  private File dir;
+
+  /** Prefix of temporary files */
+  private String prefix;
+
+  /** Memory budget per partition, in bytes */
+  private long budget;
+
+  /** Partitions */
+  private Partition[] partitions = new Partition[1 << BITS];
+
+  /** Number of distinct keys of the last call to {@link #frequent} */
+  private AtomicLong distinct = new AtomicLong();
+
+  /**
+   * Constructor.
+   *
+   * @param dir Directory for temporary files
+   * @param prefix Prefix of temporary files
+   * @param budget Memory budget in bytes
+   */
+  public PartitionedCounter(File dir, String prefix, long budget) {
+    this.dir = dir;
+    this.prefix = prefix;
+    this.budget = Math.max(budget >> BITS, 1 << 16);
+    for(int i = 0; i < partitions.length; i++)
+      partitions[i] = new Partition();
+  }
+
+  /**
+   * Partition of a key.
+   *
+   * @param key Key
+   * @return Partition number
+   */
+  private static int partition(String key) {
+    return (key.hashCode() * 0x9E3779B9) >>> (32 - BITS);
+  }
+
+  /**
+   * Add a count.
+   *
+   * @param key Key
+   * @param count Count to add
+   * @throws IOException on errors spilling
+   */
+  public void add(String key, int count) throws IOException {
+    Partition p = partitions[partition(key)];
+    synchronized(p) {
+      p.add(key, count);
+    }
+  }
+
+  /**
+   * Add the counts of a map, locking each partition once.
+   *
+   * @param counts Counts to add
+   * @throws IOException on errors spilling
+   */
+  public void addAll(Object2IntOpenHashMap<String> counts) throws IOException {
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    ObjectArrayList<String>[] keys = new ObjectArrayList[partitions.length];
+    IntArrayList[] values = new IntArrayList[partitions.length];
+    for(ObjectIterator<Object2IntOpenHashMap.Entry<String>> it = counts.object2IntEntrySet().fastIterator(); it.hasNext();) {
+      Object2IntOpenHashMap.Entry<String> ent = it.next();
+      final int i = partition(ent.getKey());
+      if(keys[i] == null) {
+        keys[i] = new ObjectArrayList<>();
+        values[i] = new IntArrayList();
+      }
+      keys[i].add(ent.getKey());
+      values[i].add(ent.getIntValue());
+    }
+    for(int i = 0; i < partitions.length; i++) {
+      if(keys[i] == null)
+        continue;
+      Partition p = partitions[i];
+      synchronized(p) {
+        for(int j = 0, n = keys[i].size(); j < n; j++)
+          p.add(keys[i].get(j), values[i].getInt(j));
+      }
+    }
+  }
+
+  /**
+   * Write all keys and counts, for reading them back with {@link #add}. Each
+   * partition is written in sorted order.
+   *
+   * @param out Output
+   * @param minimum Minimum count to write
+   * @param offset Offset to add to the written counts
+   * @throws IOException on errors
+   */
+  public void save(RecordWriter out, int minimum, int offset) throws IOException {
+    for(Partition p : partitions)
+      synchronized(p) {
+        p.merge(minimum, out, offset);
+      }
+  }
+
+  /**
+   * Write the counts added since the last checkpoint, or all counts, for reading
+   * them back with {@link #add}. A key may occur in several checkpoints, whose
+   * counts then need to be summed.
+   *
+   * @param out Output, {@code null} to only mark the counts as written
+   * @param full Write all counts, not only those since the last checkpoint
+   * @throws IOException on errors
+   */
+  public void checkpoint(RecordWriter out, boolean full) throws IOException {
+    for(Partition p : partitions)
+      synchronized(p) {
+        p.checkpoint(out, full);
+      }
+  }
+
+  /**
+   * Write the keys with at least the minimum count, sorted. The partitions are
+   * merged in parallel, each into a sorted run of its frequent keys, and the
+   * counts are not kept. These runs are then merged from disk.
+   *
+   * @param out Output
+   * @param minimum Minimum count
+   * @param threads Number of threads
+   * @return Number of keys written
+   * @throws IOException on errors
+   */
+  public long frequent(RecordWriter out, final int minimum, int threads) throws IOException {
+    distinct.set(0);
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(threads, 1));
+    List<Future<File>> results = new ArrayList<>(partitions.length);
+    for(final Partition p : partitions)
+      results.add(pool.submit(new Callable<File>() {
+        @Override
+        public File call() throws IOException {
+          File f = File.createTempFile(prefix, ".rec", dir);
+          synchronized(p) {
+            try (RecordWriter w = new RecordWriter(new BufferedOutputStream(new FileOutputStream(f), 1 << 16), true)) {
+              distinct.addAndGet(p.merge(minimum, w, 0));
+            }
+            p.clear();
+          }
+          return f;
+        }
+      }));
+    List<File> runs = new ArrayList<>(partitions.length);
+    PriorityQueue<Cursor> heap = new PriorityQueue<>(partitions.length, Cursor.ORDER);
+    try {
+      for(Future<File> f : results)
+        runs.add(f.get());
+      for(File f : runs) {
+        Cursor c = new Cursor(new RecordReader(new FileInputStream(f), true));
+        if(c.next())
+          heap.add(c);
+        else
+          c.close();
+      }
+      long n = 0;
+      while(!heap.isEmpty()) {
+        Cursor c = heap.poll();
+        out.write(c.key);
+        ++n;
+        if(c.next())
+          heap.add(c);
+        else
+          c.close();
+      }
+      return n;
+    }
+    catch(InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+    catch(ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+    finally {
+      pool.shutdownNow();
+      for(Cursor c : heap)
+        c.close();
+      for(File f : runs)
+        f.delete();
+    }
+  }
+
+  /**
+   * @return Number of distinct keys of the last call to {@link #frequent}
+   */
+  public long distinct() {
+    return distinct.get();
+  }
+
+  @Override
+  public void close() {
+    for(Partition p : partitions)
+      synchronized(p) {
+        p.clear();
+      }
+  }
+
+  /**
+   * A single partition; must be synchronized by the caller.
+   */
+  private class Partition {
+    /** Counts in memory */
+    Object2IntOpenHashMap<String> counts = new Object2IntOpenHashMap<>();
+
+    /** Estimated memory use */
+    long bytes = 0;
+
+    /** Spilled runs */
+    List<File> runs = new ArrayList<>();
+
+    /** Number of runs (at the start of the list) before the last checkpoint */
+    int saved = 0;
+
+    /**
+     * Add a count, and spill if over budget.
+     *
+     * @param key Key
+     * @param count Count to add
+     * @throws IOException on errors spilling
+     */
+    void add(String key, int count) throws IOException {
+      final int size = counts.size();
+      counts.addTo(key, count);
+      if(counts.size() > size && (bytes += ENTRY_BYTES + (key.length() << 1)) > budget)
+        spill();
+    }
+
+    /**
+     * Sorted keys in memory.
+     *
+     * @return Keys
+     */
+    String[] sortedKeys() {
+      String[] keys = counts.keySet().toArray(new String[counts.size()]);
+      Arrays.sort(keys);
+      return keys;
+    }
+
+    /**
+     * Write the counts in memory to a new run.
+     *
+     * @throws IOException on errors
+     */
+    void spill() throws IOException {
+      File f = File.createTempFile(prefix, ".rec", dir);
+      try (RecordWriter out = new RecordWriter(new BufferedOutputStream(new FileOutputStream(f), 1 << 16), true)) {
+        for(String key : sortedKeys())
+          out.write(key, Integer.toString(counts.getInt(key)));
+      }
+      runs.add(f);
+      counts = new Object2IntOpenHashMap<>();
+      bytes = 0;
+      if(runs.size() - saved > MAX_RUNS)
+        compact(saved, runs.size());
+    }
+
+    /**
+     * Merge a range of runs into a single run, summing the counts.
+     *
+     * @param from First run
+     * @param to End of the range, exclusive
+     * @throws IOException on errors
+     */
+    void compact(int from, int to) throws IOException {
+      if(to - from < 2)
+        return;
+      List<File> range = runs.subList(from, to);
+      File f = File.createTempFile(prefix, ".rec", dir);
+      try (RecordWriter out = new RecordWriter(new BufferedOutputStream(new FileOutputStream(f), 1 << 16), true)) {
+        merge(range, false, Integer.MIN_VALUE, out, 0);
+      }
+      for(File r : range)
+        r.delete();
+      range.clear();
+      runs.add(from, f);
+    }
+
+    /**
+     * Write the counts since the last checkpoint, or all counts. These are
+     * merged into a single run first, which is then copied.
+     *
+     * @param out Output, may be {@code null}
+     * @param full Write all counts
+     * @throws IOException on errors
+     */
+    void checkpoint(RecordWriter out, boolean full) throws IOException {
+      if(!full && saved > MAX_RUNS) {
+        compact(0, saved);
+        saved = 1;
+      }
+      if(!counts.isEmpty())
+        spill();
+      final int from = full ? 0 : saved;
+      compact(from, runs.size());
+      saved = runs.size();
+      if(from == saved || out == null)
+        return;
+      try (RecordReader in = new RecordReader(new FileInputStream(runs.get(from)), true)) {
+        while(in.next())
+          in.copyTo(out);
+      }
+    }
+
+    /**
+     * Merge the runs and the counts in memory, summing the counts.
+     *
+     * @param minimum Minimum count
+     * @param out Output for keys and counts
+     * @param offset Offset to add to the written counts
+     * @return Number of distinct keys
+     * @throws IOException on errors
+     */
+    long merge(int minimum, RecordWriter out, int offset) throws IOException {
+      return merge(runs, true, minimum, out, offset);
+    }
+
+    /**
+     * Merge runs, and optionally the counts in memory, summing the counts.
+     *
+     * @param files Runs to merge
+     * @param memory Include the counts in memory
+     * @param minimum Minimum count
+     * @param out Output for keys and counts
+     * @param offset Offset to add to the written counts
+     * @return Number of distinct keys
+     * @throws IOException on errors
+     */
+    long merge(List<File> files, boolean memory, int minimum, RecordWriter out, int offset) throws IOException {
+      PriorityQueue<Cursor> heap = new PriorityQueue<>(files.size() + 1, Cursor.ORDER);
+      long n = 0;
+      try {
+        Cursor mem = new Cursor(memory ? sortedKeys() : new String[0], counts);
+        if(mem.next())
+          heap.add(mem);
+        for(File f : files) {
+          Cursor c = new Cursor(new RecordReader(new FileInputStream(f), true));
+          if(c.next())
+            heap.add(c);
+          else
+            c.close();
+        }
+        while(!heap.isEmpty()) {
+          Cursor c = heap.poll();
+          final String key = c.key;
+          long sum = c.count;
+          while(true) {
+            if(c.next())
+              heap.add(c);
+            else
+              c.close();
+            if(heap.isEmpty() || !heap.peek().key.equals(key))
+              break;
+            c = heap.poll();
+            sum += c.count;
+          }
+          ++n;
+          if(sum < minimum)
+            continue;
+          out.write(key, Long.toString(sum + offset));
+        }
+      }
+      finally {
+        for(Cursor c : heap)
+          c.close();
+      }
+      return n;
+    }
+
+    /**
+     * Remove all counts and runs.
+     */
+    void clear() {
+      counts = new Object2IntOpenHashMap<>();
+      bytes = 0;
+      for(File f : runs)
+        f.delete();
+      runs.clear();
+      saved = 0;
+    }
+  }
+
+  /**
+   * Sorted iteration over keys and counts, of a run or in memory.
+   */
+  private static class Cursor implements Closeable {
+    /** Order by key */
+    static final Comparator<Cursor> ORDER = new Comparator<Cursor>() {
+      @Override
+      public int compare(Cursor a, Cursor b) {
+        return a.key.compareTo(b.key);
+      }
+    };
+
+    /** Run reader, or {@code null} */
+    RecordReader reader;
+
+    /** Sorted keys, or {@code null} */
+    String[] keys;
+
+    /** Counts of the keys */
+    Object2IntOpenHashMap<String> counts;
+
+    /** Position in the keys */
+    int pos = 0;
+
+    /** Current key */
+    String key;
+
+    /** Current count */
+    int count;
+
+    /**
+     * Constructor for a run.
+     *
+     * @param reader Run reader
+     */
+    Cursor(RecordReader reader) {
+      this.reader = reader;
+    }
+
+    /**
+     * Constructor for keys in memory.
+     *
+     * @param keys Sorted keys
+     * @param counts Counts
+     */
+    Cursor(String[] keys, Object2IntOpenHashMap<String> counts) {
+      this.keys = keys;
+      this.counts = counts;
+    }
+
+    /**
+     * Advance to the next key.
+     *
+     * @return {@code false} at the end
+     * @throws IOException on errors
+     */
+    boolean next() throws IOException {
+      if(reader != null) {
+        if(!reader.next())
+          return false;
+        key = reader.get(0);
+        count = Integer.parseInt(reader.get(1));
+        return true;
+      }
+      if(pos == keys.length)
+        return false;
+      key = keys[pos++];
+      count = counts.getInt(key);
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if(reader != null)
+        reader.close();
+    }
+  }
+}
@@ -0,0 +1,34 @@
+package com.github.kno10.wikipediaentities.util;
+
+import java.io.IOException;
+
+/**
+ * Convert between the record formats, e.g., to export binary records as
+ * tab-separated text. The formats are chosen by the file names, see
+ * {@link RecordWriter}.
+ */
+public class RecordConverter {
+  /**
+   * Convert a file.
+   *
+   * @param args Input file name, and output file name; without output name,
+   *        tab-separated text is written to stdout.
+   * @throws IOException on errors
+   */
+  public static void main(String[] args) throws IOException {
+    if(args.length < 1) {
+      System.err.println("Usage: RecordConverter input [output]");
+      System.exit(1);
+    }
+    long n = 0;
+    try (RecordReader in = RecordReader.open(args[0]);
+        RecordWriter out = args.length > 1 ? RecordWriter.open(args[1]) : new RecordWriter(System.out, false)) {
+      while(in.next()) {
+        in.copyTo(out);
+        ++n;
+      }
+      out.flush();
+    }
+    System.err.format("Converted %d records.\n", n);
+  }
+}
@@ -0,0 +1,308 @@
+package com.github.kno10.wikipediaentities.util;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reader for records written by {@link RecordWriter}, either as tab-separated
+ * lines or in the binary format. The fields are kept as UTF-8 bytes, and are
+ * only decoded on request.
+ */
+public class RecordReader implements Closeable {
+  /** Input stream */
+  private InputStream in;
+
+  /** Binary format */
+  private boolean binary;
+
+  /** Read buffer */
+  private byte[] buf = new byte[1 << 16];
+
+  /** Read buffer position and limit */
+  private int pos = 0, lim = 0;
+
+  /** Current record data */
+  private byte[] data = new byte[1 << 10];
+
+  /** Field offsets; field i is from starts[i] to ends[i] */
+  private int[] starts = new int[16], ends = new int[16];
+
+  /** Number of fields in the current record */
+  private int size = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param in Input stream
+   * @param binary Binary format
+   */
+  public RecordReader(InputStream in, boolean binary) {
+    this.in = in;
+    this.binary = binary;
+  }
+
+  /**
+   * Open a file; the format is chosen by the file name, as for
+   * {@link RecordWriter#open}. The name may also be a glob pattern, such as
+   * "links-*.rec.gz", to read all matching files in order of their names.
+   *
+   * @param fname File name or pattern
+   * @return Reader
+   * @throws IOException on errors
+   */
+  public static RecordReader open(String fname) throws IOException {
+    if(!isPattern(fname))
+      return new RecordReader(Util.openInput(fname), RecordWriter.isBinary(fname));
+    List<File> files = files(fname);
+    if(files.isEmpty())
+      throw new FileNotFoundException("No files match " + fname);
+    List<InputStream> ins = new ArrayList<>(files.size());
+    try {
+      for(File f : files)
+        ins.add(Util.openInput(f.getPath()));
+    }
+    catch(IOException e) {
+      for(InputStream in : ins)
+        in.close();
+      throw e;
+    }
+    return new RecordReader(new SequenceInputStream(Collections.enumeration(ins)), RecordWriter.isBinary(fname));
+  }
+
+  /**
+   * Check if a file name is a glob pattern.
+   *
+   * @param fname File name
+   * @return {@code true} if it contains wildcards
+   */
+  public static boolean isPattern(String fname) {
+    return fname.indexOf('*') >= 0 || fname.indexOf('?') >= 0;
+  }
+
+  /**
+   * Find the files matching a glob pattern in the file name. The directory
+   * must not contain wildcards.
+   *
+   * @param pattern File name pattern
+   * @return Matching files, sorted by name
+   * @throws IOException on errors listing the directory
+   */
+  public static List<File> files(String pattern) throws IOException {
+    File p = new File(pattern), dir = p.getAbsoluteFile().getParentFile();
+    List<File> files = new ArrayList<>();
+    try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir.toPath(), p.getName())) {
+      for(Path f : ds)
+        files.add(new File(p.getParentFile(), f.getFileName().toString()));
+    }
+    Collections.sort(files);
+    return files;
+  }
+
+  /**
+   * Read the next record.
+   *
+   * @return {@code false} at the end of the input
+   * @throws IOException on errors
+   */
+  public boolean next() throws IOException {
+    return binary ? nextBinary() : nextLine();
+  }
+
+  /**
+   * Read the next binary record.
+   *
+   * @return {@code false} at the end of the input
+   * @throws IOException on errors
+   */
+  private boolean nextBinary() throws IOException {
+    if(pos == lim && !fill())
+      return false;
+    final int n = readVarint();
+    reserve(n);
+    int len = 0;
+    for(int i = 0; i < n; i++) {
+      final int l = readVarint();
+      if(len + l > data.length)
+        data = Arrays.copyOf(data, Math.max(data.length << 1, len + l));
+      starts[i] = len;
+      for(int r = l; r > 0;) {
+        if(pos == lim && !fill())
+          throw new EOFException("Truncated record.");
+        final int c = Math.min(r, lim - pos);
+        System.arraycopy(buf, pos, data, len, c);
+        pos += c;
+        len += c;
+        r -= c;
+      }
+      ends[i] = len;
+    }
+    size = n;
+    return true;
+  }
+
+  /**
+   * Read an unsigned varint.
+   *
+   * @return Value
+   * @throws IOException on errors
+   */
+  private int readVarint() throws IOException {
+    int v = 0;
+    for(int shift = 0;; shift += 7) {
+      if(pos == lim && !fill())
+        throw new EOFException("Truncated record.");
+      final byte b = buf[pos++];
+      v |= (b & 0x7F) << shift;
+      if(b >= 0)
+        return v;
+    }
+  }
+
+  /**
+   * Read the next line, and split it into fields at tabs.
+   *
+   * @return {@code false} at the end of the input
+   * @throws IOException on errors
+   */
+  private boolean nextLine() throws IOException {
+    int len = 0;
+    while(true) {
+      if(pos == lim && !fill()) {
+        if(len == 0)
+          return false;
+        break;
+      }
+      int i = pos;
+      while(i < lim && buf[i] != '\n')
+        ++i;
+      if(len + i - pos > data.length)
+        data = Arrays.copyOf(data, Math.max(data.length << 1, len + i - pos));
+      System.arraycopy(buf, pos, data, len, i - pos);
+      len += i - pos;
+      pos = i;
+      if(i < lim) {
+        ++pos;
+        break;
+      }
+    }
+    int n = 0;
+    for(int s = 0, e = 0;; s = ++e) {
+      while(e < len && data[e] != '\t')
+        ++e;
+      reserve(n + 1);
+      starts[n] = s;
+      ends[n++] = e;
+      if(e == len)
+        break;
+    }
+    size = n;
+    return true;
+  }
+
+  /**
+   * Refill the read buffer.
+   *
+   * @return {@code false} at the end of the input
+   * @throws IOException on errors
+   */
+  private boolean fill() throws IOException {
+    lim = in.read(buf, 0, buf.length);
+    pos = 0;
+    if(lim <= 0) {
+      lim = 0;
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Make room for field offsets.
+   *
+   * @param n Number of fields
+   */
+  private void reserve(int n) {
+    if(n > starts.length) {
+      starts = Arrays.copyOf(starts, Math.max(starts.length << 1, n));
+      ends = Arrays.copyOf(ends, starts.length);
+    }
+  }
+
+  /**
+   * Number of fields in the current record.
+   *
+   * @return Number of fields
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Get a field as string.
+   *
+   * @param i Field number
+   * @return Value
+   */
+  public String get(int i) {
+    return new String(data, starts[i], ends[i] - starts[i], StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Get the data of the current record, see {@link #offset} and
+   * {@link #length}. It is only valid until the next record is read.
+   *
+   * @return UTF-8 data
+   */
+  public byte[] data() {
+    return data;
+  }
+
+  /**
+   * Offset of a field in {@link #data}.
+   *
+   * @param i Field number
+   * @return Offset
+   */
+  public int offset(int i) {
+    return starts[i];
+  }
+
+  /**
+   * Length of a field in {@link #data}.
+   *
+   * @param i Field number
+   * @return Length in bytes
+   */
+  public int length(int i) {
+    return ends[i] - starts[i];
+  }
+
+  /**
+   * Copy the current record.
+   *
+   * @param out Output
+   * @throws IOException on errors
+   */
+  public void copyTo(RecordWriter out) throws IOException {
+    for(int i = 0; i < size; i++)
+      out.field(data, starts[i], ends[i] - starts[i]);
+    out.end();
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+}
@@ -0,0 +1,275 @@
+package com.github.kno10.wikipediaentities.util;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Writer for records of text fields, such as the links, redirects and link
+ * texts passed between the processing steps.
+ *
+ * Two formats are supported, chosen by the file name: tab-separated lines, or
+ * (for file names ending with ".rec", before the codec suffix) a binary format.
+ * A binary record is the number of fields, followed by each field as length and
+ * UTF-8 bytes; all numbers are unsigned varints. Binary records can contain any
+ * text, and are read without searching for separators. In tab-separated
+ * output, tabs and newlines within fields are replaced by spaces.
+ */
+public class RecordWriter implements Closeable {
+  /** Space reserved for the field count of a binary record */
+  private static final int RESERVED = 5;
+
+  /** Output stream */
+  private OutputStream out;
+
+  /** Binary format */
+  private boolean binary;
+
+  /** Current record */
+  private byte[] buf = new byte[1 << 12];
+
+  /** Length of the current record */
+  private int len;
+
+  /** Number of fields in the current record */
+  private int fields = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param out Output stream
+   * @param binary Use the binary format
+   */
+  public RecordWriter(OutputStream out, boolean binary) {
+    this.out = out;
+    this.binary = binary;
+    this.len = binary ? RESERVED : 0;
+  }
+
+  /**
+   * Open a file for writing; the format and compression are chosen by the file
+   * name.
+   *
+   * @param fname File name
+   * @return Writer
+   * @throws IOException on errors
+   */
+  public static RecordWriter open(String fname) throws IOException {
+    return new RecordWriter(Util.compress(new FileOutputStream(fname), fname), isBinary(fname));
+  }
+
+  /**
+   * Check if a file name denotes the binary format.
+   *
+   * @param fname File name
+   * @return {@code true} if the name ends with ".rec", before the codec suffix
+   */
+  public static boolean isBinary(String fname) {
+    return fname.substring(0, fname.length() - Util.codecSuffix(fname).length()).endsWith(".rec");
+  }
+
+  /**
+   * Get the format and codec suffix of a file name, such as ".rec.gz".
+   *
+   * @param fname File name
+   * @return Suffix, may be empty
+   */
+  public static String suffix(String fname) {
+    final String codec = Util.codecSuffix(fname);
+    return isBinary(fname) ? ".rec" + codec : codec;
+  }
+
+  /**
+   * Add a field to the current record.
+   *
+   * @param s Field value
+   * @return this
+   */
+  public RecordWriter field(CharSequence s) {
+    final int n = s.length();
+    if(binary) {
+      int l = 0;
+      for(int i = 0; i < n; i++) {
+        final char c = s.charAt(i);
+        if(c < 0x80)
+          l += 1;
+        else if(c < 0x800)
+          l += 2;
+        else if(Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+          l += 4;
+          ++i;
+        }
+        else
+          l += Character.isSurrogate(c) ? 1 : 3;
+      }
+      ensure(RESERVED + l);
+      len = putVarint(buf, len, l);
+    }
+    else {
+      ensure(1 + n * 3);
+      if(fields > 0)
+        buf[len++] = '\t';
+    }
+    for(int i = 0; i < n; i++) {
+      final char c = s.charAt(i);
+      if(c < 0x80)
+        buf[len++] = !binary && (c == '\t' || c == '\n') ? (byte) ' ' : (byte) c;
+      else if(c < 0x800) {
+        buf[len++] = (byte) (0xC0 | (c >>> 6));
+        buf[len++] = (byte) (0x80 | (c & 0x3F));
+      }
+      else if(Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+        final int cp = Character.toCodePoint(c, s.charAt(++i));
+        buf[len++] = (byte) (0xF0 | (cp >>> 18));
+        buf[len++] = (byte) (0x80 | ((cp >>> 12) & 0x3F));
+        buf[len++] = (byte) (0x80 | ((cp >>> 6) & 0x3F));
+        buf[len++] = (byte) (0x80 | (cp & 0x3F));
+      }
+      else if(Character.isSurrogate(c))
+        buf[len++] = '?'; // Unpaired, as String.getBytes
+      else {
+        buf[len++] = (byte) (0xE0 | (c >>> 12));
+        buf[len++] = (byte) (0x80 | ((c >>> 6) & 0x3F));
+        buf[len++] = (byte) (0x80 | (c & 0x3F));
+      }
+    }
+    ++fields;
+    return this;
+  }
+
+  /**
+   * Add a field to the current record.
+   *
+   * @param b UTF-8 data
+   * @param off Offset
+   * @param l Length
+   * @return this
+   */
+  public RecordWriter field(byte[] b, int off, int l) {
+    ensure(RESERVED + l);
+    if(binary)
+      len = putVarint(buf, len, l);
+    else if(fields > 0)
+      buf[len++] = '\t';
+    System.arraycopy(b, off, buf, len, l);
+    if(!binary)
+      for(int i = len, e = len + l; i < e; i++)
+        if(buf[i] == '\t' || buf[i] == '\n')
+          buf[i] = ' ';
+    len += l;
+    ++fields;
+    return this;
+  }
+
+  /**
+   * Write a record given as separated fields.
+   *
+   * @param b UTF-8 data
+   * @param off Offset
+   * @param l Length
+   * @param sep Field separator
+   * @throws IOException on errors
+   */
+  public void split(byte[] b, int off, int l, byte sep) throws IOException {
+    for(int s = off, e = off, end = off + l;; s = ++e) {
+      while(e < end && b[e] != sep)
+        ++e;
+      field(b, s, e - s);
+      if(e == end)
+        break;
+    }
+    end();
+  }
+
+  /**
+   * Write a record.
+   *
+   * @param values Field values
+   * @throws IOException on errors
+   */
+  public void write(CharSequence... values) throws IOException {
+    for(CharSequence v : values)
+      field(v);
+    end();
+  }
+
+  /**
+   * End the current record, and write it.
+   *
+   * @throws IOException on errors
+   */
+  public void end() throws IOException {
+    if(binary) {
+      // Put the field count right before the fields.
+      int start = RESERVED - varintLength(fields);
+      putVarint(buf, start, fields);
+      out.write(buf, start, len - start);
+      len = RESERVED;
+    }
+    else {
+      ensure(1);
+      buf[len++] = '\n';
+      out.write(buf, 0, len);
+      len = 0;
+    }
+    fields = 0;
+  }
+
+  /**
+   * Make room in the record buffer.
+   *
+   * @param n Number of bytes to add
+   */
+  private void ensure(int n) {
+    if(len + n > buf.length)
+      buf = Arrays.copyOf(buf, Math.max(buf.length << 1, len + n));
+  }
+
+  /**
+   * Write an unsigned varint.
+   *
+   * @param b Buffer
+   * @param p Position
+   * @param v Value
+   * @return Position after the value
+   */
+  static int putVarint(byte[] b, int p, int v) {
+    while((v & ~0x7F) != 0) {
+      b[p++] = (byte) ((v & 0x7F) | 0x80);
+      v >>>= 7;
+    }
+    b[p++] = (byte) v;
+    return p;
+  }
+
+  /**
+   * Length of an unsigned varint.
+   *
+   * @param v Value
+   * @return Number of bytes
+   */
+  static int varintLength(int v) {
+    int l = 1;
+    while((v & ~0x7F) != 0) {
+      v >>>= 7;
+      ++l;
+    }
+    return l;
+  }
+
+  /**
+   * Flush the output.
+   *
+   * @throws IOException on errors
+   */
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    out.close();
+  }
+}
@@ -0,0 +1,160 @@
+package com.github.kno10.wikipediaentities.util;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded buffer to restore the input order of results completed out of order
+ * by multiple workers.
+ *
+ * Every item has a sequence number, assigned in input order starting at 0.
+ * Workers {@link #put} completed items into a ring, and a single consumer
+ * {@link #take}s them in sequence order. The consumer is only woken when the
+ * next item in order becomes available. A worker blocks if its item is too far
+ * ahead of the consumer, which bounds the memory use.
+ *
+ * In unordered mode, the sequence numbers are ignored and items are handed out
+ * in completion order, using the same ring.
+ *
+ * @param <T> Item type
+ */
+public class ReorderBuffer<T> {
+  /** Ring of completed items */
+  private final Object[] ring;
+
+  /** Preserve the input order */
+  private final boolean ordered;
+
+  /** Next sequence number to take */
+  private long next = 0;
+
+  /** Next sequence number to assign, in unordered mode */
+  private long assigned = 0;
+
+  /** Total number of items, or -1 if not yet known */
+  private long total = -1;
+
+  /** Lock */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /** Conditions */
+  private final Condition available = lock.newCondition(), space = lock.newCondition();
+
+  /** Number of completed items not yet taken */
+  private int waiting = 0;
+
+  /** Statistics: maximum and sum of occupancy, number of puts */
+  private long maxWaiting = 0, sumWaiting = 0, puts = 0;
+
+  /** Statistics: number of times the consumer or a producer had to wait */
+  private long takeStalls = 0, putStalls = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param capacity Maximum distance of a completed item to the next item in
+   *        order
+   * @param ordered Preserve the input order
+   */
+  public ReorderBuffer(int capacity, boolean ordered) {
+    this.ring = new Object[capacity];
+    this.ordered = ordered;
+  }
+
+  /**
+   * Add a completed item.
+   *
+   * @param seq Sequence number (ignored in unordered mode)
+   * @param item Item, not {@code null}
+   * @throws InterruptedException when interrupted
+   */
+  public void put(long seq, T item) throws InterruptedException {
+    lock.lock();
+    try {
+      if(!ordered)
+        seq = assigned++;
+      if(seq - next >= ring.length) {
+        ++putStalls;
+        do {
+          space.await();
+        }
+        while(seq - next >= ring.length);
+      }
+      ring[(int) (seq % ring.length)] = item;
+      ++waiting;
+      ++puts;
+      sumWaiting += waiting;
+      maxWaiting = waiting > maxWaiting ? waiting : maxWaiting;
+      if(seq == next)
+        available.signal();
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Set the total number of items, after all items have been submitted to the
+   * workers.
+   *
+   * @param total Total number of items
+   */
+  public void close(long total) {
+    lock.lock();
+    try {
+      this.total = total;
+      available.signal();
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Take the next item in order, waiting until it has been completed.
+   *
+   * @return Next item, or {@code null} when all items have been taken.
+   * @throws InterruptedException when interrupted
+   */
+  @SuppressWarnings("unchecked")
+  public T take() throws InterruptedException {
+    lock.lock();
+    try {
+      final int pos = (int) (next % ring.length);
+      if(ring[pos] == null && next != total) {
+        ++takeStalls;
+        do {
+          available.await();
+        }
+        while(ring[pos] == null && next != total);
+      }
+      if(ring[pos] == null)
+        return null; // Finished
+      T item = (T) ring[pos];
+      ring[pos] = null;
+      ++next;
+      --waiting;
+      space.signalAll();
+      return item;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Statistics on the buffer occupancy.
+   *
+   * @return Statistics
+   */
+  public String stats() {
+    lock.lock();
+    try {
+      return String.format("%s reorder buffer: %d items, occupancy max %d avg %.1f of %d, %d consumer stalls, %d producer stalls", //
+          ordered ? "Ordered" : "Unordered", puts, maxWaiting, sumWaiting / (double) Math.max(puts, 1), ring.length, takeStalls, putStalls);
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,137 @@
+package com.github.kno10.wikipediaentities.util;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * Output file that can be checkpointed, and later be resumed from the last
+ * checkpoint.
+ *
+ * At a checkpoint, all data is written and synced to disk. For compressed
+ * output, the current gzip member (or zstd, LZ4 or bzip2 frame) is finished,
+ * so that the file up to the checkpoint offset is a valid concatenation of
+ * compressed streams on its own. Resuming truncates
+ * the file to the checkpoint offset and appends.
+ */
+public class ResumableOutput implements Closeable {
+  /** Output file */
+  private FileOutputStream file;
+
+  /** File channel */
+  private FileChannel channel;
+
+  /** File name, for the codec suffix */
+  private String fname;
+
+  /** Current compressed stream, may be {@code null} */
+  private OutputStream compressed;
+
+  /** Current output stream, may be {@code null} */
+  private PrintStream out;
+
+  /**
+   * Constructor.
+   *
+   * @param fname File name; the suffix chooses the compression
+   * @param offset Checkpoint offset to resume from, 0 to start a new file
+   * @throws IOException on errors opening the file
+   */
+  public ResumableOutput(String fname, long offset) throws IOException {
+    file = new FileOutputStream(fname, offset > 0);
+    channel = file.getChannel();
+    if(offset > 0) {
+      if(channel.size() < offset)
+        throw new IOException("Output file " + fname + " is shorter than the checkpoint offset " + offset);
+      channel.truncate(offset);
+    }
+    this.fname = fname;
+  }
+
+  /**
+   * Get the output stream, valid until the next checkpoint.
+   *
+   * @return Output stream
+   * @throws IOException on errors
+   */
+  public PrintStream out() throws IOException {
+    if(out == null) {
+      compressed = Util.compress(new NoCloseOutputStream(file), fname);
+      out = new PrintStream(compressed, false, "UTF-8");
+    }
+    return out;
+  }
+
+  /**
+   * Write all pending data, and sync it to disk.
+   *
+   * @return Offset to resume from
+   * @throws IOException on errors
+   */
+  public long checkpoint() throws IOException {
+    finish();
+    channel.force(false);
+    return channel.position();
+  }
+
+  /**
+   * Finish the current stream.
+   *
+   * @throws IOException on errors
+   */
+  private void finish() throws IOException {
+    if(out == null)
+      return;
+    if(out.checkError()) // Flushes, too.
+      throw new IOException("Error writing output.");
+    compressed.close(); // Finishes the compressed stream, but not the file.
+    out = null;
+    compressed = null;
+  }
+
+  @Override
+  public void close() throws IOException {
+    finish();
+    file.close();
+  }
+
+  /**
+   * Output stream wrapper that does not close the underlying stream.
+   */
+  private static class NoCloseOutputStream extends OutputStream {
+    /** Underlying stream */
+    private OutputStream inner;
+
+    /**
+     * Constructor.
+     *
+     * @param inner Underlying stream
+     */
+    NoCloseOutputStream(OutputStream inner) {
+      this.inner = inner;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      inner.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      inner.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      inner.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush(); // But do not close.
+    }
+  }
+}
@@ -0,0 +1,525 @@
+package com.github.kno10.wikipediaentities.util;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.lucene.util.StringHelper;
+
+/**
+ * Dictionary assigning dense integer ids to titles, shared by the parser (which
+ * builds it), the index and the link analysis.
+ *
+ * All keys are stored UTF-8 encoded in pages of 64 KB, and each id maps to the
+ * page, position and length of its key, so the key data is not limited to a
+ * single array. The ids are found with open addressing hash tables, one per
+ * stripe of the hash values. Lookups work on raw bytes without allocating
+ * objects. The dictionary can be saved, and memory-mapped read-only.
+ *
+ * Adding is thread safe: a key that is already present is found without
+ * locking, and new keys only lock their stripe. The entry of a key is written
+ * before its table slot is published, so a lookup that finds the slot also sees
+ * the key. Other lookups are only safe once the dictionary is no longer
+ * modified.
+ */
+public class TitleDictionary {
+  /** File magic */
+  private static final int MAGIC = 0x54444932;
+
+  /** Page size, in bits; also limits the key length */
+  private static final int PAGE_BITS = 16;
+
+  /** Page size */
+  private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+  /** Number of stripes, in bits */
+  private static final int STRIPE_BITS = 6;
+
+  /** Size of the chunks of the entry array, in bits */
+  private static final int CHUNK_BITS = 16;
+
+  /** Entries (page, position, length) of the keys, in chunks (when building) */
+  private AtomicReferenceArray<long[]> chunks;
+
+  /** Entries of the keys (when memory-mapped) */
+  private LongBuffer entryBuf;
+
+  /** Key data pages */
+  private ByteBuffer[] pages;
+
+  /** Number of pages */
+  private int numPages;
+
+  /** Hash table stripes */
+  private Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+
+  /** Number of keys */
+  private AtomicInteger size = new AtomicInteger();
+
+  /**
+   * A stripe of the hash table, with its own lock and data page.
+   */
+  private static final class Stripe {
+    /** Hash table, containing id+1 (0 is empty), when building */
+    volatile AtomicIntegerArray table;
+
+    /** Hash table, when memory-mapped */
+    IntBuffer mapped;
+
+    /** Number of keys */
+    int size;
+
+    /** Current data page, or -1 */
+    int page = -1;
+
+    /** Used bytes of the current page */
+    int used;
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param expected Expected number of keys
+   */
+  public TitleDictionary(int expected) {
+    final int tlen = Integer.highestOneBit(Math.max(expected >>> STRIPE_BITS, 16)) << 2;
+    for(int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe();
+      stripes[i].table = new AtomicIntegerArray(tlen);
+    }
+    chunks = new AtomicReferenceArray<>(1 << (31 - CHUNK_BITS));
+    pages = new ByteBuffer[64];
+  }
+
+  /**
+   * Constructor for a read-only dictionary.
+   *
+   * @param entryBuf Key entries
+   * @param pages Data pages
+   * @param tables Hash tables of the stripes
+   * @param size Number of keys
+   */
+  private TitleDictionary(LongBuffer entryBuf, ByteBuffer[] pages, IntBuffer[] tables, int size) {
+    this.entryBuf = entryBuf;
+    this.pages = pages;
+    this.numPages = pages.length;
+    for(int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe();
+      stripes[i].mapped = tables[i];
+    }
+    this.size.set(size);
+  }
+
+  /**
+   * Add a key, unless already present.
+   *
+   * @param key Key
+   * @return Id of the key
+   */
+  public int add(String key) {
+    byte[] b = key.getBytes(StandardCharsets.UTF_8);
+    return add(b, 0, b.length);
+  }
+
+  /**
+   * Add a key, unless already present.
+   *
+   * @param b Data
+   * @param off Offset
+   * @param len Length
+   * @return Id of the key
+   */
+  public int add(byte[] b, int off, int len) {
+    if(chunks == null)
+      throw new UnsupportedOperationException("Dictionary is read-only.");
+    if(len >= PAGE_SIZE)
+      throw new IllegalArgumentException("Key too long: " + len + " bytes.");
+    final int h = StringHelper.murmurhash3_x86_32(b, off, len, 0);
+    final Stripe s = stripes[h >>> (32 - STRIPE_BITS)];
+    int id = find(s, h, b, off, len);
+    if(id >= 0)
+      return id;
+    synchronized(s) {
+      AtomicIntegerArray table = s.table;
+      final int mask = table.length() - 1;
+      int pos = h & mask;
+      for(int cur; (cur = table.get(pos)) != 0; pos = (pos + 1) & mask) {
+        if(equals(cur - 1, b, off, len))
+          return cur - 1;
+      }
+      id = size.getAndIncrement();
+      if(id == Integer.MAX_VALUE - 1)
+        throw new IllegalStateException("Too many keys.");
+      if(s.page < 0 || s.used + len > PAGE_SIZE) {
+        s.page = newPage();
+        s.used = 0;
+      }
+      System.arraycopy(b, off, pages[s.page].array(), s.used, len);
+      long[] chunk = chunks.get(id >>> CHUNK_BITS);
+      if(chunk == null) {
+        chunks.compareAndSet(id >>> CHUNK_BITS, null, new long[1 << CHUNK_BITS]);
+        chunk = chunks.get(id >>> CHUNK_BITS);
+      }
+      chunk[id & ((1 << CHUNK_BITS) - 1)] = ((long) s.page << 32) | ((long) s.used << PAGE_BITS) | len;
+      s.used += len;
+      table.lazySet(pos, id + 1); // Publish after the entry.
+      if(++s.size << 1 > table.length())
+        rehash(s);
+      return id;
+    }
+  }
+
+  /**
+   * Find a key.
+   *
+   * @param key Key
+   * @return Id, or -1
+   */
+  public int get(String key) {
+    byte[] b = key.getBytes(StandardCharsets.UTF_8);
+    return get(b, 0, b.length);
+  }
+
+  /**
+   * Find a key.
+   *
+   * @param b Data
+   * @param off Offset
+   * @param len Length
+   * @return Id, or -1
+   */
+  public int get(byte[] b, int off, int len) {
+    final int h = StringHelper.murmurhash3_x86_32(b, off, len, 0);
+    return find(stripes[h >>> (32 - STRIPE_BITS)], h, b, off, len);
+  }
+
+  /**
+   * Find a key in a stripe.
+   *
+   * @param s Stripe
+   * @param h Hash code
+   * @param b Data
+   * @param off Offset
+   * @param len Length
+   * @return Id, or -1
+   */
+  private int find(Stripe s, int h, byte[] b, int off, int len) {
+    final IntBuffer mapped = s.mapped;
+    if(mapped != null) {
+      final int mask = mapped.capacity() - 1;
+      for(int pos = h & mask, cur; (cur = mapped.get(pos)) != 0; pos = (pos + 1) & mask)
+        if(equals(cur - 1, b, off, len))
+          return cur - 1;
+      return -1;
+    }
+    final AtomicIntegerArray table = s.table;
+    final int mask = table.length() - 1;
+    for(int pos = h & mask, cur; (cur = table.get(pos)) != 0; pos = (pos + 1) & mask)
+      if(equals(cur - 1, b, off, len))
+        return cur - 1;
+    return -1;
+  }
+
+  /**
+   * Get the key with the given id.
+   *
+   * @param id Id
+   * @return Key
+   */
+  public String key(int id) {
+    final long e = entry(id);
+    byte[] b = new byte[(int) e & (PAGE_SIZE - 1)];
+    ByteBuffer d = pages[(int) (e >>> 32)].duplicate();
+    d.position((int) e >>> PAGE_BITS);
+    d.get(b);
+    return new String(b, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return Number of keys
+   */
+  public int size() {
+    return size.get();
+  }
+
+  /**
+   * Get the entry of a key.
+   *
+   * @param id Key id
+   * @return Page, position and length
+   */
+  private long entry(int id) {
+    return entryBuf != null ? entryBuf.get(id) : chunks.get(id >>> CHUNK_BITS)[id & ((1 << CHUNK_BITS) - 1)];
+  }
+
+  /**
+   * Compare a key to a byte sequence.
+   *
+   * @param id Key id
+   * @param b Data
+   * @param off Offset
+   * @param len Length
+   * @return {@code true} if equal
+   */
+  private boolean equals(int id, byte[] b, int off, int len) {
+    final long e = entry(id);
+    if(((int) e & (PAGE_SIZE - 1)) != len)
+      return false;
+    final ByteBuffer page = pages[(int) (e >>> 32)];
+    for(int i = 0, s = (int) e >>> PAGE_BITS; i < len; i++)
+      if(page.get(s + i) != b[off + i])
+        return false;
+    return true;
+  }
+
+  /**
+   * Allocate a data page.
+   *
+   * @return Page number
+   */
+  private synchronized int newPage() {
+    if(numPages == pages.length)
+      pages = Arrays.copyOf(pages, numPages << 1);
+    pages[numPages] = ByteBuffer.wrap(new byte[PAGE_SIZE]);
+    return numPages++;
+  }
+
+  /**
+   * Double the hash table size of a stripe.
+   *
+   * @param s Stripe, locked
+   */
+  private void rehash(Stripe s) {
+    final AtomicIntegerArray old = s.table;
+    AtomicIntegerArray table = new AtomicIntegerArray(old.length() << 1);
+    final int mask = table.length() - 1;
+    for(int i = 0; i < old.length(); i++) {
+      final int cur = old.get(i);
+      if(cur == 0)
+        continue;
+      final long e = entry(cur - 1);
+      int pos = StringHelper.murmurhash3_x86_32(pages[(int) (e >>> 32)].array(), (int) e >>> PAGE_BITS, (int) e & (PAGE_SIZE - 1), 0) & mask;
+      while(table.get(pos) != 0)
+        pos = (pos + 1) & mask;
+      table.lazySet(pos, cur);
+    }
+    s.table = table;
+  }
+
+  /**
+   * Save the dictionary. Adding keys waits until the dictionary is written.
+   *
+   * @param fname File name
+   * @throws IOException on write errors
+   */
+  public void save(String fname) throws IOException {
+    save(fname, 0);
+  }
+
+  /**
+   * Save the dictionary, holding the locks of all stripes.
+   *
+   * @param fname File name
+   * @param locked Number of stripes locked
+   * @throws IOException on write errors
+   */
+  private void save(String fname, int locked) throws IOException {
+    if(locked < stripes.length) {
+      synchronized(stripes[locked]) {
+        save(fname, locked + 1);
+      }
+      return;
+    }
+    final int n = size.get(), np;
+    final ByteBuffer[] pages;
+    synchronized(this) {
+      np = numPages;
+      pages = this.pages;
+    }
+    System.err.format("Writing %d titles to %s.\n", n, fname);
+    // Bytes used per page:
+    int[] used = new int[np];
+    for(int id = 0; id < n; id++) {
+      final long e = entry(id);
+      final int p = (int) (e >>> 32), end = ((int) e >>> PAGE_BITS) + ((int) e & (PAGE_SIZE - 1));
+      used[p] = Math.max(used[p], end);
+    }
+    try (RandomAccessFile f = new RandomAccessFile(fname, "rw");
+        FileChannel ch = f.getChannel()) {
+      f.setLength(0);
+      ByteBuffer buf = ByteBuffer.allocate(1 << 20);
+      buf.putInt(MAGIC).putInt(n).putInt(np).putInt(stripes.length);
+      for(int p = 0; p < np; p++)
+        buf = put(ch, buf, 4).putInt(used[p]);
+      for(Stripe s : stripes)
+        buf = put(ch, buf, 4).putInt(s.table.length());
+      for(int id = 0; id < n; id++)
+        buf = put(ch, buf, 8).putLong(entry(id));
+      for(Stripe s : stripes) {
+        final AtomicIntegerArray table = s.table;
+        for(int i = 0, l = table.length(); i < l; i++)
+          buf = put(ch, buf, 4).putInt(table.get(i));
+      }
+      buf.flip();
+      while(buf.hasRemaining())
+        ch.write(buf);
+      for(int p = 0; p < np; p++) {
+        ByteBuffer d = pages[p].duplicate();
+        d.position(0).limit(used[p]);
+        while(d.hasRemaining())
+          ch.write(d);
+      }
+    }
+  }
+
+  /**
+   * Write the keys from an id on, such as those added since an earlier save,
+   * in the order of their ids. The dictionary must not be modified meanwhile.
+   *
+   * @param fname File name
+   * @param from First id to write
+   * @throws IOException on write errors
+   */
+  public void saveKeys(String fname, int from) throws IOException {
+    final int n = size.get();
+    try (RecordWriter out = RecordWriter.open(fname)) {
+      for(int id = from; id < n; id++) {
+        final long e = entry(id);
+        out.field(pages[(int) (e >>> 32)].array(), (int) e >>> PAGE_BITS, (int) e & (PAGE_SIZE - 1)).end();
+      }
+    }
+  }
+
+  /**
+   * Add the keys written by {@link #saveKeys}, after loading the dictionary
+   * they were written from. The keys then get the same ids again.
+   *
+   * @param fname File name
+   * @param from Id of the first key
+   * @throws IOException on read errors, or if the keys do not continue this
+   *         dictionary
+   */
+  public void addKeys(String fname, int from) throws IOException {
+    try (RecordReader in = RecordReader.open(fname)) {
+      for(int id = from; in.next(); id++)
+        if(add(in.data(), in.offset(0), in.length(0)) != id)
+          throw new IOException("Keys in " + fname + " do not continue the dictionary.");
+    }
+  }
+
+  /**
+   * Make room in the output buffer.
+   *
+   * @param ch Channel
+   * @param buf Buffer, may contain pending data
+   * @param n Number of bytes needed
+   * @return Buffer
+   * @throws IOException on write errors
+   */
+  private static ByteBuffer put(FileChannel ch, ByteBuffer buf, int n) throws IOException {
+    if(buf.remaining() < n) {
+      buf.flip();
+      while(buf.hasRemaining())
+        ch.write(buf);
+      buf.clear();
+    }
+    return buf;
+  }
+
+  /**
+   * Load a saved dictionary into memory, to continue adding to it.
+   *
+   * @param fname File name
+   * @return Dictionary
+   * @throws IOException on read errors
+   */
+  public static TitleDictionary load(String fname) throws IOException {
+    TitleDictionary mapped = open(fname);
+    final int n = mapped.size.get();
+    TitleDictionary d = new TitleDictionary(16);
+    for(int i = 0; i < d.stripes.length; i++) {
+      final IntBuffer t = mapped.stripes[i].mapped;
+      AtomicIntegerArray table = new AtomicIntegerArray(t.capacity());
+      int c = 0;
+      for(int j = 0; j < t.capacity(); j++) {
+        final int cur = t.get(j);
+        c += cur != 0 ? 1 : 0;
+        table.lazySet(j, cur);
+      }
+      d.stripes[i].table = table;
+      d.stripes[i].size = c;
+    }
+    for(int c = 0; c << CHUNK_BITS < n; c++) {
+      long[] chunk = new long[1 << CHUNK_BITS];
+      LongBuffer e = mapped.entryBuf.duplicate();
+      e.position(c << CHUNK_BITS).limit(Math.min(n, (c + 1) << CHUNK_BITS));
+      e.get(chunk, 0, e.remaining());
+      d.chunks.set(c, chunk);
+    }
+    d.pages = new ByteBuffer[Math.max(mapped.numPages, 64)];
+    for(int p = 0; p < mapped.numPages; p++) {
+      ByteBuffer src = mapped.pages[p].duplicate();
+      byte[] b = new byte[src.remaining()];
+      src.get(b);
+      d.pages[p] = ByteBuffer.wrap(b); // Full, new keys go to new pages.
+    }
+    d.numPages = mapped.numPages;
+    d.size.set(n);
+    return d;
+  }
+
+  /**
+   * Open a saved dictionary, read-only and memory-mapped.
+   *
+   * @param fname File name
+   * @return Dictionary
+   * @throws IOException on read errors
+   */
+  public static TitleDictionary open(String fname) throws IOException {
+    try (RandomAccessFile f = new RandomAccessFile(fname, "r");
+        FileChannel ch = f.getChannel()) {
+      ByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0, 16);
+      if(header.getInt() != MAGIC)
+        throw new IOException("Not a title dictionary, or of an older version: " + fname);
+      final int size = header.getInt(), np = header.getInt(), ns = header.getInt();
+      if(ns != 1 << STRIPE_BITS)
+        throw new IOException("Unsupported number of stripes in " + fname);
+      long pos = 16;
+      IntBuffer lengths = ch.map(FileChannel.MapMode.READ_ONLY, pos, (np + ns) * 4L).asIntBuffer();
+      pos += (np + ns) * 4L;
+      LongBuffer entries = ch.map(FileChannel.MapMode.READ_ONLY, pos, size * 8L).asLongBuffer();
+      pos += size * 8L;
+      IntBuffer[] tables = new IntBuffer[ns];
+      for(int i = 0; i < ns; i++) {
+        final int tlen = lengths.get(np + i);
+        tables[i] = ch.map(FileChannel.MapMode.READ_ONLY, pos, tlen * 4L).asIntBuffer();
+        pos += tlen * 4L;
+      }
+      // Map the pages in windows of up to 1 GB:
+      ByteBuffer[] pages = new ByteBuffer[np];
+      for(int p = 0; p < np;) {
+        int q = p;
+        long wlen = 0;
+        while(q < np && wlen + lengths.get(q) <= 1 << 30)
+          wlen += lengths.get(q++);
+        ByteBuffer window = ch.map(FileChannel.MapMode.READ_ONLY, pos, wlen);
+        for(int o = 0; p < q; o += lengths.get(p++)) {
+          ByteBuffer d = window.duplicate();
+          d.position(o).limit(o + lengths.get(p));
+          pages[p] = d.slice();
+        }
+        pos += wlen;
+      }
+      System.err.format("Opened %d titles from %s.\n", size, fname);
+      return new TitleDictionary(entries, pages, tables, size);
+    }
+  }
+}
@@ -1,21 +1,28 @@
 package com.github.kno10.wikipediaentities.util;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.Writer;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.compress.compressors.CompressorException;
 import org.apache.commons.compress.compressors.CompressorStreamFactory;
-import org.apache.commons.lang3.StringEscapeUtils;
-import org.apache.commons.lang3.text.translate.EntityArrays;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.text.StringEscapeUtils;
+import org.apache.commons.text.translate.EntityArrays;
+
+import com.github.luben.zstd.ZstdOutputStream;
 
 /**
  * Utility functions.
@@ -26,7 +33,8 @@ public class Util {
   /**
    * Open an output stream.
    *
-   * When the output file name is {@code null}, stdout will be used.
+   * When the output file name is {@code null}, stdout will be used. The
+   * compression is chosen by the file name suffix, see {@link #compress}.
    *
    * @param out Output file name
    * @return Output stream
@@ -35,11 +43,110 @@ public class Util {
   public static PrintStream openOutput(String out) throws IOException {
     if(out == null)
       return System.out;
-    if(out.endsWith(".gz"))
-      return new PrintStream(new GZIPOutputStream(//
-      new FileOutputStream(out)), false, "UTF-8");
-    return new PrintStream(//
-    new FileOutputStream(out), false, "UTF-8");
+    return new PrintStream(compress(//
+    new FileOutputStream(out), out), false, "UTF-8");
+  }
+
+  /** File name suffixes of the supported output codecs */
+  private static final String[] CODEC_SUFFIXES = { ".gz", ".zst", ".lz4", ".bz2" };
+
+  /**
+   * Get the codec suffix of a file name.
+   *
+   * @param fname File name
+   * @return Suffix, or the empty string for uncompressed files
+   */
+  public static String codecSuffix(String fname) {
+    for(String s : CODEC_SUFFIXES)
+      if(fname.endsWith(s))
+        return s;
+    return "";
+  }
+
+  /**
+   * Wrap an output stream with the compression chosen by the file name suffix:
+   * gzip (".gz"), zstd (".zst"), LZ4 frames (".lz4"), bzip2 (".bz2"), or none.
+   * All of these are read back by {@link #openInput}. Closing the returned
+   * stream finishes the compressed data, and closes the output stream.
+   *
+   * @param out Output stream
+   * @param fname File name
+   * @return Compressed stream
+   * @throws IOException on errors writing the header
+   */
+  public static OutputStream compress(OutputStream out, String fname) throws IOException {
+    switch(codecSuffix(fname)){
+    case ".gz":
+      return gzip(out);
+    case ".zst":
+      ZstdOutputStream z = new ZstdOutputStream(out, zstdLevel);
+      if(zstdThreads > 1)
+        z.setWorkers(zstdThreads);
+      return new BufferedOutputStream(z, 1 << 16);
+    case ".lz4":
+      return new LZ4FrameOutputStream(out);
+    case ".bz2":
+      return new BZip2CompressorOutputStream(out);
+    default:
+      return new BufferedOutputStream(out, 1 << 16);
+    }
+  }
+
+  /** Compression level for zstd */
+  protected static int zstdLevel = 3;
+
+  /** Number of threads for zstd compression */
+  protected static int zstdThreads = 1;
+
+  /**
+   * Configure zstd compression.
+   *
+   * @param level Compression level
+   * @param threads Number of threads; 1 compresses in the calling thread.
+   */
+  public static void setZstd(int level, int threads) {
+    zstdLevel = level;
+    zstdThreads = threads;
+  }
+
+  /** Number of threads for gzip compression */
+  protected static int gzipThreads = 1;
+
+  /** Gzip compression level */
+  protected static int gzipLevel = Deflater.DEFAULT_COMPRESSION;
+
+  /** Block size for parallel gzip compression */
+  protected static int gzipBlockSize = 128 << 10;
+
+  /**
+   * Configure gzip compression.
+   *
+   * @param threads Number of threads; 1 uses the single-threaded compressor.
+   * @param level Compression level, -1 for the default
+   * @param blockSize Block size for parallel compression
+   */
+  public static void setGZip(int threads, int level, int blockSize) {
+    gzipThreads = threads;
+    gzipLevel = level;
+    gzipBlockSize = blockSize;
+  }
+
+  /**
+   * Wrap an output stream with gzip compression. Closing the compressed stream
+   * finishes the gzip data, and closes the output stream.
+   *
+   * @param out Output stream
+   * @return Compressed stream
+   * @throws IOException on errors writing the header
+   */
+  public static OutputStream gzip(OutputStream out) throws IOException {
+    if(gzipThreads > 1)
+      return new ParallelGZIPOutputStream(out, gzipThreads, gzipLevel, gzipBlockSize);
+    return new GZIPOutputStream(out, 1 << 16) {
+      {
+        def.setLevel(gzipLevel);
+      }
+    };
   }
 
   protected static PrefixTreeMatcher MATCHER, SMATCHER;
@@ -47,12 +154,12 @@ public class Util {
   // Build the prefix tree
   static {
     MATCHER = PrefixTreeMatcher.makeNumericalEntityMatcher();
-    for(String[] p : EntityArrays.BASIC_UNESCAPE())
-      MATCHER.add(p[0], p[1]);
-    for(String[] p : EntityArrays.ISO8859_1_UNESCAPE())
-      MATCHER.add(p[0], p[1]);
-    for(String[] p : EntityArrays.HTML40_EXTENDED_UNESCAPE())
-      MATCHER.add(p[0], p[1]);
+    for(Map.Entry<CharSequence, CharSequence> p : EntityArrays.BASIC_UNESCAPE.entrySet())
+      MATCHER.add(p.getKey(), p.getValue());
+    for(Map.Entry<CharSequence, CharSequence> p : EntityArrays.ISO8859_1_UNESCAPE.entrySet())
+      MATCHER.add(p.getKey(), p.getValue());
+    for(Map.Entry<CharSequence, CharSequence> p : EntityArrays.HTML40_EXTENDED_UNESCAPE.entrySet())
+      MATCHER.add(p.getKey(), p.getValue());
 
     SMATCHER = new PrefixTreeMatcher();
     SMATCHER.add("–", "-");
@@ -117,6 +224,18 @@ public class Util {
     }
   }
 
+  /** Number of threads for bzip2 decompression */
+  protected static int bzip2Threads = 1;
+
+  /**
+   * Set the number of threads to use for decompressing bzip2 files.
+   *
+   * @param threads Number of threads; 1 uses the single-threaded decoder.
+   */
+  public static void setBZip2Threads(int threads) {
+    bzip2Threads = threads;
+  }
+
   /**
    * Open a file, choosing a decompressor if necessary.
    *
@@ -126,11 +245,15 @@ public class Util {
    */
   public static InputStream openInput(String fname) throws FileNotFoundException {
     InputStream fin = new FileInputStream(fname);
+    if(bzip2Threads > 1 && fname.endsWith(".bz2"))
+      return new ParallelBZip2InputStream(fin, bzip2Threads);
+    // Detection reads ahead, so use the buffered stream in either case.
+    InputStream in = new BufferedInputStream(fin);
     try {
-      return new CompressorStreamFactory(true).createCompressorInputStream(new BufferedInputStream(fin));
+      return new CompressorStreamFactory(true).createCompressorInputStream(in);
     }
     catch(CompressorException e) {
-      return fin;
+      return in;
     }
   }
 
@@ -0,0 +1,104 @@
+package com.github.kno10.wikipediaentities;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.github.kno10.wikipediaentities.util.TitleDictionary;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+
+/**
+ * Test the transitive closure of redirects.
+ */
+public class AnalyzeLinksTest {
+  /** Titles */
+  TitleDictionary titles = new TitleDictionary(16);
+
+  /** Entities */
+  List<String> entities = Arrays.asList("Q0", "Q1", "Q2", "Q3");
+
+  /** Entity of each title */
+  int[] datamap = new int[20];
+
+  /** Redirects */
+  Int2IntOpenHashMap redmap = new Int2IntOpenHashMap();
+
+  /**
+   * Add a redirect.
+   *
+   * @param src Source title
+   * @param dst Target title
+   */
+  void redirect(String src, String dst) {
+    redmap.put(titles.add(src), titles.add(dst));
+  }
+
+  /**
+   * Set the entity of a title.
+   *
+   * @param title Title
+   * @param entity Entity
+   */
+  void entity(String title, int entity) {
+    datamap[titles.add(title)] = entity;
+  }
+
+  /**
+   * Get the resolved entity of a title.
+   *
+   * @param title Title
+   * @return Entity, -1 for none
+   */
+  int resolved(String title) {
+    return datamap[titles.get(title)];
+  }
+
+  @Test
+  public void testRedirectClosure() throws InterruptedException {
+    Arrays.fill(datamap, -1);
+    // Chain: A > B > C (Q0)
+    redirect("A", "B");
+    redirect("B", "C");
+    entity("C", 0);
+    // A redirect with its own entry passes it on along its chain, which
+    // overwrites the entries of its targets: R (Q1) > S > T (Q2), U > S
+    redirect("R", "S");
+    redirect("S", "T");
+    redirect("U", "S");
+    entity("R", 1);
+    entity("T", 2);
+    // Cycle with a tail: X > Y > Z > Y, and the same with an entry on the tail:
+    // P (Q3) > Y2 > Z2 > Y2
+    redirect("X", "Y");
+    redirect("Y", "Z");
+    redirect("Z", "Y");
+    redirect("P", "Y2");
+    redirect("Y2", "Z2");
+    redirect("Z2", "Y2");
+    entity("P", 3);
+    // Self-loop, and a redirect to it:
+    redirect("L", "L");
+    redirect("M", "L");
+    new AnalyzeLinks().computeClosure(titles, entities, datamap, redmap, 2);
+
+    assertEquals(0, resolved("A"));
+    assertEquals(0, resolved("B"));
+    assertEquals(0, resolved("C"));
+    assertEquals(1, resolved("R"));
+    assertEquals(1, resolved("S"));
+    assertEquals(1, resolved("T"));
+    assertEquals(1, resolved("U"));
+    assertEquals(-1, resolved("X"));
+    assertEquals(-1, resolved("Y"));
+    assertEquals(-1, resolved("Z"));
+    assertEquals(3, resolved("P"));
+    assertEquals(3, resolved("Y2"));
+    assertEquals(3, resolved("Z2"));
+    assertEquals(-1, resolved("L"));
+    assertEquals(-1, resolved("M"));
+  }
+}
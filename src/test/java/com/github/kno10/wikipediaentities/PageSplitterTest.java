@@ -0,0 +1,75 @@
+package com.github.kno10.wikipediaentities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Test the entity handling and revision ids of the byte-level page splitter.
+ */
+public class PageSplitterTest {
+  /**
+   * Split a single page with the given (escaped) text.
+   *
+   * @param text Text, as in the XML
+   * @return Decoded text
+   * @throws IOException never
+   */
+  static String text(String text) throws IOException {
+    String xml = "<mediawiki>\n  <page>\n    <title>T &amp; U</title>\n    <ns>0</ns>\n" //
+        + "    <revision>\n      <id>5</id>\n      <text xml:space=\"preserve\">" + text + "</text>\n" //
+        + "    </revision>\n  </page>\n</mediawiki>\n";
+    PageSplitter s = new PageSplitter(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), "");
+    Article a = s.next();
+    assertEquals("T & U", a.title);
+    assertNull(s.next());
+    return a.rawtext;
+  }
+
+  @Test
+  public void testNamedEntities() throws IOException {
+    assertEquals("<a> & \"b\" 'c'", text("&lt;a&gt; &amp; &quot;b&quot; &apos;c&apos;"));
+    assertEquals("&lt;", text("&amp;lt;"));
+    assertEquals("&nbsp; &unknown;", text("&nbsp; &unknown;"));
+  }
+
+  @Test
+  public void testNumericReferences() throws IOException {
+    assertEquals("AA\u00e9\u20ac", text("&#65;&#x41;&#xE9;&#8364;"));
+    assertEquals("\ud83d\ude00\ud83d\ude00", text("&#x1F600;&#128512;"));
+    assertEquals("a\tb\nc", text("a&#9;b&#xA;c"));
+    assertEquals("\udbff\udfff", text("&#x10FFFF;"));
+  }
+
+  @Test
+  public void testMalformedReferences() throws IOException {
+    // Overflows of a 32 bit accumulator, and beyond the Unicode range:
+    assertEquals("&#x100000041;", text("&#x100000041;"));
+    assertEquals("&#4294967361;", text("&#4294967361;"));
+    assertEquals("&#x110000;", text("&#x110000;"));
+    // No digits:
+    assertEquals("&#x; &#;", text("&#x; &#;"));
+    // Surrogates, and other characters not allowed in XML:
+    assertEquals("&#xD800;&#57343;", text("&#xD800;&#57343;"));
+    assertEquals("&#0;&#x1;&#xFFFE;", text("&#0;&#x1;&#xFFFE;"));
+    // Not a number:
+    assertEquals("&#x4G;&#1a;", text("&#x4G;&#1a;"));
+  }
+
+  @Test
+  public void testRevisionId() throws IOException {
+    // The page and the contributor have ids, too:
+    String xml = "<mediawiki>\n  <page>\n    <title>T</title>\n    <ns>0</ns>\n    <id>7</id>\n" //
+        + "    <revision>\n      <id>1111</id>\n      <parentid>1000</parentid>\n" //
+        + "      <contributor>\n        <username>U</username>\n        <id>42</id>\n      </contributor>\n" //
+        + "      <text xml:space=\"preserve\">x</text>\n    </revision>\n  </page>\n</mediawiki>\n";
+    PageSplitter s = new PageSplitter(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), "");
+    assertEquals(1111, s.next().revision);
+    assertNull(s.next());
+  }
+}
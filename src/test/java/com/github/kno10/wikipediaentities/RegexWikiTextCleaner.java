@@ -0,0 +1,91 @@
+package com.github.kno10.wikipediaentities;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.github.kno10.wikipediaentities.util.Util;
+
+/**
+ * Regular expression based wiki text cleaning, as previously used by the
+ * indexer. Kept as the reference for testing {@link WikiTextLexer}.
+ */
+public class RegexWikiTextCleaner {
+  /** Patterns to strip from the wiki text */
+  private Matcher stripBasics = Pattern.compile("(<!--.*?-->|<math>(.*?)</math>|</?su[bp]>|^\\s*__\\w+__\\s*$)", Pattern.CASE_INSENSITIVE | Pattern.MULTILINE).matcher("");
+
+  /** Pattern to strip all templates, as we cannot reasonably parse them */
+  private Matcher stripTemplates = Pattern.compile("\\{\\{([^}{]*?)\\}\\}").matcher("");
+
+  /** Match links, which are not nested. */
+  // too much backtracking: private Matcher linkMatcher =
+  // Pattern.compile("\\[\\[\\s*([^\\]\\[\\|]*?)(?:\\s*#.*?)?(?:(?:\\s*\\|\\s*[^\\]\\[\\#\\|]*)*\\s*\\|([^\\]\\[\\#\\|]+))?\\s*\\]\\]").matcher("");
+  private Matcher linkMatcher = Pattern.compile("\\[\\[\\s*([^\\]\\[\\|]*?)(?:\\s*#.*?)?(?:\\s*\\|(?:[^\\]\\[\\#\\|]*\\|)?\\s*([^\\]\\[\\#\\|]+))?\\s*\\]\\]").matcher("");
+
+  /** More cruft to remove */
+  private Matcher stripCruft = Pattern.compile("(?:<ref(?:[^<]*</ref|\\s+name\\s*=\\s*[^<]*|[^<]*/>)>|\\{\\|(.*?)\\|\\}|^ *\\*+|\\[\\[(?:([^\\]\\[]*)\\s*\\|\\s*)?([^\\]\\[]*)\\]\\])", Pattern.CASE_INSENSITIVE).matcher("");
+
+  /** Output buffer */
+  private StringBuilder buf = new StringBuilder();
+
+  /**
+   * Clean the wiki text, and collect the links.
+   *
+   * @param intext Wiki text
+   * @param links Output list of link targets and labels, alternating
+   * @return Cleaned text
+   */
+  public String process(String intext, List<String> links) {
+    CharSequence text = intext;
+    stripBasics.reset(text);
+    text = stripBasics.replaceAll("");
+    for(int i = 0; i < 4; i++) {
+      stripTemplates.reset(text);
+      String text2 = stripTemplates.replaceAll("");
+      if(text2.equals(text))
+        break; // No more changes
+      text = text2;
+    }
+    { // Parse, and replace links with their text only:
+      buf.setLength(0); // clear
+      int pos = 0;
+      linkMatcher.reset(text);
+      while(linkMatcher.find()) {
+        buf.append(text, pos, linkMatcher.start());
+        String targ = linkMatcher.group(1);
+        if(targ == null || targ.length() == 0) {
+          buf.append(linkMatcher.group(2));
+          pos = linkMatcher.end();
+          continue; // Internal link.
+        }
+        targ = Util.normalizeLink(targ);
+        if(targ == null || targ.length() == 0) {
+          System.err.println(linkMatcher.group(0));
+          continue;
+        }
+        final String[] spl = targ.split(":");
+        String targl = spl.length > 0 ? spl[0].trim() : targ;
+        if(targ.charAt(0) == ':' || "file".equalsIgnoreCase(targl) || "wikisource".equalsIgnoreCase(targl) //
+        || "category".equalsIgnoreCase(targl) || "kategorie".equalsIgnoreCase(targl) //
+        || "catégorie".equalsIgnoreCase(targl) || "categoría".equalsIgnoreCase(targl) //
+        || "wikipedia".equalsIgnoreCase(targl) || "commons".equalsIgnoreCase(targl) || "image".equalsIgnoreCase(targl)//
+        || "fichier".equalsIgnoreCase(targl) || "datei".equalsIgnoreCase(targl) || "bild".equalsIgnoreCase(targl) //
+        || "archivo".equalsIgnoreCase(targl) || "imagen".equalsIgnoreCase(targl))
+          continue;
+        String labl = linkMatcher.group(2);
+        if(labl == null)
+          labl = targ;
+        labl = labl.replace('\n', ' ').trim();
+        links.add(targ);
+        links.add(labl);
+
+        buf.append(labl);
+        pos = linkMatcher.end();
+      }
+      buf.append(text, pos, text.length());
+      text = buf;
+    }
+    stripCruft.reset(text);
+    return stripCruft.replaceAll(""); // Converts to string!
+  }
+}
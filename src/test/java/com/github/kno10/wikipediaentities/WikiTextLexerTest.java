@@ -0,0 +1,178 @@
+package com.github.kno10.wikipediaentities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.LowerCaseFilter;
+import org.apache.lucene.analysis.standard.ClassicFilter;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.wikipedia.WikipediaTokenizer;
+import org.junit.Test;
+
+import com.github.kno10.wikipediaentities.util.FastStringReader;
+
+/**
+ * Test the wiki text lexer against the regular expressions it replaced, and
+ * the bugs of these that it fixes.
+ */
+public class WikiTextLexerTest {
+  /**
+   * Load the regression corpus.
+   *
+   * @return Titles and texts, alternating
+   * @throws IOException on errors
+   */
+  static List<String> corpus() throws IOException {
+    List<String> articles = new ArrayList<>();
+    try (InputStream in = WikiTextLexerTest.class.getResourceAsStream("wikitext.txt");
+        BufferedReader r = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+      StringBuilder buf = null;
+      for(String line; (line = r.readLine()) != null;) {
+        if(line.startsWith("%% ")) {
+          if(buf != null)
+            articles.add(buf.toString());
+          articles.add(line.substring(3));
+          buf = new StringBuilder();
+        }
+        else if(buf != null)
+          buf.append(line).append('\n');
+      }
+      if(buf != null)
+        articles.add(buf.toString());
+    }
+    return articles;
+  }
+
+  /**
+   * Tokenize as in the indexer.
+   *
+   * @param text Cleaned text
+   * @return Tokens
+   * @throws IOException never
+   */
+  static List<String> tokens(String text) throws IOException {
+    Set<String> skip = new HashSet<>();
+    skip.add(WikipediaTokenizer.EXTERNAL_LINK_URL);
+    WikipediaTokenizer tokenizer = new WikipediaTokenizer(WikipediaTokenizer.TOKENS_ONLY, skip);
+    List<String> tokens = new ArrayList<>();
+    try (TokenStream stream = new LowerCaseFilter(new ClassicFilter(tokenizer))) {
+      CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+      tokenizer.setReader(new FastStringReader(text));
+      stream.reset();
+      while(stream.incrementToken())
+        tokens.add(term.toString());
+      stream.end();
+    }
+    return tokens;
+  }
+
+  /**
+   * Articles of the corpus affected by the bugs of the regular expressions
+   * that the lexer fixes, see {@link #testFixedBugs}.
+   */
+  static final Set<String> FIXED = new HashSet<>(Arrays.asList(//
+      "Paris", "Alan Turing", // Skipped links repeat the text before
+      "Table article", // Table markup
+      "Photosynthesis", "Inline markup")); // "null" section links
+
+  /**
+   * Test for a subsequence.
+   *
+   * @param sub Subsequence
+   * @param seq Sequence
+   * @return {@code true} if all elements of {@code sub} occur in {@code seq},
+   *         in the same order
+   */
+  static boolean isSubsequence(List<String> sub, List<String> seq) {
+    int i = 0;
+    for(int j = 0; i < sub.size() && j < seq.size(); j++)
+      if(sub.get(i).equals(seq.get(j)))
+        ++i;
+    return i == sub.size();
+  }
+
+  @Test
+  public void testCorpus() throws IOException {
+    List<String> corpus = corpus();
+    assertTrue(corpus.size() >= 20);
+    WikiTextLexer lexer = new WikiTextLexer();
+    RegexWikiTextCleaner regex = new RegexWikiTextCleaner();
+    for(int i = 0; i < corpus.size(); i += 2) {
+      String title = corpus.get(i), text = corpus.get(i + 1);
+      List<String> l1 = new ArrayList<>(), l2 = new ArrayList<>();
+      String c1 = regex.process(text, l1), c2 = lexer.process(text, l2);
+      assertEquals("Links of " + title, l1, l2);
+      List<String> t1 = tokens(c1), t2 = tokens(c2);
+      if(!FIXED.contains(title)) {
+        assertEquals("Tokens of " + title, t1, t2);
+        continue;
+      }
+      // The fixes only remove text:
+      assertTrue("Tokens of " + title, t2.size() < t1.size() && isSubsequence(t2, t1));
+    }
+  }
+
+  @Test
+  public void testFixedBugs() {
+    RegexWikiTextCleaner regex = new RegexWikiTextCleaner();
+    WikiTextLexer lexer = new WikiTextLexer();
+    List<String> links = new ArrayList<>();
+    // Skipped links repeated the text since the previous link:
+    String text = "[[A]] b [[Category:X]] c [[File:Y.png|thumb]] [[D]] e.";
+    assertEquals("A b  b  c  b  c  D e.", regex.process(text, links));
+    assertEquals("A b  c  D e.", lexer.process(text, links));
+    assertEquals(Arrays.asList("A", "A", "D", "D", "A", "A", "D", "D"), links);
+    // Table markup was kept:
+    links.clear();
+    text = "{| class=\"wikitable\"\n|-\n| x || [[Y]]\n|}\n z";
+    assertEquals("{| class=\"wikitable\"\n|-\n| x || Y\n|}\n z", regex.process(text, links));
+    assertEquals("\n\n x   Y\n\n z", lexer.process(text, links));
+    assertEquals(Arrays.asList("Y", "Y", "Y", "Y"), links);
+    // Bullets were only removed on the first line:
+    text = "* a\n** b\n * c";
+    assertEquals(" a\n** b\n * c", regex.process(text, links));
+    assertEquals(" a\n b\n c", lexer.process(text, links));
+    // Section links without label were "null":
+    text = "a [[#Section]] b";
+    assertEquals("a null b", regex.process(text, links));
+    assertEquals("a  b", lexer.process(text, links));
+    assertEquals(4, links.size());
+  }
+
+  @Test(timeout = 10000)
+  public void testUnclosedTemplates() {
+    WikiTextLexer lexer = new WikiTextLexer();
+    List<String> links = new ArrayList<>();
+    assertEquals("{{a  b {{c  d", lexer.process("{{a {{x|[[Y]]}} b {{c {{<!-- }} -->}} d", links));
+    assertEquals(0, links.size());
+    // Must not rescan the remainder of the text for every unclosed template:
+    StringBuilder buf = new StringBuilder();
+    for(int i = 0; i < 100000; i++)
+      buf.append("{{a [[B]] ");
+    String text = buf.append("}}").toString();
+    assertEquals(text.length() - 12 - 99999 * 4, lexer.process(text, links).length());
+    assertEquals(99999 * 2, links.size());
+  }
+
+  @Test
+  public void testDeepStructures() {
+    WikiTextLexer lexer = new WikiTextLexer();
+    List<String> links = new ArrayList<>();
+    // The regular expressions stopped at four levels, and one line:
+    assertEquals("a  b", lexer.process("a {{1|{{2|{{3|{{4|{{5|[[C]]}}}}}}}}}} b", links));
+    assertEquals("a  b", lexer.process("a <!-- multi-line\n[[C]] --> b", links));
+    assertEquals(Arrays.asList(), links);
+  }
+}
@@ -0,0 +1,131 @@
+package com.github.kno10.wikipediaentities.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+/**
+ * Test the pointer jumping against sequential chain following.
+ */
+public class ChainResolverTest {
+  /**
+   * Follow the chains sequentially.
+   *
+   * @param next Successors
+   * @param values Values
+   * @return Resolved values
+   */
+  static int[] sequential(int[] next, int[] values) {
+    final int n = values.length;
+    int[] expect = new int[n];
+    for(int i = 0; i < n; i++) {
+      int v = i, steps = 0;
+      while(values[v] < 0 && next[v] >= 0 && ++steps <= n)
+        v = next[v];
+      expect[i] = values[v] >= 0 && steps <= n ? values[v] : -1;
+    }
+    return expect;
+  }
+
+  /**
+   * Resolve all nodes with a successor.
+   *
+   * @param next Successors
+   * @param values Values
+   * @param threads Number of threads
+   * @return Resolver
+   * @throws InterruptedException never
+   */
+  static ChainResolver resolve(int[] next, int[] values, int threads) throws InterruptedException {
+    IntArrayList nodes = new IntArrayList();
+    for(int i = 0; i < next.length; i++)
+      if(next[i] >= 0)
+        nodes.add(i);
+    ChainResolver res = new ChainResolver(next, values, nodes.toIntArray());
+    res.run(threads);
+    return res;
+  }
+
+  /**
+   * Resolved values of all nodes.
+   *
+   * @param res Resolver
+   * @param n Number of nodes
+   * @return Values
+   */
+  static int[] values(ChainResolver res, int n) {
+    int[] v = new int[n];
+    for(int i = 0; i < n; i++)
+      v[i] = res.value(i);
+    return v;
+  }
+
+  @Test
+  public void testChains() throws InterruptedException {
+    // 0 > 1 > 2 > 3 (7), 4 > 5 (no value, no successor), 6 > 3
+    int[] next = { 1, 2, 3, -1, 5, -1, 3 };
+    int[] values = { -1, -1, -1, 7, -1, -1, -1 };
+    ChainResolver res = resolve(next, values, 2);
+    assertArrayEquals(new int[] { 7, 7, 7, 7, -1, -1, 7 }, values(res, 7));
+    assertTrue(res.unresolved().isEmpty());
+  }
+
+  @Test
+  public void testOwnValue() throws InterruptedException {
+    // A node with a value of its own keeps it, and passes it on backwards:
+    // 0 > 1 (5) > 2 (9), 3 > 0
+    int[] next = { 1, 2, -1, 0 };
+    int[] values = { -1, 5, 9, -1 };
+    ChainResolver res = resolve(next, values, 1);
+    assertArrayEquals(new int[] { 5, 5, 9, 5 }, values(res, 4));
+  }
+
+  @Test
+  public void testCycleWithTail() throws InterruptedException {
+    // 0 > 1 > 2 > 3 > 1, and 4 > 5 > 6 > 5 with a value on the cycle
+    int[] next = { 1, 2, 3, 1, 5, 6, 5 };
+    int[] values = { -1, -1, -1, -1, -1, -1, 3 };
+    ChainResolver res = resolve(next, values, 2);
+    assertArrayEquals(new int[] { -1, -1, -1, -1, 3, 3, 3 }, values(res, 7));
+    assertEquals(Arrays.asList(0, 1, 2, 3), res.unresolved());
+  }
+
+  @Test
+  public void testSelfLoop() throws InterruptedException {
+    // 0 > 0, 1 > 0, and 2 (4) > 2
+    int[] next = { 0, 0, 2 };
+    int[] values = { -1, -1, 4 };
+    ChainResolver res = resolve(next, values, 1);
+    assertArrayEquals(new int[] { -1, -1, 4 }, values(res, 3));
+    assertEquals(Arrays.asList(0, 1), res.unresolved());
+  }
+
+  @Test
+  public void testRandom() throws InterruptedException {
+    final int n = 200000;
+    Random r = new Random(0L);
+    int[] next = new int[n], values = new int[n];
+    Arrays.fill(next, -1);
+    Arrays.fill(values, -1);
+    for(int i = 0; i < n; i++) {
+      if(r.nextInt(3) == 0) {
+        values[i] = r.nextInt(1000);
+        continue;
+      }
+      // Mostly short chains, some long ones, and a few cycles.
+      next[i] = r.nextInt(100) == 0 ? Math.max(i - 1 - r.nextInt(3), 0) : r.nextInt(n);
+    }
+    ChainResolver res = resolve(next, values, 4);
+    assertArrayEquals(sequential(next, values), values(res, n));
+    assertTrue(res.rounds() <= 33 - Integer.numberOfLeadingZeros(n));
+    for(int v : res.unresolved())
+      assertEquals(-1, res.value(v));
+  }
+}
@@ -0,0 +1,173 @@
+package com.github.kno10.wikipediaentities.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test the external sorter with small buffers, against sorting in memory.
+ */
+public class ExternalSorterTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /** Order of the UTF-8 bytes */
+  static final Comparator<String> BYTE_ORDER = new Comparator<String>() {
+    @Override
+    public int compare(String a, String b) {
+      byte[] ab = a.getBytes(StandardCharsets.UTF_8), bb = b.getBytes(StandardCharsets.UTF_8);
+      for(int i = 0, l = Math.min(ab.length, bb.length); i < l; i++) {
+        final int c = (ab[i] & 0xFF) - (bb[i] & 0xFF);
+        if(c != 0)
+          return c;
+      }
+      return ab.length - bb.length;
+    }
+  };
+
+  /**
+   * Generate random records, with non-ASCII keys and keys that are prefixes of
+   * others.
+   *
+   * @param r Random generator
+   * @param n Number of records
+   * @return Records
+   */
+  static List<String> records(Random r, int n) {
+    final String[] suffixes = { "", "\u00e4", " b" };
+    List<String> records = new ArrayList<>(n);
+    for(int i = 0; i < n; i++)
+      records.add(Integer.toString(r.nextInt(n), 36) + suffixes[r.nextInt(3)] + '\t' + r.nextInt(100));
+    return records;
+  }
+
+  /**
+   * Expected output: the first record of each key, in byte order.
+   *
+   * @param records Records
+   * @return Sorted records
+   */
+  static List<String> unique(List<String> records) {
+    TreeMap<String, String> first = new TreeMap<>(BYTE_ORDER);
+    for(String rec : records) {
+      final int p = rec.indexOf('\t');
+      final String key = rec.substring(0, p), value = rec.substring(p + 1);
+      String prev = first.get(key);
+      if(prev == null || BYTE_ORDER.compare(value, prev) < 0)
+        first.put(key, value);
+    }
+    List<String> out = new ArrayList<>(first.size());
+    for(Map.Entry<String, String> e : first.entrySet())
+      out.add(e.getKey() + '\t' + e.getValue());
+    return out;
+  }
+
+  /**
+   * Add records round robin to several buffers, and spill them.
+   *
+   * @param sorter Sorter
+   * @param records Records
+   * @throws IOException on errors
+   */
+  static void add(ExternalSorter sorter, List<String> records) throws IOException {
+    ExternalSorter.Buffer[] buffers = { sorter.newBuffer(), sorter.newBuffer(), sorter.newBuffer() };
+    for(int i = 0; i < records.size(); i++)
+      buffers[i % 3].add(records.get(i));
+    for(ExternalSorter.Buffer b : buffers)
+      b.spill();
+  }
+
+  /**
+   * Read the lines of a file.
+   *
+   * @param fname File name
+   * @return Lines
+   * @throws IOException on errors
+   */
+  static List<String> read(String fname) throws IOException {
+    List<String> lines = new ArrayList<>();
+    try (BufferedReader in = new BufferedReader(new InputStreamReader(Util.openInput(fname), StandardCharsets.UTF_8))) {
+      for(String line; (line = in.readLine()) != null;)
+        lines.add(line);
+    }
+    return lines;
+  }
+
+  @Test
+  public void testUnique() throws IOException {
+    // About 100 spilled runs, which are merged in between.
+    List<String> records = records(new Random(0L), 500000);
+    List<String> expect = unique(records);
+    String out = new File(folder.getRoot(), "sorted.gz").getPath();
+    try (ExternalSorter sorter = new ExternalSorter(folder.getRoot(), "sort", '\t', 1 << 16)) {
+      add(sorter, records);
+      assertEquals(expect.size(), sorter.merge(out));
+    }
+    assertEquals(expect, read(out));
+    assertEquals(1, folder.getRoot().list().length); // Runs removed
+  }
+
+  @Test
+  public void testKeepAll() throws IOException {
+    List<String> records = records(new Random(1L), 100000);
+    String out = new File(folder.getRoot(), "sorted.gz").getPath();
+    try (ExternalSorter sorter = new ExternalSorter(folder.getRoot(), "sort", '\t', 1 << 16, false)) {
+      add(sorter, records);
+      assertEquals(records.size(), sorter.merge(out));
+    }
+    Collections.sort(records, BYTE_ORDER);
+    assertEquals(records, read(out));
+  }
+
+  @Test
+  public void testCheckpoint() throws IOException {
+    Random r = new Random(2L);
+    List<String> b1 = records(r, 50000), b2 = records(r, 50000), b3 = records(r, 50000);
+    List<String> all = new ArrayList<>(b1);
+    all.addAll(b2);
+    all.addAll(b3);
+    List<String> expect = unique(all);
+    File dir = folder.getRoot();
+    String c1 = new File(dir, "c1.gz").getPath(), c2 = new File(dir, "c2.gz").getPath(), c3 = new File(dir, "c3.gz").getPath();
+    try (ExternalSorter sorter = new ExternalSorter(dir, "sort", '\t', 1 << 16)) {
+      add(sorter, b1);
+      sorter.checkpoint(c1, false);
+      assertEquals(unique(b1), read(c1));
+      byte[] saved = Files.readAllBytes(new File(c1).toPath());
+      add(sorter, b2);
+      sorter.checkpoint(c2, false);
+      assertEquals(unique(b2), read(c2));
+      add(sorter, b3);
+      sorter.checkpoint(c3, true);
+      assertEquals(expect, read(c3));
+      // Earlier checkpoints are not modified:
+      assertArrayEquals(saved, Files.readAllBytes(new File(c1).toPath()));
+    }
+    // Resume from the first two checkpoints:
+    String out = new File(dir, "sorted.gz").getPath();
+    try (ExternalSorter sorter = new ExternalSorter(dir, "sort", '\t', 1 << 16)) {
+      sorter.addRun(c1);
+      sorter.addRun(c2);
+      add(sorter, b3);
+      sorter.merge(out);
+    }
+    assertEquals(expect, read(out));
+  }
+}
@@ -0,0 +1,110 @@
+package com.github.kno10.wikipediaentities.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.junit.Test;
+
+/**
+ * Test the parallel bzip2 decoder against the input data.
+ */
+public class ParallelBZip2InputStreamTest {
+  /**
+   * Generate compressible text, so blocks are not trivially short.
+   *
+   * @param len Length
+   * @param seed Random seed
+   * @return Data
+   */
+  static byte[] text(int len, long seed) {
+    final String[] words = { "wiki", "pedia", "entity", "link", "[[", "]]", "{{", "}}", " ", "\n", "title", "\u00e9", "\u65e5\u672c" };
+    Random r = new Random(seed);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(len + 16);
+    while(out.size() < len) {
+      byte[] w = (r.nextInt(4) == 0 ? Integer.toString(r.nextInt()) : words[r.nextInt(words.length)]).getBytes(StandardCharsets.UTF_8);
+      out.write(w, 0, w.length);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Compress with the smallest block size, to get many blocks.
+   *
+   * @param data Data
+   * @return bzip2 stream
+   * @throws IOException never
+   */
+  static byte[] bzip2(byte[] data) throws IOException {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    try (BZip2CompressorOutputStream out = new BZip2CompressorOutputStream(buf, 1)) {
+      out.write(data);
+    }
+    return buf.toByteArray();
+  }
+
+  /**
+   * Decompress everything.
+   *
+   * @param in Input
+   * @return Data
+   * @throws IOException on errors
+   */
+  static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[1000]; // Not aligned with the blocks
+    for(int n; (n = in.read(buf)) > 0;)
+      out.write(buf, 0, n);
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testManyBlocks() throws IOException {
+    byte[] data = text(1500000, 1L);
+    for(int threads : new int[] { 1, 3 }) {
+      try (InputStream in = new ParallelBZip2InputStream(new ByteArrayInputStream(bzip2(data)), threads)) {
+        assertArrayEquals("threads: " + threads, data, readAll(in));
+      }
+    }
+  }
+
+  @Test
+  public void testConcatenatedStreams() throws IOException {
+    byte[] a = text(300000, 2L), b = text(1000, 3L), c = text(250000, 4L);
+    ByteArrayOutputStream both = new ByteArrayOutputStream();
+    both.write(bzip2(a));
+    both.write(bzip2(b));
+    both.write(bzip2(c));
+    ByteArrayOutputStream expect = new ByteArrayOutputStream();
+    expect.write(a);
+    expect.write(b);
+    expect.write(c);
+    try (InputStream in = new ParallelBZip2InputStream(new ByteArrayInputStream(both.toByteArray()), 2)) {
+      assertArrayEquals(expect.toByteArray(), readAll(in));
+    }
+  }
+
+  @Test
+  public void testSingleBytes() throws IOException {
+    byte[] data = text(200000, 5L);
+    try (InputStream in = new ParallelBZip2InputStream(new ByteArrayInputStream(bzip2(data)), 2)) {
+      for(int i = 0; i < data.length; i++)
+        assertEquals("position " + i, data[i] & 0xFF, in.read());
+      assertEquals(-1, in.read());
+    }
+  }
+
+  @Test
+  public void testEmpty() throws IOException {
+    try (InputStream in = new ParallelBZip2InputStream(new ByteArrayInputStream(bzip2(new byte[0])), 2)) {
+      assertEquals(-1, in.read());
+    }
+  }
+}
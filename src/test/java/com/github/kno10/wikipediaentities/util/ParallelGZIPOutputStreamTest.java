@@ -0,0 +1,117 @@
+package com.github.kno10.wikipediaentities.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+import org.junit.Test;
+
+/**
+ * Test the parallel gzip compressor by decompressing its output.
+ */
+public class ParallelGZIPOutputStreamTest {
+  /**
+   * Compress with small blocks, writing chunks of random sizes and single
+   * bytes.
+   *
+   * @param data Data
+   * @param threads Number of threads
+   * @param level Compression level
+   * @return gzip stream
+   * @throws IOException never
+   */
+  static byte[] gzip(byte[] data, int threads, int level) throws IOException {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    Random r = new Random(0L);
+    try (ParallelGZIPOutputStream out = new ParallelGZIPOutputStream(buf, threads, level, 1 << 15)) {
+      for(int pos = 0; pos < data.length;) {
+        if(r.nextInt(4) == 0) {
+          out.write(data[pos++]);
+          continue;
+        }
+        final int n = Math.min(r.nextInt(100000), data.length - pos);
+        out.write(data, pos, n);
+        pos += n;
+      }
+    }
+    return buf.toByteArray();
+  }
+
+  /**
+   * Decompress, checking the CRC and length.
+   *
+   * @param data gzip stream
+   * @return Data
+   * @throws IOException on errors
+   */
+  static byte[] gunzip(byte[] data) throws IOException {
+    return ParallelBZip2InputStreamTest.readAll(new GZIPInputStream(new ByteArrayInputStream(data)));
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    for(int len : new int[] { 0, 1, 32767, 32768, 32769, 100000, 1000000 }) {
+      byte[] data = ParallelBZip2InputStreamTest.text(len, len);
+      for(int threads : new int[] { 1, 4 })
+        assertArrayEquals("Length " + len + ", " + threads + " threads", data, gunzip(gzip(data, threads, Deflater.DEFAULT_COMPRESSION)));
+    }
+  }
+
+  @Test
+  public void testLevels() throws IOException {
+    byte[] data = ParallelBZip2InputStreamTest.text(300000, 1L);
+    for(int level = 0; level <= 9; level++)
+      assertArrayEquals("Level " + level, data, gunzip(gzip(data, 3, level)));
+  }
+
+  @Test
+  public void testRandomData() throws IOException {
+    // Incompressible blocks need more space than the input.
+    byte[] data = new byte[500000];
+    new Random(0L).nextBytes(data);
+    assertArrayEquals(data, gunzip(gzip(data, 4, 9)));
+  }
+
+  @Test
+  public void testCompressionRatio() throws IOException {
+    // Using the previous block as dictionary loses almost nothing.
+    byte[] data = ParallelBZip2InputStreamTest.text(2000000, 2L);
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(buf)) {
+      out.write(data);
+    }
+    final int parallel = gzip(data, 4, Deflater.DEFAULT_COMPRESSION).length;
+    assertTrue(parallel + " vs. " + buf.size(), parallel < buf.size() * 1.02);
+  }
+
+  @Test
+  public void testFlush() throws IOException, DataFormatException {
+    byte[] data = ParallelBZip2InputStreamTest.text(200000, 3L);
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    try (ParallelGZIPOutputStream out = new ParallelGZIPOutputStream(buf, 2, Deflater.DEFAULT_COMPRESSION, 1 << 15)) {
+      out.write(data, 0, 123456);
+      out.flush();
+      // All data written so far can be decompressed, without a trailer:
+      byte[] head = buf.toByteArray();
+      Inflater inf = new Inflater(true);
+      inf.setInput(head, 10, head.length - 10);
+      byte[] got = new byte[200000];
+      final int n = inf.inflate(got);
+      inf.end();
+      assertArrayEquals(Arrays.copyOf(data, 123456), Arrays.copyOf(got, n));
+      out.write(data, 123456, data.length - 123456);
+      out.flush();
+    }
+    assertArrayEquals(data, gunzip(buf.toByteArray()));
+  }
+}
@@ -0,0 +1,169 @@
+package com.github.kno10.wikipediaentities.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+
+/**
+ * Test the partitioned counter with a small budget, against counting in memory.
+ */
+public class PartitionedCounterTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Add random keys, in batches as the link text handlers do.
+   *
+   * @param counter Counter
+   * @param expect Expected counts
+   * @param r Random generator
+   * @param n Number of additions
+   * @throws IOException on errors
+   */
+  static void add(PartitionedCounter counter, Object2IntOpenHashMap<String> expect, Random r, int n) throws IOException {
+    Object2IntOpenHashMap<String> batch = new Object2IntOpenHashMap<>();
+    for(int i = 0; i < n; i++) {
+      String key = Integer.toString((int) Math.abs(r.nextGaussian() * 30000), 36);
+      expect.addTo(key, 1);
+      batch.addTo(key, 1);
+      if(batch.size() > 10000) {
+        counter.addAll(batch);
+        batch.clear();
+      }
+    }
+    counter.addAll(batch);
+  }
+
+  /**
+   * Sorted keys with at least the minimum count.
+   *
+   * @param counts Counts
+   * @param minimum Minimum count
+   * @return Keys
+   */
+  static List<String> frequent(Object2IntOpenHashMap<String> counts, int minimum) {
+    List<String> keys = new ArrayList<>();
+    for(String k : counts.keySet())
+      if(counts.getInt(k) >= minimum)
+        keys.add(k);
+    Collections.sort(keys);
+    return keys;
+  }
+
+  /**
+   * Read the first field of all records.
+   *
+   * @param fname File name
+   * @return Keys
+   * @throws IOException on errors
+   */
+  static List<String> keys(String fname) throws IOException {
+    List<String> keys = new ArrayList<>();
+    try (RecordReader in = RecordReader.open(fname)) {
+      while(in.next())
+        keys.add(in.get(0));
+    }
+    return keys;
+  }
+
+  /**
+   * Read counts, summing the counts of repeated keys.
+   *
+   * @param fname File name
+   * @param counts Output counts
+   * @throws IOException on errors
+   */
+  static void read(String fname, Object2IntOpenHashMap<String> counts) throws IOException {
+    try (RecordReader in = RecordReader.open(fname)) {
+      while(in.next())
+        counts.addTo(in.get(0), Integer.parseInt(in.get(1)));
+    }
+  }
+
+  @Test
+  public void testFrequent() throws IOException {
+    Object2IntOpenHashMap<String> expect = new Object2IntOpenHashMap<>();
+    String out = new File(folder.getRoot(), "counts.rec").getPath();
+    try (PartitionedCounter counter = new PartitionedCounter(folder.getRoot(), "count", 1 << 20)) {
+      add(counter, expect, new Random(0L), 1000000);
+      try (RecordWriter w = RecordWriter.open(out)) {
+        assertEquals(frequent(expect, 3).size(), counter.frequent(w, 3, 4));
+      }
+      assertEquals(expect.size(), counter.distinct());
+    }
+    assertEquals(frequent(expect, 3), keys(out));
+    assertEquals(1, folder.getRoot().list().length); // Runs removed
+  }
+
+  @Test
+  public void testSave() throws IOException {
+    Object2IntOpenHashMap<String> expect = new Object2IntOpenHashMap<>();
+    String out = new File(folder.getRoot(), "counts.gz").getPath();
+    try (PartitionedCounter counter = new PartitionedCounter(folder.getRoot(), "count", 1 << 16)) {
+      add(counter, expect, new Random(1L), 200000);
+      try (RecordWriter w = RecordWriter.open(out)) {
+        counter.save(w, 2, 10);
+      }
+    }
+    Object2IntOpenHashMap<String> got = new Object2IntOpenHashMap<>();
+    read(out, got);
+    assertEquals(frequent(expect, 2).size(), got.size());
+    for(String k : got.keySet())
+      assertEquals(k, expect.getInt(k) + 10, got.getInt(k));
+  }
+
+  @Test
+  public void testCheckpoint() throws IOException {
+    Random r = new Random(2L);
+    Object2IntOpenHashMap<String> expect = new Object2IntOpenHashMap<>();
+    File dir = folder.getRoot();
+    List<String> files = new ArrayList<>();
+    try (PartitionedCounter counter = new PartitionedCounter(dir, "count", 1 << 16)) {
+      for(int i = 0; i < 4; i++) {
+        add(counter, expect, r, 100000);
+        String f = new File(dir, "cp" + i + ".gz").getPath();
+        try (RecordWriter w = RecordWriter.open(f)) {
+          counter.checkpoint(w, i == 2);
+        }
+        if(i == 2)
+          files.clear(); // Full checkpoint
+        files.add(f);
+      }
+      // The checkpoints since the last full one sum up to all counts:
+      Object2IntOpenHashMap<String> got = new Object2IntOpenHashMap<>();
+      for(String f : files)
+        read(f, got);
+      assertEquals(expect, got);
+
+      // Resume from the checkpoints, and continue counting:
+      try (PartitionedCounter resumed = new PartitionedCounter(dir, "resumed", 1 << 16)) {
+        for(String f : files)
+          try (RecordReader in = RecordReader.open(f)) {
+            while(in.next())
+              resumed.add(in.get(0), Integer.parseInt(in.get(1)));
+          }
+        resumed.checkpoint(null, false);
+        Object2IntOpenHashMap<String> more = new Object2IntOpenHashMap<>();
+        add(resumed, more, r, 1000);
+        String f = new File(dir, "cp-resumed.gz").getPath();
+        try (RecordWriter w = RecordWriter.open(f)) {
+          resumed.checkpoint(w, false);
+        }
+        got.clear();
+        read(f, got);
+        assertEquals(more, got); // Only the new counts
+      }
+    }
+  }
+}
@@ -0,0 +1,145 @@
+package com.github.kno10.wikipediaentities.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test the title dictionary, in memory, saved and concurrently built.
+ */
+public class TitleDictionaryTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Generate a title.
+   *
+   * @param i Number
+   * @return Title, of varying length
+   */
+  static String title(int i) {
+    StringBuilder buf = new StringBuilder().append("Title \u00e9 ").append(i);
+    for(int j = i % 97; j > 0; j--)
+      buf.append('x');
+    return buf.toString();
+  }
+
+  /**
+   * Check all titles of a dictionary.
+   *
+   * @param d Dictionary
+   * @param n Number of titles
+   */
+  static void check(TitleDictionary d, int n) {
+    assertEquals(n, d.size());
+    for(int i = 0; i < n; i++) {
+      assertEquals(i, d.get(title(i)));
+      assertEquals(title(i), d.key(i));
+    }
+    assertEquals(-1, d.get(title(n)));
+    assertEquals(-1, d.get(""));
+  }
+
+  @Test
+  public void testPagesSaveLoad() throws IOException {
+    final int n = 50000; // About 60 pages of 64 KB
+    TitleDictionary d = new TitleDictionary(16);
+    for(int i = 0; i < n; i++)
+      assertEquals(i, d.add(title(i)));
+    assertEquals(17, d.add(title(17)));
+    check(d, n);
+
+    String fname = folder.newFile("titles.dict").getPath();
+    d.save(fname);
+    check(TitleDictionary.open(fname), n);
+
+    TitleDictionary l = TitleDictionary.load(fname);
+    check(l, n);
+    for(int i = 0; i < n + 1000; i++)
+      assertEquals(i, l.add(title(i)));
+    check(l, n + 1000);
+  }
+
+  @Test
+  public void testSaveKeys() throws IOException {
+    TitleDictionary d = new TitleDictionary(16);
+    for(int i = 0; i < 1000; i++)
+      d.add(title(i));
+    String fname = folder.newFile("titles.dict").getPath();
+    d.save(fname);
+    for(int i = 1000; i < 3000; i++)
+      d.add(title(i));
+    String keys = folder.newFile("titles.rec.gz").getPath();
+    d.saveKeys(keys, 1000);
+
+    TitleDictionary l = TitleDictionary.load(fname);
+    l.addKeys(keys, 1000);
+    check(l, 3000);
+  }
+
+  @Test(expected = IOException.class)
+  public void testSaveKeysMismatch() throws IOException {
+    TitleDictionary d = new TitleDictionary(16);
+    for(int i = 0; i < 10; i++)
+      d.add(title(i));
+    String keys = folder.newFile("titles.rec.gz").getPath();
+    d.saveKeys(keys, 5);
+    new TitleDictionary(16).addKeys(keys, 5);
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testReadOnly() throws IOException {
+    TitleDictionary d = new TitleDictionary(16);
+    d.add("a");
+    String fname = folder.newFile("titles.dict").getPath();
+    d.save(fname);
+    TitleDictionary.open(fname).add("b");
+  }
+
+  @Test
+  public void testConcurrent() throws InterruptedException, ExecutionException {
+    final int n = 100000, threads = 4;
+    final TitleDictionary d = new TitleDictionary(16);
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    List<Future<int[]>> results = new ArrayList<>();
+    for(int t = 0; t < threads; t++) {
+      final int offset = t * 7919;
+      results.add(pool.submit(new Callable<int[]>() {
+        @Override
+        public int[] call() {
+          int[] ids = new int[n];
+          for(int i = 0; i < n; i++) {
+            final int k = (i + offset) % n;
+            ids[k] = d.add(title(k));
+          }
+          return ids;
+        }
+      }));
+    }
+    int[] first = results.get(0).get();
+    for(Future<int[]> f : results)
+      assertArrayEquals(first, f.get());
+    pool.shutdown();
+    assertEquals(n, d.size());
+    boolean[] seen = new boolean[n];
+    for(int i = 0; i < n; i++) {
+      assertFalse(seen[first[i]]);
+      seen[first[i]] = true;
+      assertEquals(title(i), d.key(first[i]));
+      assertEquals(first[i], d.get(title(i)));
+    }
+  }
+}